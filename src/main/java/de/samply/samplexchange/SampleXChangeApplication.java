@@ -1,9 +1,14 @@
 package de.samply.samplexchange;
 
+import ca.uhn.fhir.context.FhirContext;
+import de.samply.samplexchange.configuration.Configuration;
+import de.samply.samplexchange.utils.fhir.FhirParsers;
+import de.samply.samplexchange.utils.fhir.StringPool;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.Bean;
 
 /**
  * Main Application Entrypoint.
@@ -31,6 +36,27 @@ public class SampleXChangeApplication implements CommandLineRunner {
         log.info("Finished SampleXChang in " + endTime + " mil sec");
     }
 
+    /**
+     * Fhir context shared by the application. Its model is scanned on a background thread
+     * while the application starts.
+     */
+    @Bean
+    public FhirContext fhirContext() {
+        FhirContext ctx = FhirContext.forR4();
+        Thread warmUp = new Thread(() -> FhirParsers.warmUp(ctx), "fhir-context-warm-up");
+        warmUp.setDaemon(true);
+        warmUp.start();
+        return ctx;
+    }
+
+    /**
+     * Parsers shared by all transfers.
+     */
+    @Bean
+    public FhirParsers fhirParsers(FhirContext ctx, Configuration configuration) {
+        return new FhirParsers(ctx, new StringPool(configuration.getSourceInterningSize()));
+    }
+
     @Override
     public void run(String... args) throws Exception {
         log.debug("EXECUTING : command line runner");
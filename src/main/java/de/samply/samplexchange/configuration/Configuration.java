@@ -1,5 +1,6 @@
 package de.samply.samplexchange.configuration;
 
+import de.samply.samplexchange.utils.fhir.clients.ConnectionSettings;
 import lombok.Data;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
@@ -23,9 +24,117 @@ public class Configuration {
     @Value("${source.password}")
     private String sourceServerPassword;
 
+    @Value("${source.mode}")
+    private String sourceMode;
+
+    @Value("${source.directory}")
+    private String sourceDirectory;
+
+    @Value("${sources.file}")
+    private String sourcesFile;
+
+    @Value("${source.prefetch}")
+    private int sourcePrefetch;
+
+    @Value("${source.streaming}")
+    private boolean sourceStreaming;
+
+    @Value("${source.passthrough}")
+    private boolean sourcePassthrough;
+
+    @Value("${source.pushdown}")
+    private boolean sourcePushdown;
+
+    @Value("${source.paging.adaptive}")
+    private boolean sourcePagingAdaptive;
+
+    @Value("${source.paging.count}")
+    private int sourcePagingCount;
+
+    @Value("${source.paging.maxcount}")
+    private int sourcePagingMaxCount;
+
+    @Value("${source.paging.targetlatency}")
+    private int sourcePagingTargetLatency;
+
+    @Value("${source.paging.targetsize}")
+    private int sourcePagingTargetSize;
+
+    @Value("${source.discovery.projection}")
+    private String sourceDiscoveryProjection;
+
+    @Value("${source.discovery.partitions}")
+    private int sourceDiscoveryPartitions;
+
+    @Value("${source.grouping.memory}")
+    private int sourceGroupingMemory;
+
+    @Value("${source.interning.size}")
+    private int sourceInterningSize;
+
+    @Value("${source.grouping.directory}")
+    private String sourceGroupingDirectory;
+
+    @Value("${source.batchsize}")
+    private int sourceBatchSize;
+
+    @Value("${source.bulk.group}")
+    private String sourceBulkGroup;
+
+    @Value("${source.bulk.pollinterval}")
+    private int sourceBulkPollInterval;
+
+    @Value("${source.http.maxtotal}")
+    private int sourceHttpMaxTotal;
+
+    @Value("${source.http.maxperroute}")
+    private int sourceHttpMaxPerRoute;
+
+    @Value("${source.http.keepalive}")
+    private int sourceHttpKeepAlive;
+
+    @Value("${source.http.idletimeout}")
+    private int sourceHttpIdleTimeout;
+
+    @Value("${source.http.connecttimeout}")
+    private int sourceHttpConnectTimeout;
+
+    @Value("${source.http.sockettimeout}")
+    private int sourceHttpSocketTimeout;
+
+    @Value("${source.http.leasetimeout}")
+    private int sourceHttpLeaseTimeout;
+
+    @Value("${source.http.acceptgzip}")
+    private boolean sourceHttpAcceptGzip;
+
+    @Value("${source.http.gziprequests}")
+    private boolean sourceHttpGzipRequests;
+
+    @Value("${source.http.gzipthreshold}")
+    private int sourceHttpGzipThreshold;
+
+    @Value("${source.http.initialconcurrency}")
+    private int sourceHttpInitialConcurrency;
+
+    @Value("${source.http.maxconcurrency}")
+    private int sourceHttpMaxConcurrency;
+
+    @Value("${source.http.cache.directory}")
+    private String sourceHttpCacheDirectory;
+
+    @Value("${source.http.cache.maxsize}")
+    private int sourceHttpCacheMaxSize;
+
     @Value("${profile}")
     private String profile;
 
+    @Value("${resources}")
+    private String resources;
+
+    @Value("${filter.file}")
+    private String filterFile;
+
     @Value("${target.url}")
     private String targetServer;
 
@@ -35,9 +144,115 @@ public class Configuration {
     @Value("${target.password}")
     private String targetServerPassword;
 
+    @Value("${target.http.maxtotal}")
+    private int targetHttpMaxTotal;
+
+    @Value("${target.http.maxperroute}")
+    private int targetHttpMaxPerRoute;
+
+    @Value("${target.http.keepalive}")
+    private int targetHttpKeepAlive;
+
+    @Value("${target.http.idletimeout}")
+    private int targetHttpIdleTimeout;
+
+    @Value("${target.http.connecttimeout}")
+    private int targetHttpConnectTimeout;
+
+    @Value("${target.http.sockettimeout}")
+    private int targetHttpSocketTimeout;
+
+    @Value("${target.http.leasetimeout}")
+    private int targetHttpLeaseTimeout;
+
+    @Value("${target.http.acceptgzip}")
+    private boolean targetHttpAcceptGzip;
+
+    @Value("${target.http.gziprequests}")
+    private boolean targetHttpGzipRequests;
+
+    @Value("${target.http.gzipthreshold}")
+    private int targetHttpGzipThreshold;
+
+    @Value("${target.http.initialconcurrency}")
+    private int targetHttpInitialConcurrency;
+
+    @Value("${target.http.maxconcurrency}")
+    private int targetHttpMaxConcurrency;
+
+    @Value("${target.http.cache.directory}")
+    private String targetHttpCacheDirectory;
+
+    @Value("${target.http.cache.maxsize}")
+    private int targetHttpCacheMaxSize;
+
     @Value("${fileexportpath}")
     private String fileExportPath;
 
+    @Value("${incremental.enabled}")
+    private boolean incremental;
+
+    @Value("${incremental.watermarkfile}")
+    private String watermarkFile;
+
+    @Value("${checkpoint.enabled}")
+    private boolean checkpoint;
+
+    @Value("${checkpoint.file}")
+    private String checkpointFile;
+
     @Value("${disablessl}")
     private boolean fhirClientAcceptSsl;
+
+    /**
+     * Returns whether the source is set, the directory in file mode, otherwise the server or
+     * the list of servers.
+     */
+    public boolean hasSource() {
+        return "file".equalsIgnoreCase(sourceMode)
+                ? !sourceDirectory.isBlank()
+                : !sourceServer.isBlank() || !sourcesFile.isBlank();
+    }
+
+    /**
+     * Returns the connection settings of the source server.
+     */
+    public ConnectionSettings getSourceConnectionSettings() {
+        return new ConnectionSettings(
+                sourceHttpMaxTotal,
+                sourceHttpMaxPerRoute,
+                sourceHttpKeepAlive,
+                sourceHttpIdleTimeout,
+                sourceHttpConnectTimeout,
+                sourceHttpSocketTimeout,
+                sourceHttpLeaseTimeout,
+                sourceHttpAcceptGzip,
+                sourceHttpGzipRequests,
+                sourceHttpGzipThreshold,
+                sourceHttpInitialConcurrency,
+                sourceHttpMaxConcurrency,
+                sourceHttpCacheDirectory,
+                sourceHttpCacheMaxSize);
+    }
+
+    /**
+     * Returns the connection settings of the target server.
+     */
+    public ConnectionSettings getTargetConnectionSettings() {
+        return new ConnectionSettings(
+                targetHttpMaxTotal,
+                targetHttpMaxPerRoute,
+                targetHttpKeepAlive,
+                targetHttpIdleTimeout,
+                targetHttpConnectTimeout,
+                targetHttpSocketTimeout,
+                targetHttpLeaseTimeout,
+                targetHttpAcceptGzip,
+                targetHttpGzipRequests,
+                targetHttpGzipThreshold,
+                targetHttpInitialConcurrency,
+                targetHttpMaxConcurrency,
+                targetHttpCacheDirectory,
+                targetHttpCacheMaxSize);
+    }
 }
@@ -0,0 +1,19 @@
+package de.samply.samplexchange.enums;
+
+/**
+ * Enum for the parts of the specimens which are loaded to discover the patients.
+ */
+public enum DiscoveryProjection {
+    /**
+     * Full specimen resources.
+     */
+    NONE,
+    /**
+     * Only the subject, using _elements=subject.
+     */
+    ELEMENTS,
+    /**
+     * Only the summary elements, using _summary=true.
+     */
+    SUMMARY
+}
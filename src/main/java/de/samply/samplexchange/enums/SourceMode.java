@@ -0,0 +1,13 @@
+package de.samply.samplexchange.enums;
+
+/**
+ * Enum for the supported ways of reading the source.
+ */
+public enum SourceMode {
+    SEARCH,
+    COMPARTMENT,
+    BATCH,
+    BULK,
+    SPECIMEN,
+    FILE
+}
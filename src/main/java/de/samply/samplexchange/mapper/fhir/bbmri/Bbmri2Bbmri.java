@@ -2,21 +2,19 @@ package de.samply.samplexchange.mapper.fhir.bbmri;
 
 import de.samply.samplexchange.configuration.Configuration;
 import de.samply.samplexchange.mapper.fhir.FhirInterface;
+import de.samply.samplexchange.models.PatientCompartment;
+import de.samply.samplexchange.readers.CompartmentReader;
 import de.samply.samplexchange.utils.fhir.FhirComponent;
+import de.samply.samplexchange.utils.fhir.FhirComponentFactory;
+import de.samply.samplexchange.utils.fhir.FhirExportInterface;
+import de.samply.samplexchange.utils.fhir.RawSearchReader;
 import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
-import org.hl7.fhir.instance.model.api.IBaseResource;
-import org.hl7.fhir.r4.model.Patient;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.stereotype.Service;
 
-import java.security.KeyManagementException;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 /**
  * Jump Mapping.
@@ -33,17 +31,16 @@ public class Bbmri2Bbmri extends FhirInterface {
      * Constructor.
      */
     @Autowired
-    public Bbmri2Bbmri(Configuration configuration) throws Exception {
+    public Bbmri2Bbmri(Configuration configuration, FhirComponentFactory components) throws Exception {
         super(configuration);
-        fhirComponent = new FhirComponent(configuration);
+        fhirComponent = components.create();
     }
 
     /**
      * Transferring.
      */
     @PostConstruct
-    public void transfer()
-            throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+    public void transfer() throws Exception {
         log.info("Running TransFAIR in BBMRI2BBMRI mode");
         if (!this.setup()) {
             log.info("Variables are not set, transfer not possible");
@@ -52,56 +49,76 @@ public class Bbmri2Bbmri extends FhirInterface {
 
         log.info("Setup complete");
 
+        fhirComponent.transferSources(this::transferSource);
+    }
+
+    private void transferSource(FhirComponent source) throws Exception {
         // TODO Collect Organization and Collection
 
-        fhirComponent
-                .getFhirExportInterface()
-                .export(
-                        fhirComponent.transferController.buildResources(
-                                fhirComponent.transferController.fetchOrganizations(
-                                        fhirComponent.getSourceFhirServer())));
-        fhirComponent
-                .getFhirExportInterface()
-                .export(
-                        fhirComponent.transferController.buildResources(
-                                fhirComponent.transferController.fetchOrganizationAffiliation(
-                                        fhirComponent.getSourceFhirServer())));
+        RawSearchReader rawReader = source.usePassthrough();
+        if (source.getSourceServer().isBlank()) {
+            // Organizations have no patient, a file source only provides patient compartments
+            log.warn("No source server, organizations are not transferred");
+        } else if (rawReader != null) {
+            transferRaw(source, rawReader, "Organization");
+            // Affiliations and specimens reference the organizations
+            source.getFhirExportInterface().flush();
+            transferRaw(source, rawReader, "OrganizationAffiliation");
+            source.getFhirExportInterface().flush();
+        } else {
+            transferOrganizations(source);
+        }
 
         int counter = 1;
 
-        Set<String> patientRefs =
-                fhirComponent.transferController.getSpecimenPatients(fhirComponent.getSourceFhirServer());
-
-        log.info("Loaded " + patientRefs.size() + " Patients");
-
-        for (String pid : patientRefs) {
-            List<IBaseResource> patientResources = new ArrayList<>();
-            log.debug("Loading data for patient " + pid);
-
-            patientResources.add(
-                    fhirComponent.transferController.fetchResource(
-                            fhirComponent.getSourceFhirServer(), Patient.class, pid));
-            patientResources.addAll(
-                    fhirComponent.transferController.fetchPatientSpecimens(
-                            fhirComponent.getSourceFhirServer(), pid));
-            patientResources.addAll(
-                    fhirComponent.transferController.fetchPatientObservation(
-                            fhirComponent.getSourceFhirServer(), pid));
-
-            patientResources.addAll(
-                    fhirComponent.transferController.fetchPatientCondition(
-                            fhirComponent.getSourceFhirServer(), pid));
-
-            fhirComponent
-                    .getFhirExportInterface()
-                    .export(fhirComponent.transferController.buildResources(patientResources));
-            log.info("Exported Resources " + counter++ + "/" + patientRefs.size());
+        CompartmentReader compartmentReader = source.getCompartmentReader();
+
+        int patientCount = compartmentReader.discover();
+
+        log.info("Loaded " + patientCount + " Patients");
+
+        for (PatientCompartment compartment : compartmentReader) {
+            if (rawReader != null) {
+                source.exportPatient(compartment.getPatientId(), compartment.getRawResources());
+            } else {
+                source.exportPatient(
+                        compartment.getPatientId(),
+                        source.transferController.buildResources(compartment.getResources()));
+            }
+            log.info("Exported Resources " + counter++ + "/" + patientCount);
         }
     }
 
+    private void transferOrganizations(FhirComponent source) throws Exception {
+        FhirExportInterface exportInterface = source.getFhirExportInterface();
+        source.transferController.fetchOrganizations(source.getSourceFhirServer()).pages()
+                .forEach(page -> exportInterface.export(source.transferController.buildResources(page)));
+        // Affiliations and specimens reference the organizations
+        exportInterface.flush();
+
+        source.transferController.fetchOrganizationAffiliation(source.getSourceFhirServer()).pages()
+                .forEach(page -> exportInterface.export(source.transferController.buildResources(page)));
+        exportInterface.flush();
+    }
+
+    /**
+     * Copies all resources of a type page by page without fhir model.
+     */
+    private void transferRaw(FhirComponent source, RawSearchReader rawReader, String resourceType)
+            throws Exception {
+        FhirExportInterface exportInterface = source.getFhirExportInterface();
+        rawReader.search(resourceType, null, Map.of(),
+                source.transferController.getPageSize(resourceType), page -> {
+                    if (!page.isEmpty()) {
+                        exportInterface.exportRaw(page, () -> {
+                        });
+                    }
+                });
+    }
+
     private boolean setup() {
 
-        if (fhirComponent.configuration.getSourceServer().isBlank()) {
+        if (!fhirComponent.configuration.hasSource()) {
             return false;
         }
         return !fhirComponent.configuration.getFileExportPath().isBlank()
@@ -1,17 +1,20 @@
 package de.samply.samplexchange.mapper.fhir.bbmri;
 
-import ca.uhn.fhir.rest.client.api.IGenericClient;
 import de.samply.samplexchange.configuration.Configuration;
 import de.samply.samplexchange.enums.ProfileFormats;
 import de.samply.samplexchange.mapper.fhir.FhirInterface;
+import de.samply.samplexchange.models.PatientCompartment;
+import de.samply.samplexchange.models.SpecimenInput;
+import de.samply.samplexchange.readers.CompartmentReader;
 import de.samply.samplexchange.resources.*;
 import de.samply.samplexchange.utils.fhir.FhirComponent;
+import de.samply.samplexchange.utils.fhir.FhirComponentFactory;
+import de.samply.samplexchange.utils.fhir.SearchPlan;
 import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Condition;
 import org.hl7.fhir.r4.model.Observation;
-import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Specimen;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
@@ -20,7 +23,6 @@ import org.springframework.stereotype.Service;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
 
 /**
  * Mapping for bbmri.de data and transformation to MII KDS.
@@ -44,9 +46,16 @@ public class Bbmri2Mii extends FhirInterface {
      * Constructor.
      */
     @Autowired
-    public Bbmri2Mii(Configuration configuration) throws Exception {
+    public Bbmri2Mii(Configuration configuration, FhirComponentFactory components) throws Exception {
         super(configuration);
-        fhirComponent = new FhirComponent(configuration);
+        fhirComponent = components.create();
+
+        resources = Arrays.stream(configuration.getResources().split(","))
+                .map(String::trim)
+                .filter(resourceType -> !resourceType.isEmpty())
+                .toList();
+        fhirComponent.setSearchPlan(SearchPlan.of(resources)
+                .filter(Observation.class, List.of(FhirProfileChecker.BBMRI_CAUSE_OF_DEATH_SEARCH)));
     }
 
     /**
@@ -62,39 +71,41 @@ public class Bbmri2Mii extends FhirInterface {
 
         log.info("Setup complete");
 
-        IGenericClient sourceClient = fhirComponent.getSourceFhirServer();
+        fhirComponent.transferSources(this::transferSource);
+    }
+
+    private void transferSource(FhirComponent source) throws Exception {
+        CompartmentReader compartmentReader = source.getCompartmentReader();
 
-        Set<String> patientIds =
-                fhirComponent.transferController.fetchPatientIds(sourceClient);
+        int patientCount = compartmentReader.discover();
 
-        log.info("Loaded " + patientIds.size() + " Patients");
+        log.info("Loaded " + patientCount + " Patients");
 
         int counter = 1;
         MetaMapping metaMapping =
                 new MetaMapping(getConfiguration().getAppVersion(), "BBMRI2MII");
 
-        for (String pid : patientIds) {
+        for (PatientCompartment compartment : compartmentReader) {
+            String pid = compartment.getPatientId();
             List<IBaseResource> patientResources = new ArrayList<>();
-            log.debug("Loading data for patient " + pid);
+            log.debug("Mapping data for patient " + pid);
 
 
             if (resources.contains("Patient")) {
                 PatientMapping ap = new PatientMapping();
                 log.debug("Analysing patient " + pid + WITH_FORMAT_BBMRI);
-                ap.fromBbmri(
-                        fhirComponent.transferController.fetchResource(sourceClient, Patient.class, pid));
                 try {
+                    ap.fromBbmri(compartment.getPatient());
                     patientResources.add(metaMapping.tagResource(ap.toMii()));
                 } catch (Exception e) {
                     log.error("Skipped patient " + pid + " with format bbmri due to " + Arrays.toString(
                             e.getStackTrace()));
+                    source.skipPatient(pid);
                     continue;
                 }
             }
             if (resources.contains("Condition")) {
-                for (IBaseResource base :
-                        fhirComponent.transferController.fetchPatientCondition(sourceClient, pid)) {
-                    Condition condition = (Condition) base;
+                for (Condition condition : compartment.getConditions()) {
                     ConditionMapping conditionMapping = new ConditionMapping();
 
                     conditionMapping.fromBbmri(condition);
@@ -102,8 +113,15 @@ public class Bbmri2Mii extends FhirInterface {
                 }
             }
             if (resources.contains("Specimen")) {
-                for (Specimen specimen :
-                        fhirComponent.transferController.fetchPatientSpecimens(sourceClient, pid)) {
+                for (Specimen specimen : compartment.getSpecimens()) {
+                    SpecimenMapping transferSpecimenMapping = new SpecimenMapping();
+                    log.debug("Analysing Specimen " + specimen.getId() + WITH_FORMAT_MII_KDS);
+                    transferSpecimenMapping.fromBbmri(specimen);
+
+                    log.debug("Export Specimen " + specimen.getId() + WITH_FORMAT_MII_KDS);
+                    patientResources.add(metaMapping.tagResource(transferSpecimenMapping.toMii()));
+                }
+                for (SpecimenInput specimen : compartment.getSpecimenInputs()) {
                     SpecimenMapping transferSpecimenMapping = new SpecimenMapping();
                     log.debug("Analysing Specimen " + specimen.getId() + WITH_FORMAT_MII_KDS);
                     transferSpecimenMapping.fromBbmri(specimen);
@@ -113,9 +131,7 @@ public class Bbmri2Mii extends FhirInterface {
                 }
             }
             if (resources.contains("Observation")) {
-                for (IBaseResource base :
-                        fhirComponent.transferController.fetchPatientObservation(sourceClient, pid)) {
-                    Observation observation = (Observation) base;
+                for (Observation observation : compartment.getObservations()) {
 
                     if (FhirProfileChecker.checkBbmriCauseOfDeath(observation)) {
                         CauseOfDeathMapping causeOfDeathMapping = new CauseOfDeathMapping();
@@ -130,15 +146,14 @@ public class Bbmri2Mii extends FhirInterface {
                 }
             }
 
-            fhirComponent
-                    .getFhirExportInterface()
-                    .export(fhirComponent.transferController.buildResources(patientResources));
-            log.info("Exported Resources " + counter++ + "/" + patientIds.size());
+            source.exportPatient(
+                    pid, source.transferController.buildResources(patientResources));
+            log.info("Exported Resources " + counter++ + "/" + patientCount);
         }
     }
 
     private boolean setup() {
 
-        return !fhirComponent.configuration.getSourceServer().isBlank();
+        return fhirComponent.configuration.hasSource();
     }
 }
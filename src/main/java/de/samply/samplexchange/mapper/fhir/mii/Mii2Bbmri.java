@@ -1,11 +1,15 @@
 package de.samply.samplexchange.mapper.fhir.mii;
 
 
-import ca.uhn.fhir.rest.client.api.IGenericClient;
 import de.samply.samplexchange.configuration.Configuration;
 import de.samply.samplexchange.mapper.fhir.FhirInterface;
+import de.samply.samplexchange.models.PatientCompartment;
+import de.samply.samplexchange.models.SpecimenInput;
+import de.samply.samplexchange.readers.CompartmentReader;
 import de.samply.samplexchange.resources.*;
 import de.samply.samplexchange.utils.fhir.FhirComponent;
+import de.samply.samplexchange.utils.fhir.FhirComponentFactory;
+import de.samply.samplexchange.utils.fhir.SearchPlan;
 import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -19,7 +23,6 @@ import org.springframework.stereotype.Service;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
 
 import static de.samply.samplexchange.resources.FhirProfileChecker.checkMmiCondition;
 import static java.lang.System.exit;
@@ -38,10 +41,15 @@ public class Mii2Bbmri extends FhirInterface {
      * Constructor.
      */
     @Autowired
-    public Mii2Bbmri(Configuration configuration) throws Exception {
+    public Mii2Bbmri(Configuration configuration, FhirComponentFactory components) throws Exception {
         super(configuration);
 
-        fhirComponent = new FhirComponent(configuration);
+        fhirComponent = components.create();
+        fhirComponent.setSearchPlan(new SearchPlan()
+                .fetch(Patient.class)
+                .fetch(Specimen.class, List.of(FhirProfileChecker.SPECIMEN_WITHOUT_PARENT_SEARCH))
+                .fetch(Condition.class, List.of(
+                        FhirProfileChecker.MII_CAUSE_OF_DEATH_SEARCH, FhirProfileChecker.MII_CONDITION_SEARCH)));
     }
 
     /**
@@ -52,36 +60,48 @@ public class Mii2Bbmri extends FhirInterface {
         log.info("Running MII2BMMRI");
         this.setup();
 
-        IGenericClient sourceClient = fhirComponent.getSourceFhirServer();
+        fhirComponent.transferSources(this::transferSource);
+    }
+
+    private void transferSource(FhirComponent source) throws Exception {
+        CompartmentReader compartmentReader = source.getCompartmentReader();
 
-        Set<String> patientIds =
-                fhirComponent.transferController.fetchPatientIds(
-                        sourceClient);
+        int patientCount = compartmentReader.discover();
 
-        log.info("Loaded {} Patients", patientIds.size());
+        log.info("Loaded {} Patients", patientCount);
 
         int counter = 1;
         MetaMapping metaMapping = new MetaMapping(getConfiguration().getAppVersion(), "MII2BBMRI");
 
-        for (String pid : patientIds) {
+        for (PatientCompartment compartment : compartmentReader) {
+            String pid = compartment.getPatientId();
             List<IBaseResource> patientResources = new ArrayList<>();
-            log.debug("Loading data for patient " + pid);
+            log.debug("Mapping data for patient " + pid);
 
 
             PatientMapping ap = new PatientMapping();
             log.debug("Analysing patient " + pid + " with format MII KDS");
-            ap.fromMii(
-                    fhirComponent.transferController.fetchResource(sourceClient, Patient.class, pid));
             try {
+                ap.fromMii(compartment.getPatient());
                 patientResources.add(metaMapping.tagResource(ap.toBbmri()));
             } catch (Exception e) {
                 log.error("Skipped patient {} with format MII KDS due to {}", pid, Arrays.toString(
                         e.getStackTrace()));
+                source.skipPatient(pid);
                 continue;
             }
 
-            for (Specimen specimen :
-                    fhirComponent.transferController.fetchPatientSpecimens(sourceClient, pid)) {
+            for (Specimen specimen : compartment.getSpecimens()) {
+                SpecimenMapping transferSpecimenMapping = new SpecimenMapping();
+                log.debug("Analysing Specimen {} with format bbmri.de", specimen.getId());
+                transferSpecimenMapping.fromMii(specimen);
+                Specimen specimenl = transferSpecimenMapping.toBbmri();
+                if (specimenl != null) {
+                    patientResources.add(metaMapping.tagResource(specimenl));
+                }
+            }
+
+            for (SpecimenInput specimen : compartment.getSpecimenInputs()) {
                 SpecimenMapping transferSpecimenMapping = new SpecimenMapping();
                 log.debug("Analysing Specimen {} with format bbmri.de", specimen.getId());
                 transferSpecimenMapping.fromMii(specimen);
@@ -91,9 +111,7 @@ public class Mii2Bbmri extends FhirInterface {
                 }
             }
 
-            for (IBaseResource base :
-                    fhirComponent.transferController.fetchPatientCondition(sourceClient, pid)) {
-                Condition condition = (Condition) base;
+            for (Condition condition : compartment.getConditions()) {
 
                 if (FhirProfileChecker.checkMiiCauseOfDeath(condition)) {
                     CauseOfDeathMapping causeOfDeathMapping = new CauseOfDeathMapping();
@@ -109,17 +127,16 @@ public class Mii2Bbmri extends FhirInterface {
             }
 
 
-            fhirComponent
-                    .getFhirExportInterface()
-                    .export(fhirComponent.transferController.buildResources(patientResources));
-            log.info("Exported Resources {}/{}", counter++, patientIds.size());
+            source.exportPatient(
+                    pid, source.transferController.buildResources(patientResources));
+            log.info("Exported Resources {}/{}", counter++, patientCount);
         }
     }
 
     private void setup() {
 
-        if (this.getConfiguration().getSourceServer().isBlank()) {
-            log.error("Source FHIR server is blank");
+        if (!this.getConfiguration().hasSource()) {
+            log.error("Source FHIR server or directory is blank");
             exit(1);
         }
     }
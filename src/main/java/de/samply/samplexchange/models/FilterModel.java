@@ -1,11 +1,21 @@
 package de.samply.samplexchange.models;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
 
 /**
- * Json class for filtering attr.
+ * Json class for filtering attr. The values of a list are alternatives, the lists are combined.
  */
 public class FilterModel {
+
+    /**
+     * Search parameter of the bbmri.de Custodian extension, which the source has to define.
+     */
+    public static final String CUSTODIAN_PARAMETER = "custodian";
+
     /**
      * Patient related attrs.
      */
@@ -33,4 +43,40 @@ public class FilterModel {
         public List<String> fhirProfile;
         public List<String> orgaFilter;
     }
+
+    /**
+     * Returns the search parameters of the specimens which select the patients to transfer.
+     * The patient filters are chained over the specimen subject.
+     */
+    public Map<String, List<String>> discoveryParameters() {
+        Map<String, List<String>> parameters = new LinkedHashMap<>();
+        if (patient != null) {
+            add(parameters, "subject", patient.ids,
+                    id -> id.contains("/") ? id : "Patient/" + id);
+            add(parameters, "subject:Patient._profile", patient.fhirProfile, UnaryOperator.identity());
+            add(parameters, "subject:Patient.organization", patient.orgaFilter, UnaryOperator.identity());
+        }
+        parameters.putAll(specimenParameters());
+        return parameters;
+    }
+
+    /**
+     * Returns the search parameters of the specimens to transfer.
+     */
+    public Map<String, List<String>> specimenParameters() {
+        Map<String, List<String>> parameters = new LinkedHashMap<>();
+        if (specimen != null) {
+            add(parameters, "_id", specimen.ids, id -> id.substring(id.lastIndexOf('/') + 1));
+            add(parameters, "_profile", specimen.fhirProfile, UnaryOperator.identity());
+            add(parameters, CUSTODIAN_PARAMETER, specimen.orgaFilter, UnaryOperator.identity());
+        }
+        return parameters;
+    }
+
+    private static void add(Map<String, List<String>> parameters, String name, List<String> values,
+                            UnaryOperator<String> format) {
+        if (values != null && !values.isEmpty()) {
+            parameters.put(name, List.of(values.stream().map(format).collect(Collectors.joining(","))));
+        }
+    }
 }
@@ -0,0 +1,138 @@
+package de.samply.samplexchange.models;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Specimen;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * All resources of one patient which are relevant for a transfer.
+ */
+@Getter
+public class PatientCompartment {
+
+    /**
+     * Reference of the patient, e.g. Patient/123.
+     */
+    private final String patientId;
+
+    @Setter
+    private Patient patient;
+
+    private final List<Specimen> specimens = new ArrayList<>();
+
+    /**
+     * Specimens read by the streaming parser, without fhir model.
+     */
+    private final List<SpecimenInput> specimenInputs = new ArrayList<>();
+
+    private final List<Condition> conditions = new ArrayList<>();
+
+    /**
+     * Resources copied without fhir model, starting with the patient.
+     */
+    private final List<RawResource> rawResources = new ArrayList<>();
+
+    private final List<Observation> observations = new ArrayList<>();
+
+    public PatientCompartment(String patientId) {
+        this.patientId = patientId;
+    }
+
+    /**
+     * Sorts a resource into the compartment. Unsupported resource types are ignored.
+     */
+    public void add(IBaseResource resource) {
+        if (resource instanceof Patient p) {
+            this.patient = p;
+        } else if (resource instanceof Specimen specimen) {
+            specimens.add(specimen);
+        } else if (resource instanceof Condition condition) {
+            conditions.add(condition);
+        } else if (resource instanceof Observation observation) {
+            observations.add(observation);
+        }
+    }
+
+    /**
+     * Adds a specimen read by the streaming parser.
+     */
+    public void add(SpecimenInput specimen) {
+        specimenInputs.add(specimen);
+    }
+
+    /**
+     * Adds a resource copied without fhir model.
+     */
+    public void add(RawResource resource) {
+        rawResources.add(resource);
+    }
+
+    /**
+     * Returns all resources of the compartment, starting with the patient.
+     * Specimens read by the streaming parser are not included.
+     */
+    public List<IBaseResource> getResources() {
+        List<IBaseResource> resources = new ArrayList<>();
+        if (patient != null) {
+            resources.add(patient);
+        }
+        resources.addAll(specimens);
+        resources.addAll(observations);
+        resources.addAll(conditions);
+        return resources;
+    }
+
+    /**
+     * Returns the patient reference a streamed specimen belongs to, or null if it has none.
+     */
+    public static String patientReference(SpecimenInput specimen) {
+        if (specimen.getSubject() == null) {
+            return null;
+        }
+        return patientReference(new IdType(specimen.getSubject()));
+    }
+
+    /**
+     * Returns the patient reference of a subject reference, e.g. Patient/123 of an absolute url,
+     * or null if it does not reference a patient.
+     */
+    public static String patientReference(String subject) {
+        return subject == null ? null : patientReference(new IdType(subject));
+    }
+
+    /**
+     * Returns the patient reference a resource belongs to, or null if it has none.
+     */
+    public static String patientReference(IBaseResource resource) {
+        IIdType id;
+        if (resource instanceof Patient patient) {
+            id = patient.getIdElement();
+            return id.hasIdPart() ? "Patient/" + id.getIdPart() : null;
+        } else if (resource instanceof Specimen specimen) {
+            id = specimen.getSubject().getReferenceElement();
+        } else if (resource instanceof Condition condition) {
+            id = condition.getSubject().getReferenceElement();
+        } else if (resource instanceof Observation observation) {
+            id = observation.getSubject().getReferenceElement();
+        } else {
+            return null;
+        }
+        return patientReference(id);
+    }
+
+    private static String patientReference(IIdType id) {
+        if (!"Patient".equals(id.getResourceType()) || !id.hasIdPart()) {
+            return null;
+        }
+        return "Patient/" + id.getIdPart();
+    }
+}
@@ -0,0 +1,254 @@
+package de.samply.samplexchange.models;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Compact set of patient references for the patient discovery.
+ * References are stored without the "Patient/" prefix as UTF-8 bytes, appended to one byte
+ * array per stripe and indexed by an open addressing table of offsets. A UUID needs about
+ * 50 bytes including the spare capacity, instead of roughly 150 bytes in a HashSet of Strings.
+ * Inserts are lock striped, so partitioned scans can fill the set concurrently.
+ * Iteration returns the references stripe by stripe in insertion order without copying the set
+ * and is meant to be used once the set is filled. Removal is not supported.
+ *
+ * <p>Like the HashSet this set replaces, the iteration order follows the hashes and, with
+ * concurrent inserts, may differ between runs. None of the callers depends on it: every patient
+ * is transferred on its own, batches of patients only share requests, and the checkpoint journal
+ * records the completed patients by id.
+ */
+public class PatientIdSet extends AbstractSet<String> {
+
+    private static final String PREFIX = "Patient/";
+
+    private static final int STRIPE_BITS = 6;
+
+    private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+    /**
+     * Constructor.
+     */
+    public PatientIdSet() {
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    @Override
+    public boolean add(String reference) {
+        byte[] entry = encode(reference);
+        int hash = hash(entry, 0, entry.length);
+        return stripe(hash).add(entry, hash);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof String reference)) {
+            return false;
+        }
+        byte[] entry = encode(reference);
+        int hash = hash(entry, 0, entry.length);
+        return stripe(hash).contains(entry, hash);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size;
+        }
+        return size;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<>() {
+            private int stripe = -1;
+
+            private byte[] arena;
+
+            private int length;
+
+            private int position;
+
+            @Override
+            public boolean hasNext() {
+                while (position >= length) {
+                    if (++stripe == stripes.length) {
+                        stripe--;
+                        return false;
+                    }
+                    synchronized (stripes[stripe]) {
+                        arena = stripes[stripe].arena;
+                        length = stripes[stripe].arenaLength;
+                    }
+                    position = 0;
+                }
+                return true;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int header = readHeader(arena, position);
+                int start = position + headerLength(header);
+                int idLength = header >>> 1;
+                position = start + idLength;
+
+                String id = new String(arena, start, idLength, StandardCharsets.UTF_8);
+                return (header & 1) == 0 ? PREFIX + id : id;
+            }
+        };
+    }
+
+    /**
+     * Returns the bytes allocated by the set.
+     */
+    public long memoryBytes() {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                bytes += stripe.arena.length + 4L * stripe.table.length + 64;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Describes size and memory usage of the set for logging.
+     */
+    public String describeMemory() {
+        int size = size();
+        long bytes = memoryBytes();
+        return String.format("%d patient ids in %d KiB (%.1f bytes per id)",
+                size, bytes / 1024, size == 0 ? 0.0 : (double) bytes / size);
+    }
+
+    private Stripe stripe(int hash) {
+        return stripes[hash >>> (Integer.SIZE - STRIPE_BITS)];
+    }
+
+    /**
+     * Encodes a reference as varint header (id length << 1 | 1 if the prefix was kept) and id.
+     */
+    private static byte[] encode(String reference) {
+        boolean stripped = reference.startsWith(PREFIX);
+        byte[] id = (stripped ? reference.substring(PREFIX.length()) : reference)
+                .getBytes(StandardCharsets.UTF_8);
+        int header = id.length << 1 | (stripped ? 0 : 1);
+        int headerLength = headerLength(header);
+
+        byte[] entry = new byte[headerLength + id.length];
+        for (int i = 0, value = header; i < headerLength; i++, value >>>= 7) {
+            entry[i] = (byte) (i + 1 < headerLength ? value & 0x7f | 0x80 : value);
+        }
+        System.arraycopy(id, 0, entry, headerLength, id.length);
+        return entry;
+    }
+
+    private static int headerLength(int header) {
+        int length = 1;
+        while ((header >>>= 7) != 0) {
+            length++;
+        }
+        return length;
+    }
+
+    private static int readHeader(byte[] bytes, int position) {
+        int header = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = bytes[position++];
+            header |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return header;
+            }
+        }
+    }
+
+    private static int hash(byte[] bytes, int from, int to) {
+        int hash = 0x811c9dc5;
+        for (int i = from; i < to; i++) {
+            hash = (hash ^ bytes[i]) * 0x01000193;
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        return hash ^ hash >>> 16;
+    }
+
+    private static final class Stripe {
+
+        private byte[] arena = new byte[256];
+
+        private int arenaLength;
+
+        /**
+         * Offset + 1 of the entries in the arena, 0 marks a free slot.
+         */
+        private int[] table = new int[16];
+
+        private volatile int size;
+
+        synchronized boolean add(byte[] entry, int hash) {
+            int slot = find(entry, hash);
+            if (table[slot] != 0) {
+                return false;
+            }
+
+            if (arenaLength + entry.length > arena.length) {
+                int grown = arena.length + (arena.length >> 1);
+                arena = Arrays.copyOf(arena, Math.max(grown, arenaLength + entry.length));
+            }
+            System.arraycopy(entry, 0, arena, arenaLength, entry.length);
+            table[slot] = arenaLength + 1;
+            arenaLength += entry.length;
+
+            size = size + 1;
+            if (size * 4 > table.length * 3) {
+                rehash();
+            }
+            return true;
+        }
+
+        synchronized boolean contains(byte[] entry, int hash) {
+            return table[find(entry, hash)] != 0;
+        }
+
+        private int find(byte[] entry, int hash) {
+            int mask = table.length - 1;
+            int slot = hash & mask;
+            while (table[slot] != 0 && !matches(table[slot] - 1, entry)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private boolean matches(int offset, byte[] entry) {
+            // The varint header contains the length, so equal prefixes of this length are equal entries
+            return offset + entry.length <= arenaLength
+                    && Arrays.equals(arena, offset, offset + entry.length, entry, 0, entry.length);
+        }
+
+        private void rehash() {
+            int[] newTable = new int[table.length * 2];
+            int mask = newTable.length - 1;
+            for (int position = 0; position < arenaLength; ) {
+                int header = readHeader(arena, position);
+                int end = position + headerLength(header) + (header >>> 1);
+                int slot = hash(arena, position, end) & mask;
+                while (newTable[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                newTable[slot] = position + 1;
+                position = end;
+            }
+            table = newTable;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package de.samply.samplexchange.models;
+
+/**
+ * Resource as copied from the source, without fhir model.
+ *
+ * @param resourceType type of the resource, e.g. Specimen
+ * @param id           logical id of the resource
+ * @param fullUrl      full url of the resource at the source
+ * @param json         json of the resource in UTF-8
+ */
+public record RawResource(String resourceType, String id, String fullUrl, byte[] json) {
+}
@@ -0,0 +1,39 @@
+package de.samply.samplexchange.models;
+
+/**
+ * Json class of a source server, for transfers which aggregate several sources into one target.
+ */
+public class SourceModel {
+
+    /**
+     * Name of the source in the logs and checkpoint journals.
+     */
+    public String name;
+
+    public String url;
+
+    public String username = "";
+
+    public String password = "";
+
+    /**
+     * Maximum number of concurrent requests to the source, null for the configured one.
+     */
+    public Integer maxConcurrency;
+
+    /**
+     * Constructor for json.
+     */
+    public SourceModel() {
+    }
+
+    /**
+     * Constructor.
+     */
+    public SourceModel(String name, String url, String username, String password) {
+        this.name = name;
+        this.url = url;
+        this.username = username;
+        this.password = password;
+    }
+}
@@ -0,0 +1,65 @@
+package de.samply.samplexchange.models;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The fields of a specimen which are read by the specimen mapping, extracted by the
+ * streaming parser without building the fhir model. Codes are those of the first coding.
+ */
+@Data
+public class SpecimenInput {
+
+    /**
+     * Id of the specimen, as full url with version if the bundle entry has one.
+     */
+    private String id;
+
+    private String subject;
+
+    private String typeCode;
+
+    private String collectedDateTime;
+
+    private String bodySiteSystem;
+
+    private String bodySiteCode;
+
+    private String fastingStatusSystem;
+
+    private String fastingStatusCode;
+
+    private boolean hasParent;
+
+    // bbmri.de extensions
+
+    private String storageTemperature;
+
+    /**
+     * Codings of the sample diagnosis extension.
+     */
+    private final List<Code> diagnoses = new ArrayList<>();
+
+    private String custodian;
+
+    private int unsupportedExtensions;
+
+    // MII extensions
+
+    private String conditionReference;
+
+    /**
+     * Temperature range of the storage processing step which is read last.
+     */
+    private Long storageTemperatureHigh;
+
+    private Long storageTemperatureLow;
+
+    /**
+     * Code with its system.
+     */
+    public record Code(String system, String code) {
+    }
+}
@@ -0,0 +1,155 @@
+package de.samply.samplexchange.readers;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import de.samply.samplexchange.models.PatientCompartment;
+import de.samply.samplexchange.models.SpecimenInput;
+import de.samply.samplexchange.utils.fhir.FhirTransfer;
+import de.samply.samplexchange.utils.fhir.OrderedParallelIterator;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the patient compartments for several patients at once.
+ * Each resource type is searched with the ids of a whole batch of patients and the
+ * results are sorted back into the compartments by their subject.
+ * Several batches are read concurrently by the given number of workers.
+ */
+@Slf4j
+public class BatchedCompartmentReader extends CompartmentReader {
+
+    private final FhirTransfer transferController;
+
+    private final IGenericClient client;
+
+    private final int batchSize;
+
+    private final int workers;
+
+    private Collection<String> patientIds = Collections.emptySet();
+
+    /**
+     * Constructor.
+     */
+    public BatchedCompartmentReader(
+            FhirTransfer transferController, IGenericClient client, int batchSize, int workers) {
+        this.transferController = transferController;
+        this.client = client;
+        this.batchSize = Math.max(1, batchSize);
+        this.workers = workers;
+    }
+
+    @Override
+    public int discover() {
+        patientIds = transferController.fetchPatientIds(client);
+        return patientIds.size();
+    }
+
+    @Override
+    public Collection<String> getPatientIds() {
+        return patientIds;
+    }
+
+    @Override
+    public boolean usePatientIds(Collection<String> patientIds) {
+        this.patientIds = patientIds;
+        return true;
+    }
+
+    @Override
+    public Iterator<PatientCompartment> iterator() {
+        Iterator<String> ids = patientIds.iterator();
+        Iterator<List<String>> batchIds = new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return ids.hasNext();
+            }
+
+            @Override
+            public List<String> next() {
+                List<String> batch = new ArrayList<>(batchSize);
+                while (ids.hasNext() && batch.size() < batchSize) {
+                    batch.add(ids.next());
+                }
+                return batch;
+            }
+        };
+        Iterator<Collection<PatientCompartment>> batches =
+                OrderedParallelIterator.of(batchIds, this::fetchBatch, workers);
+
+        return new Iterator<>() {
+            private Iterator<PatientCompartment> batch = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!batch.hasNext()) {
+                    if (!batches.hasNext()) {
+                        return false;
+                    }
+                    batch = batches.next().iterator();
+                }
+                return true;
+            }
+
+            @Override
+            public PatientCompartment next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return batch.next();
+            }
+        };
+    }
+
+    private Collection<PatientCompartment> fetchBatch(List<String> pids) {
+        log.debug("Loading data for {} patients", pids.size());
+        Map<String, PatientCompartment> compartments = new LinkedHashMap<>();
+        for (String pid : pids) {
+            compartments.put("Patient/" + new IdType(pid).getIdPart(), new PatientCompartment(pid));
+        }
+
+        if (transferController.getSearchPlan().includes(Patient.class)) {
+            transferController.fetchPatients(client, pids)
+                    .forEach(resource -> addToCompartment(compartments, resource));
+        }
+        transferController.fetchPatientsSpecimens(client, pids,
+                specimen -> addToCompartment(compartments, specimen),
+                resource -> addToCompartment(compartments, resource));
+        transferController.fetchPatientsResources(client, Observation.class, pids,
+                resource -> addToCompartment(compartments, resource));
+        transferController.fetchPatientsResources(client, Condition.class, pids,
+                resource -> addToCompartment(compartments, resource));
+
+        return compartments.values();
+    }
+
+    private static void addToCompartment(
+            Map<String, PatientCompartment> compartments, IBaseResource resource) {
+        PatientCompartment compartment =
+                compartments.get(PatientCompartment.patientReference(resource));
+        if (compartment != null) {
+            compartment.add(resource);
+        }
+    }
+
+    private static void addToCompartment(
+            Map<String, PatientCompartment> compartments, SpecimenInput specimen) {
+        PatientCompartment compartment =
+                compartments.get(PatientCompartment.patientReference(specimen));
+        if (compartment != null) {
+            compartment.add(specimen);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package de.samply.samplexchange.readers;
+
+import de.samply.samplexchange.models.PatientCompartment;
+
+import java.util.Collection;
+
+/**
+ * Superclass of readers which deliver the source data grouped by patient.
+ */
+public abstract class CompartmentReader implements Iterable<PatientCompartment> {
+
+    /**
+     * Discovers the patients of the source. Has to be called before iterating.
+     *
+     * @return number of discovered patients
+     */
+    public abstract int discover() throws Exception;
+
+    /**
+     * Returns the discovered patients in the order they are read,
+     * or null if the reader does not read the compartments patient by patient.
+     */
+    public Collection<String> getPatientIds() {
+        return null;
+    }
+
+    /**
+     * Reads the given patients instead of discovering them, e.g. to resume a transfer.
+     *
+     * @return false if the reader does not read the compartments patient by patient
+     */
+    public boolean usePatientIds(Collection<String> patientIds) {
+        return false;
+    }
+}
@@ -0,0 +1,183 @@
+package de.samply.samplexchange.readers;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.samply.samplexchange.utils.fhir.FhirParsers;
+import de.samply.samplexchange.utils.fhir.clients.FhirClient;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Reads the patient compartments with a FHIR Bulk Data $export.
+ * The NDJSON files are streamed line by line, the lines are grouped by patient as they are,
+ * beyond the memory budget on disk, and parsed into the fhir model patient by patient while
+ * iterating.
+ */
+@Slf4j
+public class FhirBulkExportReader extends GroupingCompartmentReader {
+
+    private static final String FHIR_JSON = "application/fhir+json";
+
+    private static final String FHIR_NDJSON = "application/fhir+ndjson";
+
+    private final FhirClient client;
+
+    private final String group;
+
+    private final String exportTypes;
+
+    private final long pollIntervalMillis;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * Constructor.
+     *
+     * @param group               id of the group to export, system level export if blank
+     * @param resourceTypes       types to export, specimens are always exported to find the patients
+     * @param pollIntervalSeconds wait time between status requests if the server sends no Retry-After
+     * @param workers             number of threads which parse the resources
+     * @param spillDirectory      directory of the spill files, null for the temp directory
+     * @param memoryBudget        bytes of resources which are kept in memory while grouping
+     */
+    public FhirBulkExportReader(FhirParsers parsers, FhirClient client, String group,
+                                Collection<String> resourceTypes, int pollIntervalSeconds,
+                                int workers, Path spillDirectory, long memoryBudget) {
+        super(parsers, resourceTypes, workers, spillDirectory, memoryBudget);
+        this.client = client;
+        this.group = group;
+        Set<String> types = new LinkedHashSet<>(resourceTypes);
+        types.add("Specimen");
+        this.exportTypes = String.join(",", types);
+        this.pollIntervalMillis = pollIntervalSeconds * 1000L;
+    }
+
+    @Override
+    public int discover() throws IOException, InterruptedException {
+        String statusUrl = kickOff();
+        JsonNode manifest = awaitManifest(statusUrl);
+        boolean requiresAccessToken = manifest.path("requiresAccessToken").asBoolean();
+
+        startGrouping();
+        for (JsonNode output : manifest.path("output")) {
+            readNdjson(output.path("url").asText(), requiresAccessToken);
+        }
+        for (JsonNode error : manifest.path("error")) {
+            log.warn("Bulk export reported errors in {}", error.path("url").asText());
+        }
+        delete(statusUrl);
+
+        int patients = finishGrouping();
+        log.info("Read {} resources from bulk export, skipped {} of other types or without patient",
+                getResourceCount(), getSkippedCount());
+        return patients;
+    }
+
+    private String kickOff() throws IOException {
+        String base = client.getClient().getServerBase().replaceAll("/+$", "");
+        String url = (group.isBlank() ? base : base + "/Group/" + group)
+                + "/$export?_type=" + exportTypes;
+
+        HttpGet request = new HttpGet(url);
+        request.setHeader(HttpHeaders.ACCEPT, FHIR_JSON);
+        request.setHeader("Prefer", "respond-async");
+        client.authorize(request);
+
+        log.info("Starting bulk export {}", url);
+        try (CloseableHttpResponse response = client.getHttpClient().execute(request)) {
+            int status = response.getStatusLine().getStatusCode();
+            if (status != HttpStatus.SC_ACCEPTED) {
+                throw new IOException("Bulk export kick-off failed with status " + status + ": "
+                        + EntityUtils.toString(response.getEntity()));
+            }
+            EntityUtils.consume(response.getEntity());
+
+            Header location = response.getFirstHeader("Content-Location");
+            if (location == null) {
+                throw new IOException("Bulk export kick-off returned no Content-Location");
+            }
+            return location.getValue();
+        }
+    }
+
+    private JsonNode awaitManifest(String statusUrl) throws IOException, InterruptedException {
+        while (true) {
+            HttpGet request = new HttpGet(statusUrl);
+            request.setHeader(HttpHeaders.ACCEPT, "application/json");
+            client.authorize(request);
+
+            long wait;
+            try (CloseableHttpResponse response = client.getHttpClient().execute(request)) {
+                int status = response.getStatusLine().getStatusCode();
+                if (status == HttpStatus.SC_OK) {
+                    return objectMapper.readTree(response.getEntity().getContent());
+                }
+                if (status != HttpStatus.SC_ACCEPTED) {
+                    throw new IOException("Bulk export failed with status " + status + ": "
+                            + EntityUtils.toString(response.getEntity()));
+                }
+                EntityUtils.consume(response.getEntity());
+
+                Header progress = response.getFirstHeader("X-Progress");
+                log.info("Bulk export in progress {}", progress == null ? "" : progress.getValue());
+                wait = retryAfter(response.getFirstHeader(HttpHeaders.RETRY_AFTER));
+            }
+            Thread.sleep(wait);
+        }
+    }
+
+    private long retryAfter(Header header) {
+        if (header != null) {
+            try {
+                return Long.parseLong(header.getValue().trim()) * 1000L;
+            } catch (NumberFormatException e) {
+                log.debug("Ignoring Retry-After {}", header.getValue());
+            }
+        }
+        return pollIntervalMillis;
+    }
+
+    private void readNdjson(String url, boolean requiresAccessToken) throws IOException {
+        HttpGet request = new HttpGet(url);
+        request.setHeader(HttpHeaders.ACCEPT, FHIR_NDJSON);
+        if (requiresAccessToken) {
+            client.authorize(request);
+        }
+
+        try (CloseableHttpResponse response = client.getHttpClient().execute(request)) {
+            int status = response.getStatusLine().getStatusCode();
+            if (status != HttpStatus.SC_OK) {
+                throw new IOException("Loading bulk export file " + url + " failed with status " + status);
+            }
+
+            long before = getResourceCount();
+            try (InputStream in = response.getEntity().getContent()) {
+                scanNdjson(in, url);
+            }
+            log.info("Loaded {} resources from bulk export file {}", getResourceCount() - before, url);
+        }
+    }
+
+    private void delete(String statusUrl) {
+        HttpDelete request = new HttpDelete(statusUrl);
+        client.authorize(request);
+        try (CloseableHttpResponse response = client.getHttpClient().execute(request)) {
+            EntityUtils.consume(response.getEntity());
+        } catch (IOException e) {
+            log.warn("Could not delete bulk export {}: {}", statusUrl, e.getMessage());
+        }
+    }
+}
@@ -2,16 +2,11 @@ package de.samply.samplexchange.readers;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
-import ca.uhn.fhir.util.BundleUtil;
+import de.samply.samplexchange.utils.fhir.FhirSearchIterable;
 import lombok.extern.slf4j.Slf4j;
-import org.hl7.fhir.instance.model.api.IBaseBundle;
-import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Condition;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
  * Reader class for fhir conditions.
  */
@@ -30,25 +25,17 @@ public class FhirConditionReader {
     /**
      * Fetches all condition resources of a patient.
      */
-    public List<IBaseResource> fetchPatientCondition(IGenericClient client, String patientId) {
-        List<IBaseResource> resourceList = new ArrayList<>();
-
-        Bundle bundle =
+    public FhirSearchIterable<Condition> fetchPatientCondition(
+            IGenericClient client, String patientId) {
+        return new FhirSearchIterable<>(
+                ctx,
+                client,
                 client
                         .search()
                         .forResource(Condition.class)
                         .where(Condition.SUBJECT.hasId(patientId))
-                        .returnBundle(Bundle.class)
-                        .execute();
-
-        resourceList.addAll(BundleUtil.toListOfResources(ctx, bundle));
-
-        while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-            bundle = client.loadPage().next(bundle).execute();
-            resourceList.addAll(BundleUtil.toListOfResources(ctx, bundle));
-        }
-
-        return resourceList;
+                        .returnBundle(Bundle.class),
+                Condition.class);
     }
 
 
@@ -2,16 +2,11 @@ package de.samply.samplexchange.readers;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
-import ca.uhn.fhir.util.BundleUtil;
+import de.samply.samplexchange.utils.fhir.FhirSearchIterable;
 import lombok.extern.slf4j.Slf4j;
-import org.hl7.fhir.instance.model.api.IBaseBundle;
-import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.OrganizationAffiliation;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
  * Reader class for fhir Organizations.
  */
@@ -30,23 +25,13 @@ public class FhirOrganizationReader {
     /**
      * Fetches all organizations affiliation resources.
      */
-    public List<IBaseResource> fetchOrganizationAffiliation(IGenericClient client) {
-        List<IBaseResource> resourceList = new ArrayList<>();
-
-        Bundle bundle =
-                client
-                        .search()
-                        .forResource(OrganizationAffiliation.class)
-                        .returnBundle(Bundle.class)
-                        .execute();
-
-        resourceList.addAll(BundleUtil.toListOfResources(ctx, bundle));
-
-        while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-            bundle = client.loadPage().next(bundle).execute();
-            resourceList.addAll(BundleUtil.toListOfResources(ctx, bundle));
-        }
-        return resourceList;
+    public FhirSearchIterable<OrganizationAffiliation> fetchOrganizationAffiliation(
+            IGenericClient client) {
+        return new FhirSearchIterable<>(
+                ctx,
+                client,
+                client.search().forResource(OrganizationAffiliation.class).returnBundle(Bundle.class),
+                OrganizationAffiliation.class);
     }
 
 
@@ -2,15 +2,13 @@ package de.samply.samplexchange.readers;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import de.samply.samplexchange.models.PatientIdSet;
 import lombok.extern.slf4j.Slf4j;
-import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Patient;
-import org.hl7.fhir.r4.model.Specimen;
 
-import java.util.HashSet;
-import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Reader class for fhir Patients.
@@ -21,15 +19,17 @@ public class FhirPatientIdReader {
 
     FhirContext ctx;
 
-    FhirSpecimenReader fhirSpecimenReader = new FhirSpecimenReader(ctx);
+    FhirSpecimenReader fhirSpecimenReader;
 
-    FhirResourceReader fhirResourceReader = new FhirResourceReader(ctx);
+    FhirResourceReader fhirResourceReader;
 
     /**
      * Constructor.
      */
     public FhirPatientIdReader(FhirContext ctx) {
         this.ctx = ctx;
+        this.fhirSpecimenReader = new FhirSpecimenReader(ctx);
+        this.fhirResourceReader = new FhirResourceReader(ctx);
     }
 
     /**
@@ -47,22 +47,24 @@ public class FhirPatientIdReader {
      * Fetches all patient ids which have a specimen.
      */
     public Set<String> getSpecimenPatients(IGenericClient sourceClient) {
-        List<IBaseResource> specimens = fhirSpecimenReader.fetchSpecimenResources(sourceClient);
-        HashSet<String> patientRefs = new HashSet<>();
-        for (IBaseResource specimen : specimens) {
-            Specimen s = (Specimen) specimen;
-            patientRefs.add(s.getSubject().getReference());
-        }
+        PatientIdSet patientRefs = new PatientIdSet();
+        AtomicInteger specimenCount = new AtomicInteger();
+        fhirSpecimenReader.fetchSpecimenSubjects(sourceClient).forEach(specimen -> {
+            if (specimen.getSubject().hasReference()) {
+                patientRefs.add(specimen.getSubject().getReference());
+            }
+            specimenCount.incrementAndGet();
+        });
+        log.info("Loaded " + specimenCount.get() + " Specimen Resources from source");
+        log.info("Discovered " + patientRefs.describeMemory());
         return patientRefs;
     }
 
-    private HashSet<String> getPatientRefs(IGenericClient sourceClient) {
-        List<Patient> patients = fhirResourceReader.fetchResources(Patient.class, sourceClient);
-        HashSet<String> patientRefs = new HashSet<>();
+    private Set<String> getPatientRefs(IGenericClient sourceClient) {
+        PatientIdSet patientRefs = new PatientIdSet();
 
-        for (IBaseResource patient : patients) {
-            patientRefs.add(patient.getIdElement().getValue());
-        }
+        fhirResourceReader.fetchResources(Patient.class, sourceClient)
+                .forEach(patient -> patientRefs.add(patient.getIdElement().getValue()));
         return patientRefs;
     }
 
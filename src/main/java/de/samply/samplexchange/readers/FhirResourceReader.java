@@ -2,15 +2,11 @@ package de.samply.samplexchange.readers;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
-import ca.uhn.fhir.util.BundleUtil;
+import de.samply.samplexchange.utils.fhir.FhirSearchIterable;
 import lombok.extern.slf4j.Slf4j;
-import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
  * Reader class for fhir resources.
  */
@@ -29,24 +25,13 @@ public class FhirResourceReader {
     /**
      * Fetches all resources of type T.
      */
-    public <T extends IBaseResource> List<T> fetchResources(
+    public <T extends IBaseResource> FhirSearchIterable<T> fetchResources(
             Class<T> resourceType, IGenericClient client) {
-        // Search
-        Bundle bundle =
-                client.search().forResource(resourceType).returnBundle(Bundle.class).count(500).execute();
-        List<T> resourceList =
-                new ArrayList<>(BundleUtil.toListOfResourcesOfType(ctx, bundle, resourceType));
-
-        // Load the subsequent pages
-        while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-            bundle = client.loadPage().next(bundle).execute();
-            resourceList.addAll(BundleUtil.toListOfResourcesOfType(ctx, bundle, resourceType));
-            log.debug("Fetching next page of " + resourceType.getName());
-        }
-        log.info(
-                "Loaded " + resourceList.size() + " " + resourceType.getName() + " Resources from source");
-
-        return resourceList;
+        return new FhirSearchIterable<>(
+                ctx,
+                client,
+                client.search().forResource(resourceType).returnBundle(Bundle.class).count(500),
+                resourceType);
     }
 
     /**
@@ -2,16 +2,13 @@ package de.samply.samplexchange.readers;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
-import ca.uhn.fhir.util.BundleUtil;
+import de.samply.samplexchange.utils.fhir.FhirSearchIterable;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
-import org.hl7.fhir.instance.model.api.IBaseBundle;
-import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Specimen;
 
-import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
 
 /**
@@ -22,6 +19,12 @@ public class FhirSpecimenReader {
 
     FhirContext ctx;
 
+    /**
+     * Number of pages which are requested ahead in the specimen scan.
+     */
+    @Setter
+    int prefetchDepth;
+
     public FhirSpecimenReader(FhirContext ctx) {
         this.ctx = ctx;
     }
@@ -29,66 +32,53 @@ public class FhirSpecimenReader {
     /**
      * Fetches all specimen resources.
      */
-    public List<IBaseResource> fetchSpecimenResources(IGenericClient client) {
-
-        List<IBaseResource> resourceList = new ArrayList<>();
-
-        // Search
-        Bundle bundle =
-                client.search().forResource(Specimen.class).returnBundle(Bundle.class).count(500).execute();
-        resourceList.addAll(BundleUtil.toListOfResources(ctx, bundle));
-
-        // Load the subsequent pages
-        while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-            bundle = client.loadPage().next(bundle).execute();
-            resourceList.addAll(BundleUtil.toListOfResources(ctx, bundle));
-            log.debug("Fetching next page of Specimen");
-        }
-        log.info("Loaded " + resourceList.size() + " Specimen Resources from source");
+    public FhirSearchIterable<Specimen> fetchSpecimenResources(IGenericClient client) {
+        return new FhirSearchIterable<>(
+                ctx,
+                client,
+                client.search().forResource(Specimen.class).returnBundle(Bundle.class).count(500),
+                Specimen.class,
+                prefetchDepth);
+    }
 
-        return resourceList;
+    /**
+     * Fetches all specimen resources, reduced to their subject.
+     */
+    public FhirSearchIterable<Specimen> fetchSpecimenSubjects(IGenericClient client) {
+        return new FhirSearchIterable<>(
+                ctx,
+                client,
+                client
+                        .search()
+                        .forResource(Specimen.class)
+                        .elementsSubset("subject")
+                        .returnBundle(Bundle.class)
+                        .count(500),
+                Specimen.class,
+                prefetchDepth);
     }
 
     /**
      * Fetches all patient specimen resources.
      */
-    public List<Specimen> fetchPatientSpecimens(IGenericClient client, String patientId) {
-        List<IBaseResource> resourceList = new ArrayList<>();
-
-        Bundle bundle =
+    public FhirSearchIterable<Specimen> fetchPatientSpecimens(IGenericClient client, String patientId) {
+        return new FhirSearchIterable<>(
+                ctx,
+                client,
                 client
                         .search()
                         .forResource(Specimen.class)
                         .where(Specimen.SUBJECT.hasId(patientId))
-                        .returnBundle(Bundle.class)
-                        .execute();
-
-        resourceList.addAll(BundleUtil.toListOfResources(ctx, bundle));
-
-        while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-            bundle = client.loadPage().next(bundle).execute();
-            resourceList.addAll(BundleUtil.toListOfResources(ctx, bundle));
-        }
-
-        List<Specimen> specimens = new ArrayList<>();
-
-        for (IBaseResource resource : resourceList) {
-            specimens.add((Specimen) resource);
-        }
-
-        return specimens;
+                        .returnBundle(Bundle.class),
+                Specimen.class);
     }
 
     /**
      * Fetches all specimen ids which have an associated patient.
      */
     public Set<String> getSpecimenIds(IGenericClient sourceClient) {
-        List<IBaseResource> specimens = fetchSpecimenResources(sourceClient);
         HashSet<String> specimenRefs = new HashSet<>();
-        for (IBaseResource specimen : specimens) {
-            Specimen s = (Specimen) specimen;
-            specimenRefs.add(s.getId());
-        }
+        fetchSpecimenResources(sourceClient).forEach(specimen -> specimenRefs.add(specimen.getId()));
         return specimenRefs;
     }
 
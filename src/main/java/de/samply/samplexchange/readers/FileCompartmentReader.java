@@ -0,0 +1,269 @@
+package de.samply.samplexchange.readers;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import de.samply.samplexchange.utils.fhir.FhirParsers;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the patient compartments from NDJSON files (.ndjson) and Bundle files (.json) in a
+ * directory, each optionally gzipped (.gz), instead of a fhir server.
+ * The files are scanned concurrently, uncompressed NDJSON files in memory mapped parts which
+ * start at line boundaries. The scan only extracts the type and patient of every resource and
+ * groups the json by patient, beyond the memory budget on disk. The resources are parsed into
+ * the fhir model patient by patient while iterating.
+ */
+@Slf4j
+public class FileCompartmentReader extends GroupingCompartmentReader {
+
+    /**
+     * Default size of the parts of uncompressed NDJSON files which are scanned concurrently.
+     */
+    private static final long CHUNK_SIZE = 64L * 1024 * 1024;
+
+    private static final String GZIP = ".gz";
+
+    private final Path directory;
+
+    private final int workers;
+
+    private final long chunkSize;
+
+    /**
+     * Constructor.
+     *
+     * @param resourceTypes  types to read, specimens are always read to find the patients
+     * @param workers        number of threads which scan the files and parse the resources
+     * @param spillDirectory directory of the spill files, null for the temp directory
+     * @param memoryBudget   bytes of resources which are kept in memory while grouping
+     */
+    public FileCompartmentReader(FhirParsers parsers, Path directory, Collection<String> resourceTypes,
+                                 int workers, Path spillDirectory, long memoryBudget) {
+        this(parsers, directory, resourceTypes, workers, spillDirectory, memoryBudget, CHUNK_SIZE);
+    }
+
+    /**
+     * Constructor with the size of the parts of uncompressed NDJSON files.
+     */
+    FileCompartmentReader(FhirParsers parsers, Path directory, Collection<String> resourceTypes,
+                          int workers, Path spillDirectory, long memoryBudget, long chunkSize) {
+        super(parsers, resourceTypes, workers, spillDirectory, memoryBudget);
+        this.directory = directory;
+        this.workers = Math.max(1, workers);
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public int discover() throws IOException, InterruptedException {
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(directory)) {
+            files = paths.filter(Files::isRegularFile)
+                    .filter(file -> isNdjson(file) || isBundle(file))
+                    .sorted()
+                    .toList();
+        }
+        if (files.isEmpty()) {
+            log.warn("No .ndjson or .json files found in {}", directory);
+        }
+
+        startGrouping();
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (Path file : files) {
+            if (isNdjson(file) && !file.toString().endsWith(GZIP)) {
+                tasks.addAll(ndjsonParts(file));
+            } else if (isNdjson(file)) {
+                tasks.add(() -> scanCompressedNdjson(file));
+            } else {
+                tasks.add(() -> scanBundle(file));
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "file-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (Future<Void> task : executor.invokeAll(tasks)) {
+                task.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        int patients = finishGrouping();
+
+        log.info("Read {} resources of {} files in {} parts from {} in {} ms, skipped {} of other types "
+                        + "or without patient", getResourceCount(), files.size(), tasks.size(), directory,
+                System.currentTimeMillis() - start, getSkippedCount());
+        return patients;
+    }
+
+    /**
+     * Splits an NDJSON file into parts which start at line boundaries.
+     */
+    private List<Callable<Void>> ndjsonParts(Path file) throws IOException {
+        List<Long> starts = new ArrayList<>(List.of(0L));
+        long size = Files.size(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (long position = chunkSize; position < size; position += chunkSize) {
+                long start = nextLine(channel, Math.max(position, starts.get(starts.size() - 1)), size);
+                if (start < size) {
+                    starts.add(start);
+                }
+            }
+        }
+        starts.add(size);
+
+        List<Callable<Void>> parts = new ArrayList<>();
+        for (int i = 0; i + 1 < starts.size(); i++) {
+            long start = starts.get(i);
+            long end = starts.get(i + 1);
+            parts.add(() -> scanNdjson(file, start, end));
+        }
+        return parts;
+    }
+
+    /**
+     * Returns the position after the next line break, the size if there is none.
+     */
+    private static long nextLine(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private Void scanNdjson(Path file, long start, long end) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            int lineStart = 0;
+            int limit = buffer.limit();
+            for (int i = 0; i <= limit; i++) {
+                if (i == limit || buffer.get(i) == '\n') {
+                    if (i > lineStart) {
+                        byte[] line = new byte[i - lineStart];
+                        buffer.get(lineStart, line);
+                        scanLine(line, file.toString());
+                    }
+                    lineStart = i + 1;
+                }
+            }
+        }
+        return null;
+    }
+
+    private Void scanCompressedNdjson(Path file) throws IOException {
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file), 1 << 16)) {
+            scanNdjson(in, file.toString());
+        }
+        return null;
+    }
+
+    /**
+     * Scans the entries of a Bundle file, or a file with a single resource.
+     * The json of the resources is taken from the file as it is.
+     */
+    private Void scanBundle(Path file) throws IOException {
+        byte[] json;
+        if (file.toString().endsWith(GZIP)) {
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(file), 1 << 16)) {
+                json = in.readAllBytes();
+            }
+        } else {
+            json = Files.readAllBytes(file);
+        }
+
+        String resourceType = null;
+        try (JsonParser parser = JSON.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException(file + " is not a json object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                if (field.equals("resourceType")) {
+                    resourceType = parser.getValueAsString();
+                } else if (field.equals("entry") && parser.currentToken() == JsonToken.START_ARRAY) {
+                    scanEntries(parser, json);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        if (!"Bundle".equals(resourceType)) {
+            try (JsonParser parser = JSON.createParser(json)) {
+                parser.nextToken();
+                add(readHeader(parser), json);
+            }
+        }
+        return null;
+    }
+
+    private void scanEntries(JsonParser parser, byte[] json) throws IOException {
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                if (field.equals("resource") && parser.currentToken() == JsonToken.START_OBJECT) {
+                    int start = (int) parser.currentTokenLocation().getByteOffset();
+                    ResourceHeader header = readHeader(parser);
+                    int end = (int) parser.currentLocation().getByteOffset();
+                    add(header, Arrays.copyOfRange(json, start, end));
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    private static boolean isNdjson(Path file) {
+        String name = file.getFileName().toString();
+        return name.endsWith(".ndjson") || name.endsWith(".ndjson" + GZIP);
+    }
+
+    private static boolean isBundle(Path file) {
+        String name = file.getFileName().toString();
+        return name.endsWith(".json") || name.endsWith(".json" + GZIP);
+    }
+}
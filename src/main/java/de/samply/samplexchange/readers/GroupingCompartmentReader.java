@@ -0,0 +1,261 @@
+package de.samply.samplexchange.readers;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import de.samply.samplexchange.models.PatientCompartment;
+import de.samply.samplexchange.models.PatientIdSet;
+import de.samply.samplexchange.utils.fhir.ExternalGrouper;
+import de.samply.samplexchange.utils.fhir.FhirParsers;
+import de.samply.samplexchange.utils.fhir.OrderedParallelIterator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Superclass of readers which group the json of the resources by patient, beyond the memory
+ * budget on disk. Reading a resource only extracts its type and patient, the resources are parsed
+ * into the fhir model patient by patient while iterating.
+ */
+abstract class GroupingCompartmentReader extends CompartmentReader {
+
+    protected static final JsonFactory JSON = new JsonFactory();
+
+    private final FhirParsers parsers;
+
+    private final Set<String> resourceTypes;
+
+    private final int workers;
+
+    private final Path spillDirectory;
+
+    private final long memoryBudget;
+
+    private final LongAdder resources = new LongAdder();
+
+    private final LongAdder skipped = new LongAdder();
+
+    private ExternalGrouper grouper;
+
+    /**
+     * Patients with specimens, only they are transferred.
+     */
+    private PatientIdSet patients = new PatientIdSet();
+
+    /**
+     * Constructor.
+     *
+     * @param resourceTypes  types to read, specimens are always read to find the patients
+     * @param workers        number of threads which parse the resources
+     * @param spillDirectory directory of the spill files, null for the temp directory
+     * @param memoryBudget   bytes of resources which are kept in memory while grouping
+     */
+    protected GroupingCompartmentReader(FhirParsers parsers, Collection<String> resourceTypes,
+                                        int workers, Path spillDirectory, long memoryBudget) {
+        this.parsers = parsers;
+        this.resourceTypes = new LinkedHashSet<>(resourceTypes);
+        this.resourceTypes.add("Specimen");
+        this.workers = Math.max(1, workers);
+        this.spillDirectory = spillDirectory;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Drops the resources of a previous discovery and starts grouping.
+     */
+    protected void startGrouping() {
+        closeGrouper();
+        grouper = new ExternalGrouper(spillDirectory, memoryBudget);
+        patients = new PatientIdSet();
+        resources.reset();
+        skipped.reset();
+    }
+
+    /**
+     * Ends grouping.
+     *
+     * @return number of patients with specimens, only they are transferred as in the search
+     *     based discovery
+     */
+    protected int finishGrouping() {
+        grouper.finish();
+        return patients.size();
+    }
+
+    protected long getResourceCount() {
+        return resources.sum();
+    }
+
+    protected long getSkippedCount() {
+        return skipped.sum();
+    }
+
+    @Override
+    public Iterator<PatientCompartment> iterator() {
+        Iterator<ExternalGrouper.Group> groups = grouper.groups();
+        Iterator<ExternalGrouper.Group> withSpecimens = new Iterator<>() {
+            private ExternalGrouper.Group next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && groups.hasNext()) {
+                    ExternalGrouper.Group group = groups.next();
+                    if (patients.contains(group.key())) {
+                        next = group;
+                    }
+                }
+                if (next == null) {
+                    closeGrouper();
+                }
+                return next != null;
+            }
+
+            @Override
+            public ExternalGrouper.Group next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ExternalGrouper.Group group = next;
+                next = null;
+                return group;
+            }
+        };
+        return OrderedParallelIterator.of(withSpecimens, this::parse, workers);
+    }
+
+    private PatientCompartment parse(ExternalGrouper.Group group) {
+        PatientCompartment compartment = new PatientCompartment(group.key());
+        for (byte[] json : group.values()) {
+            compartment.add(parsers.parse(new String(json, StandardCharsets.UTF_8)));
+        }
+        return compartment;
+    }
+
+    /**
+     * Reads the lines of an NDJSON stream and adds every resource.
+     *
+     * @param source name of the stream for error messages
+     */
+    protected void scanNdjson(InputStream in, String source) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        ByteArrayOutputStream line = new ByteArrayOutputStream(4096);
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            int lineStart = 0;
+            for (int i = 0; i < read; i++) {
+                if (buffer[i] == '\n') {
+                    line.write(buffer, lineStart, i - lineStart);
+                    scanLine(line.toByteArray(), source);
+                    line.reset();
+                    lineStart = i + 1;
+                }
+            }
+            line.write(buffer, lineStart, read - lineStart);
+        }
+        if (line.size() > 0) {
+            scanLine(line.toByteArray(), source);
+        }
+    }
+
+    /**
+     * Adds the resource of an NDJSON line, blank lines are ignored.
+     *
+     * @param source name of the file for error messages
+     */
+    protected void scanLine(byte[] line, String source) throws IOException {
+        try (JsonParser parser = JSON.createParser(line)) {
+            JsonToken token = parser.nextToken();
+            if (token == null) {
+                // Blank line
+                return;
+            }
+            if (token != JsonToken.START_OBJECT) {
+                throw new IOException("Line of " + source + " is not a json object");
+            }
+            add(readHeader(parser), line);
+        }
+    }
+
+    /**
+     * Reads type, id and subject of the resource object the parser is at, and skips the rest.
+     */
+    protected static ResourceHeader readHeader(JsonParser parser) throws IOException {
+        String resourceType = null;
+        String id = null;
+        String subject = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "resourceType" -> resourceType = parser.getValueAsString();
+                case "id" -> id = parser.getValueAsString();
+                case "subject" -> subject = readReference(parser);
+                default -> parser.skipChildren();
+            }
+        }
+        return new ResourceHeader(resourceType, id, subject);
+    }
+
+    private static String readReference(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return null;
+        }
+        String reference = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if (field.equals("reference")) {
+                reference = parser.getValueAsString();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return reference;
+    }
+
+    /**
+     * Adds the json of a resource to the group of its patient. Resources of other types or
+     * without patient are skipped.
+     */
+    protected void add(ResourceHeader header, byte[] json) {
+        if (header.resourceType() == null || !resourceTypes.contains(header.resourceType())) {
+            skipped.increment();
+            return;
+        }
+        String patient = header.resourceType().equals("Patient")
+                ? (header.id() == null ? null : "Patient/" + header.id())
+                : PatientCompartment.patientReference(header.subject());
+        if (patient == null) {
+            skipped.increment();
+            return;
+        }
+        grouper.add(patient, json);
+        if (header.resourceType().equals("Specimen")) {
+            patients.add(patient);
+        }
+        resources.increment();
+    }
+
+    protected synchronized void closeGrouper() {
+        if (grouper != null) {
+            grouper.close();
+            grouper = null;
+        }
+    }
+
+    /**
+     * Type, id and subject reference of a resource.
+     */
+    protected record ResourceHeader(String resourceType, String id, String subject) {
+    }
+}
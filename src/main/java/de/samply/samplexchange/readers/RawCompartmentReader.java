@@ -0,0 +1,64 @@
+package de.samply.samplexchange.readers;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import de.samply.samplexchange.models.PatientCompartment;
+import de.samply.samplexchange.utils.fhir.FhirTransfer;
+import de.samply.samplexchange.utils.fhir.RawSearchReader;
+import de.samply.samplexchange.utils.fhir.SearchPlan;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Specimen;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads the patient compartments like the {@link SearchCompartmentReader}, but copies the json
+ * of the resources without fhir model, for transfers which do not map the resources.
+ */
+@Slf4j
+public class RawCompartmentReader extends SearchCompartmentReader {
+
+    private static final List<Class<? extends IBaseResource>> SEARCHED_TYPES =
+            List.of(Specimen.class, Observation.class, Condition.class);
+
+    private final RawSearchReader rawReader;
+
+    /**
+     * Constructor.
+     */
+    public RawCompartmentReader(FhirTransfer transferController, IGenericClient client, int workers,
+                                RawSearchReader rawReader) {
+        super(transferController, client, workers);
+        this.rawReader = rawReader;
+    }
+
+    @Override
+    protected PatientCompartment fetchCompartment(String pid) {
+        log.debug("Copying data of patient " + pid);
+        PatientCompartment compartment = new PatientCompartment(pid);
+        SearchPlan searchPlan = transferController.getSearchPlan();
+
+        if (searchPlan.includes(Patient.class)) {
+            compartment.add(rawReader.read(pid));
+        }
+        for (Class<? extends IBaseResource> resourceType : SEARCHED_TYPES) {
+            List<Map<String, List<String>>> searches = searchPlan.searches(resourceType);
+            // Resources can match several searches of a type
+            Set<String> ids = searches.size() > 1 ? new HashSet<>() : null;
+            for (Map<String, List<String>> filter : searches) {
+                rawReader.search(resourceType.getSimpleName(), pid, filter,
+                        transferController.getPageSize(resourceType.getSimpleName()),
+                        page -> page.stream()
+                                .filter(resource -> ids == null || ids.add(resource.id()))
+                                .forEach(compartment::add));
+            }
+        }
+        return compartment;
+    }
+}
@@ -0,0 +1,113 @@
+package de.samply.samplexchange.readers;
+
+import de.samply.samplexchange.models.PatientCompartment;
+import de.samply.samplexchange.utils.fhir.CheckpointJournal;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Records the transfer of another reader in a checkpoint journal, resumes it from the journal
+ * and stops handing out compartments once a shutdown was requested.
+ * Without journal only the shutdown handling is active.
+ */
+@Slf4j
+public class ResumableCompartmentReader extends CompartmentReader {
+
+    private final CompartmentReader reader;
+
+    private CheckpointJournal journal;
+
+    private volatile boolean stopped;
+
+    private volatile int patientCount;
+
+    /**
+     * Constructor.
+     *
+     * @param journal journal of the transfer, null to disable checkpointing
+     */
+    public ResumableCompartmentReader(CompartmentReader reader, CheckpointJournal journal) {
+        this.reader = reader;
+        this.journal = journal;
+    }
+
+    @Override
+    public int discover() throws Exception {
+        if (journal != null && journal.isResumable()) {
+            Collection<String> remaining = journal.remainingPatientIds();
+            if (reader.usePatientIds(remaining)) {
+                log.info("Skipping discovery, {} patients remain from the interrupted transfer",
+                        remaining.size());
+                patientCount = remaining.size();
+                return patientCount;
+            }
+        }
+
+        patientCount = reader.discover();
+        if (journal != null) {
+            Collection<String> patientIds = reader.getPatientIds();
+            if (patientIds == null) {
+                log.warn("Checkpoints are not supported by this source mode");
+                journal = null;
+            } else {
+                journal.start(patientIds);
+            }
+        }
+        return patientCount;
+    }
+
+    /**
+     * Stops handing out compartments, the compartment returned last is still transferred.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Returns whether the transfer was stopped before all compartments were handed out.
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Returns the number of patients of the transfer, 0 before the discovery.
+     */
+    public int getPatientCount() {
+        return patientCount;
+    }
+
+    /**
+     * Returns the journal of the transfer, null if checkpointing is disabled.
+     */
+    public CheckpointJournal getJournal() {
+        return journal;
+    }
+
+    @Override
+    public Iterator<PatientCompartment> iterator() {
+        Iterator<PatientCompartment> compartments = reader.iterator();
+
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                if (stopped) {
+                    log.info("Transfer stopped, no further patients are read");
+                    return false;
+                }
+                return compartments.hasNext();
+            }
+
+            @Override
+            public PatientCompartment next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return compartments.next();
+            }
+        };
+    }
+}
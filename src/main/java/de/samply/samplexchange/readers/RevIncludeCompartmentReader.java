@@ -0,0 +1,32 @@
+package de.samply.samplexchange.readers;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import de.samply.samplexchange.models.PatientCompartment;
+import de.samply.samplexchange.utils.fhir.FhirTransfer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Reads each patient compartment with a single search, using _revinclude for
+ * the specimens, conditions and observations of the patient.
+ */
+@Slf4j
+public class RevIncludeCompartmentReader extends SearchCompartmentReader {
+
+    /**
+     * Constructor.
+     */
+    public RevIncludeCompartmentReader(
+            FhirTransfer transferController, IGenericClient client, int workers) {
+        super(transferController, client, workers);
+    }
+
+    @Override
+    protected PatientCompartment fetchCompartment(String pid) {
+        log.debug("Loading compartment of patient " + pid);
+        PatientCompartment compartment = new PatientCompartment(pid);
+
+        transferController.fetchPatientCompartment(client, pid).forEach(compartment::add);
+
+        return compartment;
+    }
+}
@@ -0,0 +1,88 @@
+package de.samply.samplexchange.readers;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import de.samply.samplexchange.models.PatientCompartment;
+import de.samply.samplexchange.utils.fhir.FhirTransfer;
+import de.samply.samplexchange.utils.fhir.OrderedParallelIterator;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Reads the patient compartments with one read and a search per resource type and patient.
+ * The compartments of several patients are read concurrently by the given number of workers.
+ */
+@Slf4j
+public class SearchCompartmentReader extends CompartmentReader {
+
+    protected final FhirTransfer transferController;
+
+    protected final IGenericClient client;
+
+    private final int workers;
+
+    private Collection<String> patientIds = Collections.emptySet();
+
+    /**
+     * Constructor.
+     */
+    public SearchCompartmentReader(FhirTransfer transferController, IGenericClient client, int workers) {
+        this.transferController = transferController;
+        this.client = client;
+        this.workers = workers;
+    }
+
+    @Override
+    public int discover() {
+        patientIds = transferController.fetchPatientIds(client);
+        return patientIds.size();
+    }
+
+    @Override
+    public Collection<String> getPatientIds() {
+        return patientIds;
+    }
+
+    @Override
+    public boolean usePatientIds(Collection<String> patientIds) {
+        this.patientIds = patientIds;
+        return true;
+    }
+
+    @Override
+    public Iterator<PatientCompartment> iterator() {
+        return compartments(patientIds.iterator());
+    }
+
+    /**
+     * Reads the compartments of the given patients with the workers of the reader.
+     */
+    protected Iterator<PatientCompartment> compartments(Iterator<String> patientIds) {
+        return OrderedParallelIterator.of(patientIds, this::fetchCompartment, workers);
+    }
+
+    protected PatientCompartment fetchCompartment(String pid) {
+        log.debug("Loading data for patient " + pid);
+        PatientCompartment compartment = new PatientCompartment(pid);
+
+        if (transferController.getSearchPlan().includes(Patient.class)) {
+            compartment.setPatient(transferController.fetchResource(client, Patient.class, pid));
+        }
+        fetchSpecimens(compartment);
+        transferController.fetchPatientsResources(client, Observation.class, List.of(pid), compartment::add);
+        transferController.fetchPatientsResources(client, Condition.class, List.of(pid), compartment::add);
+
+        return compartment;
+    }
+
+    protected void fetchSpecimens(PatientCompartment compartment) {
+        transferController.fetchPatientsSpecimens(
+                client, List.of(compartment.getPatientId()), compartment::add, compartment::add);
+    }
+}
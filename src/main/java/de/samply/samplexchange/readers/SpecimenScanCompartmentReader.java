@@ -0,0 +1,162 @@
+package de.samply.samplexchange.readers;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import com.fasterxml.jackson.core.JsonParser;
+import de.samply.samplexchange.models.PatientCompartment;
+import de.samply.samplexchange.utils.fhir.ExternalGrouper;
+import de.samply.samplexchange.utils.fhir.FhirParsers;
+import de.samply.samplexchange.utils.fhir.FhirTransfer;
+import de.samply.samplexchange.utils.fhir.RawSearchReader;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.r4.model.Specimen;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads the patient compartments with a single scan of all specimens, which are grouped by
+ * their subject. Only the patient, conditions and observations are searched per patient.
+ * The json of the specimens is taken from the search pages as it is, kept within a memory budget
+ * and spilled to disk beyond it. The groups are read back in patient order while the compartments
+ * are read, only then the specimens are parsed into the fhir model.
+ * Incremental and resumed transfers do not scan, they search the specimens per patient.
+ */
+@Slf4j
+public class SpecimenScanCompartmentReader extends SearchCompartmentReader {
+
+    private final FhirParsers parsers;
+
+    private final RawSearchReader scanReader;
+
+    private final Path spillDirectory;
+
+    private final long memoryBudget;
+
+    /**
+     * Specimens of the scan grouped by patient reference, null without scan.
+     */
+    private ExternalGrouper grouper;
+
+    /**
+     * Groups which were handed out to the workers and not yet read by them.
+     */
+    private final Map<String, List<byte[]>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param scanReader     reads the json of the specimens in the scan
+     * @param spillDirectory directory of the spill files, null for the temp directory
+     * @param memoryBudget   bytes of specimens which are kept in memory
+     */
+    public SpecimenScanCompartmentReader(FhirTransfer transferController, IGenericClient client, int workers,
+                                         FhirParsers parsers, RawSearchReader scanReader,
+                                         Path spillDirectory, long memoryBudget) {
+        super(transferController, client, workers);
+        this.parsers = parsers;
+        this.scanReader = scanReader;
+        this.spillDirectory = spillDirectory;
+        this.memoryBudget = memoryBudget;
+    }
+
+    @Override
+    public int discover() {
+        if (transferController.getChangedSince() != null) {
+            log.info("Searching the specimens per patient in the incremental transfer");
+            closeGrouper();
+            return super.discover();
+        }
+
+        closeGrouper();
+        ExternalGrouper scanned = new ExternalGrouper(spillDirectory, memoryBudget);
+        try {
+            transferController.fetchAllSpecimens(client, scanReader, specimen -> {
+                String reference = PatientCompartment.patientReference(subject(specimen.json()));
+                if (reference != null) {
+                    scanned.add(reference, specimen.json());
+                }
+            });
+        } catch (RuntimeException e) {
+            scanned.close();
+            throw e;
+        }
+        int patientCount = scanned.finish();
+
+        grouper = scanned;
+        super.usePatientIds(scanned.keys());
+        return patientCount;
+    }
+
+    @Override
+    public boolean usePatientIds(Collection<String> patientIds) {
+        closeGrouper();
+        return super.usePatientIds(patientIds);
+    }
+
+    @Override
+    public Iterator<PatientCompartment> iterator() {
+        if (grouper == null) {
+            return super.iterator();
+        }
+        // The groups are read in the calling thread in patient order and taken over by the workers
+        Iterator<ExternalGrouper.Group> groups = grouper.groups();
+        return compartments(new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                if (groups.hasNext()) {
+                    return true;
+                }
+                closeGrouper();
+                return false;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ExternalGrouper.Group group = groups.next();
+                pending.put(group.key(), group.values());
+                return group.key();
+            }
+        });
+    }
+
+    @Override
+    protected void fetchSpecimens(PatientCompartment compartment) {
+        List<byte[]> group = pending.remove(compartment.getPatientId());
+        if (group == null) {
+            super.fetchSpecimens(compartment);
+            return;
+        }
+        if (transferController.getSearchPlan().includes(Specimen.class)) {
+            for (byte[] specimen : group) {
+                compartment.add(parsers.parse(Specimen.class, new String(specimen, StandardCharsets.UTF_8)));
+            }
+        }
+    }
+
+    private static String subject(byte[] json) {
+        try (JsonParser parser = GroupingCompartmentReader.JSON.createParser(json)) {
+            parser.nextToken();
+            return GroupingCompartmentReader.readHeader(parser).subject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private synchronized void closeGrouper() {
+        if (grouper != null) {
+            grouper.close();
+            grouper = null;
+        }
+    }
+}
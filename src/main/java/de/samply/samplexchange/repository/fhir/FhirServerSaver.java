@@ -1,15 +1,36 @@
 package de.samply.samplexchange.repository.fhir;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import de.samply.samplexchange.models.RawResource;
 import de.samply.samplexchange.utils.fhir.FhirExportInterface;
+import de.samply.samplexchange.utils.fhir.clients.ConnectionSettings;
 import de.samply.samplexchange.utils.fhir.clients.FhirClient;
+import lombok.AccessLevel;
 import lombok.Getter;
+import de.samply.samplexchange.writers.fhir.RawBundleWriter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
 import org.hl7.fhir.r4.model.Bundle;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 /**
@@ -25,21 +46,123 @@ public class FhirServerSaver extends FhirExportInterface {
      */
     private final FhirClient client;
 
+    /**
+     * -- GETTER --
+     * Number of transactions which are sent concurrently.
+     */
+    private final int workers;
+
+    private static final ContentType FHIR_JSON = ContentType.create("application/fhir+json", StandardCharsets.UTF_8);
+
+    @Getter(AccessLevel.NONE)
+    private final Semaphore pending;
+
+    @Getter(AccessLevel.NONE)
+    private final ExecutorService executor;
+
+    @Getter(AccessLevel.NONE)
+    private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
     /**
      * Constructor.
      */
-    public FhirServerSaver(FhirContext context, String targetServer, Boolean ssl)
+    public FhirServerSaver(
+            FhirContext context, String targetServer, Boolean ssl, ConnectionSettings settings)
             throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
-        this.client = new FhirClient(context, targetServer, ssl);
+        this.client = new FhirClient(context, targetServer, ssl, settings);
+        this.workers = client.getMaxConcurrency();
+        // Fair, so that a flush is not starved by the exports of other sources
+        this.pending = new Semaphore(workers, true);
+        this.executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "fhir-export");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     /**
-     * export.
+     * export. With several workers the transaction is sent in the background, a failure is
+     * thrown by one of the next calls of export or flush.
      */
     public Boolean export(Bundle bundle) {
+        return export(bundle, () -> {
+        });
+    }
+
+    @Override
+    public Boolean export(Bundle bundle, Runnable onExported) {
+        return submit(() -> send(bundle), onExported);
+    }
+
+    @Override
+    public Boolean exportRaw(List<RawResource> resources, Runnable onExported) {
+        return submit(() -> sendRaw(resources), onExported);
+    }
+
+    private Boolean submit(Runnable send, Runnable onExported) {
+        throwFailure();
+        if (workers == 1) {
+            send.run();
+            onExported.run();
+            return true;
+        }
+
+        pending.acquireUninterruptibly();
+        executor.execute(() -> {
+            try {
+                send.run();
+                onExported.run();
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                pending.release();
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void flush() {
+        pending.acquireUninterruptibly(workers);
+        pending.release(workers);
+        throwFailure();
+    }
+
+    private void send(Bundle bundle) {
         log.debug("Sending Resource to {}", getClient().getClient().getServerBase());
         client.getClient().transaction().withBundle(bundle).execute();
-        return true;
+    }
+
+    /**
+     * Posts the transaction as built, without parsing it into the fhir model.
+     */
+    private void sendRaw(List<RawResource> resources) {
+        String base = getClient().getClient().getServerBase();
+        log.debug("Sending {} resources to {}", resources.size(), base);
+        HttpPost post = new HttpPost(base);
+        post.setEntity(new ByteArrayEntity(
+                RawBundleWriter.transaction(String.valueOf(UUID.randomUUID()), resources), FHIR_JSON));
+        post.setHeader(HttpHeaders.ACCEPT, FHIR_JSON.getMimeType());
+        // Only the status of the entries is needed, not the stored resources
+        post.setHeader("Prefer", "return=minimal");
+        client.authorize(post);
+        try (CloseableHttpResponse response = client.getHttpClient().execute(post)) {
+            int status = response.getStatusLine().getStatusCode();
+            String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity());
+            if (status != HttpStatus.SC_OK) {
+                throw BaseServerResponseException.newInstance(status,
+                        "Transaction failed with " + response.getStatusLine() + ": " + body);
+            }
+        } catch (IOException e) {
+            throw new FhirClientConnectionException(e);
+        }
+    }
+
+    private void throwFailure() {
+        RuntimeException e = failure.get();
+        if (e != null) {
+            throw e;
+        }
     }
 
 }
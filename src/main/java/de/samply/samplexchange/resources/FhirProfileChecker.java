@@ -5,6 +5,8 @@ import org.hl7.fhir.r4.model.Condition;
 import org.hl7.fhir.r4.model.Observation;
 import org.hl7.fhir.r4.model.Organization;
 
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 /**
@@ -12,6 +14,33 @@ import java.util.Objects;
  */
 public class FhirProfileChecker {
 
+    private static final String MII_DIAGNOSE_PROFILE =
+            "https://www.medizininformatik-initiative.de/fhir/core/modul-diagnose/StructureDefinition/Diagnose";
+
+    /**
+     * Search parameters of {@link #checkBbmriCauseOfDeath(Observation)}.
+     */
+    public static final Map<String, List<String>> BBMRI_CAUSE_OF_DEATH_SEARCH =
+            Map.of("code", List.of("68343-3"));
+
+    /**
+     * Search parameters of {@link #checkMiiCauseOfDeath(Condition)}.
+     */
+    public static final Map<String, List<String>> MII_CAUSE_OF_DEATH_SEARCH =
+            Map.of("category", List.of("http://snomed.info/sct|16100001,http://loinc.org|79378-6"));
+
+    /**
+     * Search parameters of {@link #checkMmiCondition(Condition)}.
+     */
+    public static final Map<String, List<String>> MII_CONDITION_SEARCH =
+            Map.of("_profile", List.of(MII_DIAGNOSE_PROFILE));
+
+    /**
+     * Search parameters of the specimens without parent, others are not mapped to bbmri.de.
+     */
+    public static final Map<String, List<String>> SPECIMEN_WITHOUT_PARENT_SEARCH =
+            Map.of("parent:missing", List.of("true"));
+
     private FhirProfileChecker() {
     }
 
@@ -71,7 +100,7 @@ public class FhirProfileChecker {
 
     public static boolean checkMmiCondition(Condition condition) {
         for (CanonicalType profile : condition.getMeta().getProfile()) {
-            if (Objects.equals(profile.asStringValue(), "https://www.medizininformatik-initiative.de/fhir/core/modul-diagnose/StructureDefinition/Diagnose")) {
+            if (Objects.equals(profile.asStringValue(), MII_DIAGNOSE_PROFILE)) {
                 return true; // Found a match
             }
         }
@@ -2,6 +2,7 @@ package de.samply.samplexchange.resources;
 
 import de.samply.samplexchange.converters.SnomedSamplyTypeConverter;
 import de.samply.samplexchange.converters.TemperatureConverter;
+import de.samply.samplexchange.models.SpecimenInput;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
@@ -165,6 +166,77 @@ public class SpecimenMapping
         }
     }
 
+    /**
+     * Reads a bbmri.de specimen extracted by the streaming parser, like {@link #fromBbmri(Specimen)}.
+     */
+    public void fromBbmri(SpecimenInput resource) {
+        this.bbmriId = resource.getId();
+        this.bbmriSubject = resource.getSubject();
+        this.bbmrisampleType = resource.getTypeCode();
+
+        this.collectedDate = collectedDate(resource);
+        this.bbmriBodySite = resource.getBodySiteCode();
+        this.fastingStatus = resource.getFastingStatusCode();
+        this.fastingStatusSystem = resource.getFastingStatusSystem();
+
+        this.storageTemperature = resource.getStorageTemperature();
+        List<SpecimenInput.Code> diagnoses = resource.getDiagnoses();
+        for (SpecimenInput.Code diagnosis : diagnoses) {
+            switch (diagnosis.system()) {
+                case "http://hl7.org/fhir/sid/icd-10":
+                    this.diagnosisIcd10Who = diagnoses.get(0).code();
+                    break;
+                case "http://fhir.de/CodeSystem/dimdi/icd-10-gm":
+                    this.setDiagnosisIcd10Gm(diagnoses.get(0).code());
+                    break;
+                default:
+            }
+        }
+        this.collectionRef = resource.getCustodian();
+        for (int i = 0; i < resource.getUnsupportedExtensions(); i++) {
+            log.info("Unsupported Extension");
+        }
+    }
+
+    /**
+     * Reads a MII specimen extracted by the streaming parser, like {@link #fromMii(Specimen)}.
+     * The condition reference is the reference of the diagnosis extension, while
+     * {@link #fromMii(Specimen)} keeps the string of the Reference object. The reference is not
+     * mapped by either direction, so the mapped specimens are the same.
+     */
+    public void fromMii(SpecimenInput resource) {
+        this.hasParent = resource.isHasParent();
+
+        this.miiId = resource.getId();
+        this.miiSubject = resource.getSubject();
+
+        this.miiSampleType = resource.getTypeCode();
+        this.collectedDate = collectedDate(resource);
+
+        if (Objects.equals(resource.getBodySiteSystem(), "http://snomed.info/sct")) {
+            this.miiBodySiteSnomedCt = resource.getBodySiteCode();
+        } else if (Objects.equals(
+                resource.getBodySiteSystem(), "http://terminology.hl7.org/CodeSystem/icd-o-3")) {
+            this.miiBodySiteIcd = resource.getBodySiteCode();
+        }
+
+        this.fastingStatus = resource.getFastingStatusCode();
+        this.fastingStatusSystem = resource.getFastingStatusSystem();
+
+        if (Objects.nonNull(resource.getConditionReference())) {
+            this.setMiiConditionRef(resource.getConditionReference());
+        }
+
+        this.miiStoargeTemperatureHigh = resource.getStorageTemperatureHigh();
+        this.miiStoargeTemperaturelow = resource.getStorageTemperatureLow();
+    }
+
+    private static DateTimeType collectedDate(SpecimenInput resource) {
+        return resource.getCollectedDateTime() == null
+                ? new DateTimeType()
+                : new DateTimeType(resource.getCollectedDateTime());
+    }
+
     @Override
     public Specimen toBbmri() {
 
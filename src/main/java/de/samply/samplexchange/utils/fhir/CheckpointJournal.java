@@ -0,0 +1,246 @@
+package de.samply.samplexchange.utils.fhir;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Append-only journal of a transfer, used to resume an interrupted transfer.
+ * The journal starts with a fingerprint of the configuration, the start of the run and the
+ * discovered patients in the order they are transferred. Every patient is identified by its
+ * position in this list, which is looked up by the patient id when the patient completes, so
+ * readers may return the patients in any order, merge or drop some of them. The positions of
+ * completed patients are appended as they complete, and every 1000 positions the contiguous
+ * prefix of completed patients is committed as watermark and synced to disk.
+ *
+ * <pre>
+ * F fingerprint
+ * S 2024-01-01T00:00:00Z
+ * P Patient/1
+ * P Patient/2
+ * D 2
+ * C 1
+ * C 0
+ * W 2
+ * </pre>
+ */
+@Slf4j
+public class CheckpointJournal implements Closeable {
+
+    private static final int WATERMARK_INTERVAL = 1000;
+
+    private final Path file;
+
+    private final String fingerprint;
+
+    private final Supplier<Instant> clock;
+
+    /**
+     * -- GETTER --
+     * Start of the run which discovered the patients.
+     */
+    @Getter
+    private Instant startedAt;
+
+    /**
+     * -- GETTER --
+     * Whether the journal contains a complete discovery of an earlier run.
+     */
+    @Getter
+    private boolean resumable;
+
+    private int total;
+
+    private BitSet completed = new BitSet();
+
+    private int watermark;
+
+    private int writtenWatermark;
+
+    /**
+     * Positions of the patients which are not completed, in journal order.
+     */
+    private Map<String, Integer> pending = new LinkedHashMap<>();
+
+    private FileOutputStream output;
+
+    private BufferedWriter writer;
+
+    private CheckpointJournal(Path file, String fingerprint, Supplier<Instant> clock) {
+        this.file = file;
+        this.fingerprint = fingerprint;
+        this.clock = clock;
+    }
+
+    /**
+     * Opens the journal. An existing journal is resumed if it was written with the same
+     * fingerprint and contains a complete discovery, otherwise it is discarded.
+     *
+     * @param clock start of the run, asked once the discovered patients are recorded
+     */
+    public static CheckpointJournal open(Path file, String fingerprint, Supplier<Instant> clock)
+            throws IOException {
+        CheckpointJournal journal = new CheckpointJournal(file, fingerprint, clock);
+        if (Files.exists(file)) {
+            journal.read();
+            if (journal.resumable) {
+                journal.openWriter(true);
+                log.info("Resuming transfer from {}, {} of {} patients completed",
+                        file, journal.completed.cardinality(), journal.total);
+            } else {
+                log.info("Discarding checkpoint journal {} of a different or incomplete run", file);
+                journal.completed = new BitSet();
+                journal.pending = new LinkedHashMap<>();
+            }
+        }
+        return journal;
+    }
+
+    private void read() throws IOException {
+        String storedFingerprint = null;
+        boolean discovered = false;
+        int patients = 0;
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() < 3 || line.charAt(1) != ' ') {
+                    // A line which was not written completely before a crash
+                    continue;
+                }
+                String value = line.substring(2);
+                try {
+                    switch (line.charAt(0)) {
+                        case 'F' -> storedFingerprint = value;
+                        case 'S' -> startedAt = Instant.parse(value);
+                        case 'P' -> pending.put(value, patients++);
+                        case 'D' -> discovered = Integer.parseInt(value) == patients;
+                        case 'C' -> completed.set(Integer.parseInt(value));
+                        case 'W' -> completed.set(0, Integer.parseInt(value));
+                        default -> log.warn("Ignoring unknown checkpoint journal line {}", line);
+                    }
+                } catch (RuntimeException e) {
+                    log.warn("Ignoring broken checkpoint journal line {}", line);
+                }
+            }
+        }
+
+        resumable = discovered && fingerprint.equals(storedFingerprint);
+        total = patients;
+        pending.values().removeIf(completed::get);
+        watermark = completed.nextClearBit(0);
+        writtenWatermark = watermark;
+    }
+
+    /**
+     * Starts a new journal with the discovered patients.
+     */
+    public synchronized void start(Collection<String> patientIds) throws IOException {
+        openWriter(false);
+        startedAt = clock.get();
+        writer.write("F " + fingerprint + "\n");
+        writer.write("S " + startedAt + "\n");
+        total = 0;
+        completed = new BitSet();
+        pending = new LinkedHashMap<>();
+        for (String patientId : patientIds) {
+            if (pending.putIfAbsent(patientId, total) == null) {
+                writer.write("P " + patientId + "\n");
+                total++;
+            }
+        }
+        writer.write("D " + total + "\n");
+        sync();
+    }
+
+    /**
+     * Returns the patients of the journal which are not completed, in journal order.
+     */
+    public synchronized Collection<String> remainingPatientIds() {
+        return List.copyOf(pending.keySet());
+    }
+
+    /**
+     * Records a patient as completed. Patients which are not part of the journal or already
+     * completed are ignored.
+     */
+    public synchronized void complete(String patientId) {
+        Integer position = pending.remove(patientId);
+        if (position == null) {
+            log.debug("Patient {} is not pending in the checkpoint journal", patientId);
+            return;
+        }
+
+        try {
+            writer.write("C " + position + "\n");
+            writer.flush();
+            completed.set(position);
+            watermark = completed.nextClearBit(watermark);
+            if (watermark - writtenWatermark >= WATERMARK_INTERVAL) {
+                writeWatermark();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write checkpoint journal " + file, e);
+        }
+    }
+
+    /**
+     * Commits the watermark and closes the journal, it is resumed by the next run.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writeWatermark();
+            writer.close();
+            writer = null;
+            log.info("Stored checkpoint of {} of {} patients in {}",
+                    completed.cardinality(), total, file);
+        }
+    }
+
+    /**
+     * Removes the journal after a complete transfer.
+     */
+    public synchronized void delete() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        Files.deleteIfExists(file);
+    }
+
+    private void openWriter(boolean append) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        output = new FileOutputStream(file.toFile(), append);
+        writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+    }
+
+    private void writeWatermark() throws IOException {
+        writer.write("W " + watermark + "\n");
+        sync();
+        writtenWatermark = watermark;
+    }
+
+    private void sync() throws IOException {
+        writer.flush();
+        output.getChannel().force(false);
+    }
+}
@@ -0,0 +1,24 @@
+package de.samply.samplexchange.utils.fhir;
+
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+/**
+ * Iterator which holds resources until it is exhausted or closed, e.g. a background request.
+ * Callers which may stop early have to close it.
+ */
+public interface CloseableIterator<T> extends Iterator<T>, AutoCloseable {
+
+    @Override
+    void close();
+
+    /**
+     * Passes the remaining elements to the action and closes the iterator, also if the action
+     * fails.
+     */
+    default void forEachAndClose(Consumer<? super T> action) {
+        try (this) {
+            forEachRemaining(action);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package de.samply.samplexchange.utils.fhir;
+
+import de.samply.samplexchange.configuration.Configuration;
+import de.samply.samplexchange.enums.SourceMode;
+import de.samply.samplexchange.models.FilterModel;
+import de.samply.samplexchange.readers.BatchedCompartmentReader;
+import de.samply.samplexchange.readers.CompartmentReader;
+import de.samply.samplexchange.readers.FhirBulkExportReader;
+import de.samply.samplexchange.readers.FileCompartmentReader;
+import de.samply.samplexchange.readers.RawCompartmentReader;
+import de.samply.samplexchange.readers.RevIncludeCompartmentReader;
+import de.samply.samplexchange.readers.SearchCompartmentReader;
+import de.samply.samplexchange.readers.SpecimenScanCompartmentReader;
+import de.samply.samplexchange.utils.fhir.clients.FhirClient;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.r4.model.Specimen;
+
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+
+/**
+ * Assembles the reader of the patient compartments of a source for its source mode, together
+ * with the streaming specimen reader and the filter of the source, where the mode supports them.
+ */
+@Slf4j
+class CompartmentReaderFactory {
+
+    private final Configuration configuration;
+
+    private final FhirParsers parsers;
+
+    private final FhirTransfer transfer;
+
+    private final FilterModel filter;
+
+    private final SourceClient client;
+
+    /**
+     * -- GETTER --
+     * Streaming specimen reader, null if disabled.
+     */
+    @Getter
+    private SpecimenStreamReader specimenStream;
+
+    /**
+     * Constructor.
+     *
+     * @param filter user defined filter of the source, null if the whole source is transferred
+     * @param client client of the source server, created on first use
+     */
+    CompartmentReaderFactory(
+            Configuration configuration, FhirParsers parsers, FhirTransfer transfer, FilterModel filter,
+            SourceClient client) {
+        this.configuration = configuration;
+        this.parsers = parsers;
+        this.transfer = transfer;
+        this.filter = filter;
+        this.client = client;
+    }
+
+    /**
+     * Creates the reader of the source mode, after the streaming and the filter are applied to
+     * the searches of the transfer.
+     *
+     * @param rawReader reader which copies the resources without fhir model, null to map them
+     */
+    CompartmentReader create(SourceMode mode, RawSearchReader rawReader) throws GeneralSecurityException {
+        if (configuration.isSourceStreaming()) {
+            prepareStreaming(mode);
+        }
+        if (filter != null) {
+            prepareFilter(mode);
+        }
+
+        SearchPlan searchPlan = transfer.getSearchPlan();
+        log.info("Reading {}", searchPlan.describe());
+        if (searchPlan.isFiltered()
+                && (mode == SourceMode.COMPARTMENT || mode == SourceMode.BULK || mode == SourceMode.FILE)) {
+            log.warn("Search parameters are not applied in {} mode, only the resource types", mode);
+        }
+
+        return switch (mode) {
+            case BULK -> new FhirBulkExportReader(
+                    parsers,
+                    client.get(),
+                    configuration.getSourceBulkGroup(),
+                    searchPlan.getResourceTypes(),
+                    configuration.getSourceBulkPollInterval(),
+                    Runtime.getRuntime().availableProcessors(),
+                    groupingDirectory(),
+                    groupingMemory());
+            case BATCH -> new BatchedCompartmentReader(
+                    transfer,
+                    client.get().getClient(),
+                    configuration.getSourceBatchSize(),
+                    client.get().getMaxConcurrency());
+            case COMPARTMENT -> new RevIncludeCompartmentReader(
+                    transfer, client.get().getClient(), client.get().getMaxConcurrency());
+            case SEARCH -> rawReader != null
+                    ? new RawCompartmentReader(transfer, client.get().getClient(),
+                            client.get().getMaxConcurrency(), rawReader)
+                    : new SearchCompartmentReader(
+                            transfer, client.get().getClient(), client.get().getMaxConcurrency());
+            case SPECIMEN -> new SpecimenScanCompartmentReader(
+                    transfer,
+                    client.get().getClient(),
+                    client.get().getMaxConcurrency(),
+                    parsers,
+                    rawReader != null ? rawReader : new RawSearchReader(client.get()),
+                    groupingDirectory(),
+                    groupingMemory());
+            case FILE -> new FileCompartmentReader(
+                    parsers,
+                    Path.of(configuration.getSourceDirectory()),
+                    searchPlan.getResourceTypes(),
+                    Runtime.getRuntime().availableProcessors(),
+                    groupingDirectory(),
+                    groupingMemory());
+        };
+    }
+
+    private void prepareStreaming(SourceMode mode) throws GeneralSecurityException {
+        if (mode != SourceMode.SEARCH && mode != SourceMode.BATCH) {
+            log.warn("Streaming specimens is not supported in {} mode", mode);
+        } else if ("BBMRI2BBMRI".equals(configuration.getProfile())) {
+            log.warn("Streaming specimens is not supported for BBMRI2BBMRI, it copies the whole specimens");
+        } else {
+            log.info("Reading specimens with the streaming parser");
+            specimenStream = new SpecimenStreamReader(parsers, client.get());
+            transfer.setSpecimenStream(specimenStream);
+        }
+    }
+
+    private void prepareFilter(SourceMode mode) {
+        if (mode == SourceMode.BULK || mode == SourceMode.FILE) {
+            log.warn("Filters are not supported in {} mode, transferring everything", mode);
+            return;
+        }
+        log.info("Transferring the patients of the specimens with {}", filter.discoveryParameters());
+        transfer.setDiscoveryFilter(filter.discoveryParameters());
+        transfer.setSearchPlan(transfer.getSearchPlan().restrict(Specimen.class, filter.specimenParameters()));
+    }
+
+    private Path groupingDirectory() {
+        return configuration.getSourceGroupingDirectory().isBlank()
+                ? null : Path.of(configuration.getSourceGroupingDirectory());
+    }
+
+    private long groupingMemory() {
+        return configuration.getSourceGroupingMemory() * 1024L * 1024L;
+    }
+
+    /**
+     * Client of the source server, which is only created for modes which read a server.
+     */
+    @FunctionalInterface
+    interface SourceClient {
+
+        /**
+         * Returns the client of the source server.
+         */
+        FhirClient get() throws GeneralSecurityException;
+    }
+}
@@ -0,0 +1,399 @@
+package de.samply.samplexchange.utils.fhir;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Groups records by key with a bounded amount of memory.
+ * Records are buffered until the memory budget is reached, the buffer is then sorted by key and
+ * written to a compressed spill file. Reading merges the sorted runs and returns one group after
+ * another in key order, so only the records of a few groups are held in memory.
+ * Records can be added concurrently, a full buffer is written by the thread which filled it while
+ * the others continue with a new one. The keys of every run are kept in memory, so the groups are
+ * counted without reading the spill files. The groups are read after {@link #finish()}.
+ */
+@Slf4j
+public class ExternalGrouper implements Closeable {
+
+    /**
+     * Estimated heap usage of a buffered record besides its key and value.
+     */
+    private static final int RECORD_OVERHEAD = 80;
+
+    private static final Comparator<Record> BY_KEY = Comparator.comparing(Record::key);
+
+    private final Path directory;
+
+    private final long memoryBudget;
+
+    private List<Record> buffer = new ArrayList<>();
+
+    private long buffered;
+
+    private final List<Spill> spills = new ArrayList<>();
+
+    /**
+     * Number of spill files which are being written.
+     */
+    private int writing;
+
+    private boolean closed;
+
+    private long spilledBytes;
+
+    private long records;
+
+    /**
+     * Keys of the groups in order, null before {@link #finish()}.
+     */
+    private List<String> keys;
+
+    /**
+     * Constructor.
+     *
+     * @param directory    parent directory of the spill files, null for the temp directory
+     * @param memoryBudget bytes of buffered records, beyond which they are spilled to disk
+     */
+    public ExternalGrouper(Path directory, long memoryBudget) {
+        this.directory = directory;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Adds a record to the group of the key.
+     */
+    public void add(String key, byte[] value) {
+        List<Record> full;
+        synchronized (this) {
+            if (keys != null) {
+                throw new IllegalStateException("Records cannot be added after finish");
+            }
+            buffer.add(new Record(key, value));
+            buffered += value.length + 2L * key.length() + RECORD_OVERHEAD;
+            records++;
+            if (buffered < memoryBudget) {
+                return;
+            }
+            full = buffer;
+            buffer = new ArrayList<>();
+            buffered = 0;
+            writing++;
+        }
+
+        Spill spill = null;
+        try {
+            spill = write(full);
+        } finally {
+            synchronized (this) {
+                writing--;
+                if (spill != null) {
+                    if (closed) {
+                        delete(spill);
+                    } else {
+                        spills.add(spill);
+                        spilledBytes += spill.size();
+                    }
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Ends adding records, after the spill files being written are complete, and counts the
+     * groups.
+     *
+     * @return number of groups
+     */
+    public synchronized int finish() {
+        if (keys == null) {
+            while (writing > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while writing the spill files", e);
+                }
+            }
+            if (!spills.isEmpty() && !buffer.isEmpty()) {
+                Spill spill = write(buffer);
+                spills.add(spill);
+                spilledBytes += spill.size();
+                buffer = new ArrayList<>();
+                buffered = 0;
+            }
+            buffer.sort(BY_KEY);
+            List<List<String>> runKeys = new ArrayList<>();
+            spills.forEach(spill -> runKeys.add(spill.keys()));
+            runKeys.add(distinctKeys(buffer));
+            keys = mergeKeys(runKeys);
+            log.info("Grouped {} records by {} keys, {}", records, keys.size(), spills.isEmpty()
+                    ? "in memory"
+                    : String.format("in %d spill files of %d MiB", spills.size(), spilledBytes / (1024 * 1024)));
+        }
+        return keys.size();
+    }
+
+    /**
+     * Returns the keys in the order of the groups.
+     */
+    public List<String> keys() {
+        finish();
+        return keys;
+    }
+
+    /**
+     * Returns the groups in key order. Every iteration reads the spill files again.
+     */
+    public Iterator<Group> groups() {
+        finish();
+        return new GroupIterator();
+    }
+
+    /**
+     * Deletes the spill files, also those which are still being written.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        spills.forEach(ExternalGrouper::delete);
+        spills.clear();
+        buffer = new ArrayList<>();
+        buffered = 0;
+    }
+
+    private static void delete(Spill spill) {
+        try {
+            Files.deleteIfExists(spill.file());
+        } catch (IOException e) {
+            log.warn("Could not delete spill file {}: {}", spill.file(), e.getMessage());
+        }
+    }
+
+    /**
+     * Sorts the records and writes them to a spill file.
+     */
+    private Spill write(List<Record> run) {
+        run.sort(BY_KEY);
+        try {
+            Path parent = directory == null ? Path.of(System.getProperty("java.io.tmpdir")) : directory;
+            Path file = Files.createTempFile(Files.createDirectories(parent), "samplexchange-group", ".spill");
+            file.toFile().deleteOnExit();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new GZIPOutputStream(Files.newOutputStream(file), 1 << 16) {
+                        {
+                            // Spill files are short-lived, writing fast matters more than their size
+                            def.setLevel(Deflater.BEST_SPEED);
+                        }
+                    }))) {
+                out.writeInt(run.size());
+                for (Record record : run) {
+                    out.writeUTF(record.key());
+                    out.writeInt(record.value().length);
+                    out.write(record.value());
+                }
+            }
+            log.debug("Spilled {} records to {}", run.size(), file);
+            return new Spill(file, Files.size(file), distinctKeys(run));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write spill file", e);
+        }
+    }
+
+    private static List<String> distinctKeys(List<Record> sorted) {
+        List<String> distinct = new ArrayList<>();
+        for (Record record : sorted) {
+            if (distinct.isEmpty() || !distinct.get(distinct.size() - 1).equals(record.key())) {
+                distinct.add(record.key());
+            }
+        }
+        return distinct;
+    }
+
+    /**
+     * Merges sorted lists of distinct keys into one.
+     */
+    private static List<String> mergeKeys(List<List<String>> runs) {
+        PriorityQueue<KeyRun> heads = new PriorityQueue<>(Comparator.comparing(KeyRun::head));
+        for (List<String> run : runs) {
+            if (!run.isEmpty()) {
+                heads.add(new KeyRun(run.iterator()));
+            }
+        }
+        List<String> merged = new ArrayList<>();
+        while (!heads.isEmpty()) {
+            KeyRun run = heads.poll();
+            if (merged.isEmpty() || !merged.get(merged.size() - 1).equals(run.head())) {
+                merged.add(run.head());
+            }
+            if (run.advance()) {
+                heads.add(run);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Records of a key, in no particular order.
+     */
+    public record Group(String key, List<byte[]> values) {
+    }
+
+    private record Record(String key, byte[] value) {
+    }
+
+    /**
+     * Spill file with its size and the distinct keys of its records in order.
+     */
+    private record Spill(Path file, long size, List<String> keys) {
+    }
+
+    /**
+     * Sorted list of keys positioned at its head.
+     */
+    private static class KeyRun {
+
+        private final Iterator<String> keys;
+
+        private String head;
+
+        KeyRun(Iterator<String> keys) {
+            this.keys = keys;
+            advance();
+        }
+
+        String head() {
+            return head;
+        }
+
+        boolean advance() {
+            head = keys.hasNext() ? keys.next() : null;
+            return head != null;
+        }
+    }
+
+    /**
+     * Sorted sequence of records, the buffer or a spill file.
+     */
+    private static class Run {
+
+        private final Iterator<Record> memory;
+
+        private final DataInputStream in;
+
+        private int remaining;
+
+        private Record head;
+
+        Run(List<Record> buffer) {
+            this.memory = buffer.iterator();
+            this.in = null;
+            advance();
+        }
+
+        Run(Path spill) throws IOException {
+            this.memory = null;
+            this.in = new DataInputStream(new BufferedInputStream(
+                    new GZIPInputStream(Files.newInputStream(spill), 1 << 16)));
+            this.remaining = in.readInt();
+            advance();
+        }
+
+        void advance() {
+            if (memory != null) {
+                head = memory.hasNext() ? memory.next() : null;
+                return;
+            }
+            try {
+                if (remaining-- == 0) {
+                    head = null;
+                    in.close();
+                    return;
+                }
+                String key = in.readUTF();
+                head = new Record(key, in.readNBytes(in.readInt()));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read spill file", e);
+            }
+        }
+
+        void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    log.debug("Could not close spill file: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * K-way merge of the runs which collects the records of equal keys.
+     */
+    private class GroupIterator implements Iterator<Group> {
+
+        private final PriorityQueue<Run> runs = new PriorityQueue<>(
+                Comparator.comparing((Run run) -> run.head.key()));
+
+        GroupIterator() {
+            synchronized (ExternalGrouper.this) {
+                try {
+                    for (Spill spill : spills) {
+                        add(new Run(spill.file()));
+                    }
+                } catch (IOException e) {
+                    runs.forEach(Run::close);
+                    throw new UncheckedIOException("Could not read spill file", e);
+                }
+                // The buffer is only left over without spill files
+                add(new Run(buffer));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !runs.isEmpty();
+        }
+
+        @Override
+        public Group next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String key = runs.peek().head.key();
+            List<byte[]> group = new ArrayList<>(4);
+            while (!runs.isEmpty() && runs.peek().head.key().equals(key)) {
+                Run run = runs.poll();
+                group.add(run.head.value());
+                run.advance();
+                add(run);
+            }
+            return new Group(key, group);
+        }
+
+        private void add(Run run) {
+            if (run.head != null) {
+                runs.add(run);
+            }
+        }
+    }
+}
@@ -3,15 +3,33 @@ package de.samply.samplexchange.utils.fhir;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import de.samply.samplexchange.configuration.Configuration;
+import de.samply.samplexchange.enums.DiscoveryProjection;
+import de.samply.samplexchange.enums.SourceMode;
+import de.samply.samplexchange.models.FilterModel;
+import de.samply.samplexchange.models.RawResource;
+import de.samply.samplexchange.models.SourceModel;
+import de.samply.samplexchange.readers.CompartmentReader;
+import de.samply.samplexchange.readers.ResumableCompartmentReader;
 import de.samply.samplexchange.repository.fhir.FhirServerSaver;
+import de.samply.samplexchange.utils.fhir.clients.ConnectionSettings;
 import de.samply.samplexchange.utils.fhir.clients.FhirClient;
 import de.samply.samplexchange.writers.fhir.FhirFileSaver;
 import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.r4.model.Bundle;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Main Class for working with fhir mappings.
@@ -19,7 +37,16 @@ import java.util.Objects;
 @Slf4j
 public class FhirComponent {
 
+    private static final String WATERMARK_FILE = "samplexchange-watermark.properties";
+
+    private static final String CHECKPOINT_FILE = "samplexchange-checkpoint.journal";
+
     private final FhirContext ctx;
+
+    private final FhirParsers parsers;
+
+    private final ShutdownCoordinator shutdownCoordinator;
+
     /**
      * Configuration.
      */
@@ -31,6 +58,16 @@ public class FhirComponent {
      */
     public FhirTransfer transferController;
 
+    /**
+     * Source server the component reads.
+     */
+    private final SourceModel source;
+
+    /**
+     * Sources which are transferred concurrently, null to transfer only the configured source.
+     */
+    private final List<SourceModel> sources;
+
     /**
      * Source fhir client.
      */
@@ -42,14 +79,67 @@ public class FhirComponent {
     private FhirExportInterface fhirExportInterface;
 
     /**
-     * Constructor.
+     * Current incremental run, null if everything is transferred.
+     */
+    private IncrementalRun incrementalRun;
+
+    /**
+     * Assembles the reader of the source.
+     */
+    private final CompartmentReaderFactory readerFactory;
+
+    /**
+     * Reader which copies the resources without fhir model, null if the transfer maps them.
+     */
+    private RawSearchReader rawReader;
+
+    /**
+     * User defined filter of the source, null if the whole source is transferred.
      */
-    public FhirComponent(Configuration configuration) throws Exception {
+    private final FilterModel filter;
+
+    /**
+     * Reader of the current transfer.
+     */
+    private ResumableCompartmentReader compartmentReader;
+
+    private final LongAdder completedPatients = new LongAdder();
+
+    private final LongAdder skippedPatients = new LongAdder();
+
+    private final LongAdder failedPatients = new LongAdder();
+
+    /**
+     * Constructor, components are created by the {@link FhirComponentFactory}.
+     *
+     * @param filter  user defined filter of the sources, null if the whole sources are transferred
+     * @param sources sources which are transferred concurrently, null to transfer only the source
+     */
+    FhirComponent(
+            Configuration configuration, FhirParsers parsers, ShutdownCoordinator shutdownCoordinator,
+            SourceModel source, FilterModel filter, List<SourceModel> sources) {
         this.configuration = configuration;
-        ctx = FhirContext.forR4();
-        ctx.getRestfulClientFactory().setSocketTimeout(300 * 1000);
+        this.ctx = parsers.getContext();
+        this.parsers = parsers;
+        this.shutdownCoordinator = shutdownCoordinator;
+        this.source = source;
+        this.filter = filter;
+        this.sources = sources;
 
         this.transferController = new FhirTransfer(ctx);
+        this.transferController.setPrefetchDepth(configuration.getSourcePrefetch());
+        this.transferController.setDiscoveryProjection(DiscoveryProjection.valueOf(
+                configuration.getSourceDiscoveryProjection().toUpperCase()));
+        this.transferController.setDiscoveryPartitions(configuration.getSourceDiscoveryPartitions());
+        if (configuration.isSourcePagingAdaptive()) {
+            this.transferController.setPageSizer(new PageSizer(
+                    configuration.getSourcePagingCount(),
+                    configuration.getSourcePagingMaxCount(),
+                    configuration.getSourcePagingTargetLatency(),
+                    configuration.getSourcePagingTargetSize() * 1024L * 1024L));
+        }
+        this.readerFactory = new CompartmentReaderFactory(
+                configuration, parsers, transferController, filter, this::getSourceFhirClient);
     }
 
     /**
@@ -57,21 +147,108 @@ public class FhirComponent {
      */
     public IGenericClient getSourceFhirServer()
             throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+        return getSourceFhirClient().getClient();
+    }
+
+    private FhirClient getSourceFhirClient()
+            throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
 
         if (Objects.nonNull(sourceFhirServer)) {
-            return this.sourceFhirServer.getClient();
+            return this.sourceFhirServer;
         }
 
         sourceFhirServer =
                 new FhirClient(
-                        ctx, configuration.getSourceServer(), configuration.isFhirClientAcceptSsl());
+                        ctx,
+                        source.url,
+                        configuration.isFhirClientAcceptSsl(),
+                        sourceConnectionSettings());
         setAuth(
                 sourceFhirServer,
-                configuration.getSourceServerUsername(),
-                configuration.getSourceServerPassword());
-        log.info("Start collecting Resources from FHIR server {}", configuration.getSourceServer());
+                source.username,
+                source.password);
+        log.info("Start collecting Resources from FHIR server {}", source.url);
+
+        return sourceFhirServer;
+    }
+
+    /**
+     * Every source has a connection pool and concurrency limit of its own, a source can lower or
+     * raise the configured limit.
+     */
+    private ConnectionSettings sourceConnectionSettings() {
+        ConnectionSettings settings = configuration.getSourceConnectionSettings();
+        if (source.maxConcurrency != null) {
+            settings.setMaxConcurrency(source.maxConcurrency);
+            settings.setInitialConcurrency(Math.min(settings.getInitialConcurrency(), source.maxConcurrency));
+            settings.setMaxTotal(Math.max(settings.getMaxTotal(), source.maxConcurrency));
+            settings.setMaxPerRoute(Math.max(settings.getMaxPerRoute(), source.maxConcurrency));
+        }
+        return settings;
+    }
 
-        return sourceFhirServer.getClient();
+    /**
+     * Returns the source server the component reads, blank in file mode.
+     */
+    public String getSourceServer() {
+        return source.url;
+    }
+
+    /**
+     * Returns the reader for the patient compartments of the source, depending on the source mode.
+     * The reader is resumed from the checkpoint journal and stopped on shutdown, if enabled.
+     */
+    public CompartmentReader getCompartmentReader() throws GeneralSecurityException, IOException {
+        SourceMode mode = SourceMode.valueOf(configuration.getSourceMode().toUpperCase());
+        log.info("Reading source in {} mode", mode);
+        boolean serverMode = mode != SourceMode.BULK && mode != SourceMode.FILE;
+
+        if (configuration.isIncremental()) {
+            if (serverMode) {
+                startIncrementalRun();
+            } else {
+                log.warn("Incremental mode is not supported in {} mode, transferring everything", mode);
+            }
+        }
+
+        CheckpointJournal journal = null;
+        if (configuration.isCheckpoint()) {
+            if (serverMode) {
+                journal = CheckpointJournal.open(checkpointFile(), fingerprint(), this::runStart);
+                if (journal.isResumable() && incrementalRun != null) {
+                    // A resumed incremental run has to store the watermark of its first start
+                    incrementalRun.resume(journal.getStartedAt());
+                }
+            } else {
+                log.warn("Checkpoints are not supported in {} mode", mode);
+            }
+        }
+
+        releaseReader();
+        compartmentReader = new ResumableCompartmentReader(readerFactory.create(mode, rawReader), journal);
+        // On shutdown, stops reading further patients and waits until the patients already read
+        // are exported and recorded
+        shutdownCoordinator.register(compartmentReader);
+        return compartmentReader;
+    }
+
+    /**
+     * Every source of an aggregating transfer has a journal of its own, named after the source.
+     */
+    private Path checkpointFile() {
+        Path file = Path.of(configuration.getCheckpointFile().isBlank()
+                ? configuration.getFileExportPath() + CHECKPOINT_FILE
+                : configuration.getCheckpointFile());
+        return source.name == null ? file : file.resolveSibling(file.getFileName() + "." + source.name);
+    }
+
+    /**
+     * Sets the resource types and searches of the patient compartments the mapping consumes.
+     * The search parameters are only sent to the source if the pushdown is enabled.
+     */
+    public void setSearchPlan(SearchPlan searchPlan) {
+        transferController.setSearchPlan(
+                configuration.isSourcePushdown() ? searchPlan : searchPlan.unfiltered());
     }
 
     private void setAuth(FhirClient client, String user, String password) {
@@ -82,6 +259,261 @@ public class FhirComponent {
         }
     }
 
+    /**
+     * Copies the resources without fhir model if the passthrough is enabled, for transfers which
+     * do not map them. Only supported in search mode.
+     *
+     * @return the reader of the resources, null if the resources are read with the fhir model
+     */
+    public RawSearchReader usePassthrough()
+            throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+        if (!configuration.isSourcePassthrough()) {
+            return null;
+        }
+        SourceMode mode = SourceMode.valueOf(configuration.getSourceMode().toUpperCase());
+        if (mode != SourceMode.SEARCH) {
+            log.warn("Passthrough is not supported in {} mode, reading the fhir model", mode);
+            return null;
+        }
+        log.info("Copying the resources without fhir model");
+        rawReader = new RawSearchReader(getSourceFhirClient());
+        return rawReader;
+    }
+
+    private void startIncrementalRun() throws GeneralSecurityException {
+        Path watermarkFile = Path.of(configuration.getWatermarkFile().isBlank()
+                ? configuration.getFileExportPath() + WATERMARK_FILE
+                : configuration.getWatermarkFile());
+        incrementalRun = new IncrementalRun(watermarkFile, watermarkKey(), getSourceFhirClient().getServerClock());
+        transferController.setChangedSince(incrementalRun.getChangedSince());
+    }
+
+    /**
+     * Stores the start of the current run as watermark, if the incremental mode is active.
+     * Must only be called after all patients have been transferred.
+     */
+    public void commitWatermark() throws IOException {
+        if (incrementalRun != null) {
+            incrementalRun.commit();
+        }
+    }
+
+    private Instant runStart() {
+        return incrementalRun == null ? Instant.now() : incrementalRun.getStart();
+    }
+
+    /**
+     * A filtered run only transfers a part of the source, so it has a watermark of its own.
+     */
+    private String watermarkKey() {
+        return filter == null
+                ? source.url
+                : source.url + " " + filter.discoveryParameters();
+    }
+
+    /**
+     * Fingerprint of the configuration, a checkpoint journal is only resumed with the same one.
+     */
+    private String fingerprint() {
+        String settings = String.join("\n",
+                configuration.getProfile(),
+                source.url,
+                configuration.getSourceMode(),
+                configuration.getTargetServer(),
+                configuration.getFileExportPath(),
+                String.valueOf(incrementalRun == null ? null : incrementalRun.getChangedSince()),
+                filter == null ? "" : filter.discoveryParameters().toString());
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256")
+                    .digest(settings.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Exports the bundle of a patient and records the patient as completed once it is written.
+     * A patient which could not be written stays pending in the checkpoint journal.
+     */
+    public void exportPatient(String patientId, Bundle bundle)
+            throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+        checkExported(patientId, getFhirExportInterface().export(bundle, () -> completePatient(patientId)));
+    }
+
+    /**
+     * Exports the resources of a patient copied without fhir model and records the patient as
+     * completed once they are written.
+     */
+    public void exportPatient(String patientId, List<RawResource> resources)
+            throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+        checkExported(patientId, getFhirExportInterface().exportRaw(resources, () -> completePatient(patientId)));
+    }
+
+    private void checkExported(String patientId, Boolean exported) {
+        if (!Boolean.TRUE.equals(exported)) {
+            log.warn("Patient {} of {} could not be exported", patientId, source.url);
+            failedPatients.increment();
+        }
+    }
+
+    /**
+     * Records a patient which is not exported, e.g. because it could not be mapped.
+     */
+    public void skipPatient(String patientId) {
+        skippedPatients.increment();
+        completePatient(patientId);
+    }
+
+    private void completePatient(String patientId) {
+        completedPatients.increment();
+        CheckpointJournal journal = compartmentReader == null ? null : compartmentReader.getJournal();
+        if (journal != null) {
+            journal.complete(patientId);
+        }
+    }
+
+    /**
+     * Waits for the pending exports, logs the statistics and stores the watermark.
+     * Must only be called after all patients have been passed to the export.
+     * If the transfer was stopped by a shutdown, the checkpoint journal is kept instead.
+     */
+    public void finishTransfer() throws IOException {
+        if (fhirExportInterface != null) {
+            fhirExportInterface.flush();
+        }
+        finishSource(false);
+        logTargetStatistics();
+        log.info("String pool: {}", parsers.getPool().describeStats());
+    }
+
+    /**
+     * Logs the statistics of the source and stores its watermark, once its patients are exported.
+     * The journal of a failed or stopped transfer, or of a transfer with patients which could not
+     * be exported, is kept and the watermark is not stored.
+     */
+    void finishSource(boolean failed) throws IOException {
+        logSourceStatistics();
+
+        CheckpointJournal journal = compartmentReader == null ? null : compartmentReader.getJournal();
+        if (failed || compartmentReader != null && compartmentReader.isStopped()) {
+            if (journal != null) {
+                journal.close();
+            }
+            log.info("Transfer of {} stopped before all patients were transferred", source.url);
+            return;
+        }
+        if (failedPatients.sum() > 0) {
+            if (journal != null) {
+                journal.close();
+            }
+            log.warn("{} patients of {} could not be exported, they are transferred again by the next run",
+                    failedPatients.sum(), source.url);
+            return;
+        }
+        if (journal != null) {
+            journal.delete();
+        }
+        commitWatermark();
+    }
+
+    /**
+     * Runs the transfer of the patients of the source. With a list of sources every source is
+     * transferred concurrently by a {@link MultiSourceTransfer}.
+     */
+    public void transferSources(SourceTransfer transfer) throws Exception {
+        if (sources != null) {
+            new MultiSourceTransfer(this, sources).run(transfer);
+            return;
+        }
+        try {
+            transfer.transfer(this);
+            finishTransfer();
+        } finally {
+            releaseReader();
+        }
+    }
+
+    /**
+     * Returns a component which reads another source with the filter, search plan and export of
+     * this one. The search plan is copied, since the filter is added to it per source.
+     */
+    FhirComponent forSource(SourceModel other)
+            throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+        FhirComponent component = new FhirComponent(configuration, parsers, shutdownCoordinator, other, filter, null);
+        component.transferController.setSearchPlan(transferController.getSearchPlan().copy());
+        component.fhirExportInterface = getFhirExportInterface();
+        return component;
+    }
+
+    /**
+     * Returns the parsers of the transfer, with the string pool of its resources.
+     */
+    FhirParsers getParsers() {
+        return parsers;
+    }
+
+    /**
+     * Returns the name of the source in a list of sources, null for the configured source.
+     */
+    String getSourceName() {
+        return source.name;
+    }
+
+    void logProgress() {
+        ResumableCompartmentReader reader = compartmentReader;
+        log.info("Progress of {}: {} of {} patients transferred, {} of them skipped", source.name,
+                completedPatients.sum(), reader == null ? 0 : reader.getPatientCount(), skippedPatients.sum());
+    }
+
+    /**
+     * Releases the reader of the transfer from the shutdown, once its patients are recorded.
+     */
+    void releaseReader() {
+        shutdownCoordinator.release(compartmentReader);
+    }
+
+    /**
+     * Logs the connection statistics of the source and target servers.
+     */
+    public void logStatistics() {
+        logSourceStatistics();
+        logTargetStatistics();
+    }
+
+    private void logSourceStatistics() {
+        if (sourceFhirServer != null) {
+            sourceFhirServer.logStatistics();
+        }
+        if (readerFactory.getSpecimenStream() != null) {
+            log.info("Specimens of {}: {}", source.url, readerFactory.getSpecimenStream().describeStats());
+        }
+        if (rawReader != null) {
+            log.info("Passthrough of {}: {}", source.url, rawReader.describeStats());
+        }
+        if (transferController.getPageSizer() != null) {
+            log.info("Page sizes of {}: {}", source.url,
+                    transferController.getPageSizer().describeStats());
+        }
+    }
+
+    void logTargetStatistics() {
+        if (fhirExportInterface instanceof FhirServerSaver fhirServerSaver) {
+            fhirServerSaver.getClient().logStatistics();
+        }
+    }
+
+    /**
+     * Transfer of the patients of one source, e.g. the mapping of a profile.
+     */
+    @FunctionalInterface
+    public interface SourceTransfer {
+
+        /**
+         * Transfers the patients of the source the component reads.
+         */
+        void transfer(FhirComponent source) throws Exception;
+    }
+
     /**
      * Returns fhir export interface.
      */
@@ -93,11 +525,14 @@ public class FhirComponent {
 
         if (!configuration.getFileExportPath().isBlank()) {
             log.info("Exporting resources to file system " + configuration.getFileExportPath());
-            this.fhirExportInterface = new FhirFileSaver(ctx, configuration.getFileExportPath());
+            this.fhirExportInterface = new FhirFileSaver(parsers, configuration.getFileExportPath());
         } else {
             FhirServerSaver fhirServerSaver =
                     new FhirServerSaver(
-                            ctx, configuration.getTargetServer(), configuration.isFhirClientAcceptSsl());
+                            ctx,
+                            configuration.getTargetServer(),
+                            configuration.isFhirClientAcceptSsl(),
+                            configuration.getTargetConnectionSettings());
             setAuth(
                     fhirServerSaver.getClient(),
                     configuration.getTargetServerUsername(),
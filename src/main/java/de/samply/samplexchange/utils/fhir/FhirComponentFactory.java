@@ -0,0 +1,57 @@
+package de.samply.samplexchange.utils.fhir;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.samply.samplexchange.configuration.Configuration;
+import de.samply.samplexchange.models.FilterModel;
+import de.samply.samplexchange.models.SourceModel;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Creates the component of a transfer out of the configuration, with the filter and the list of
+ * sources read from their files.
+ */
+@Slf4j
+@Component
+public class FhirComponentFactory {
+
+    private final Configuration configuration;
+
+    private final FhirParsers parsers;
+
+    private final ShutdownCoordinator shutdownCoordinator;
+
+    /**
+     * Constructor.
+     */
+    public FhirComponentFactory(
+            Configuration configuration, FhirParsers parsers, ShutdownCoordinator shutdownCoordinator) {
+        this.configuration = configuration;
+        this.parsers = parsers;
+        this.shutdownCoordinator = shutdownCoordinator;
+    }
+
+    /**
+     * Creates the component of the configured source, or of the list of sources if configured.
+     */
+    public FhirComponent create() throws IOException {
+        SourceModel source = new SourceModel(null, configuration.getSourceServer(),
+                configuration.getSourceServerUsername(), configuration.getSourceServerPassword());
+        FilterModel filter = configuration.getFilterFile().isBlank() ? null : new ObjectMapper().readValue(
+                Path.of(configuration.getFilterFile()).toFile(), FilterModel.class);
+
+        List<SourceModel> sources = null;
+        if (!configuration.getSourcesFile().isBlank()) {
+            if ("file".equalsIgnoreCase(configuration.getSourceMode())) {
+                log.warn("The sources of {} are not read in file mode", configuration.getSourcesFile());
+            } else {
+                sources = MultiSourceTransfer.readSources(Path.of(configuration.getSourcesFile()));
+            }
+        }
+        return new FhirComponent(configuration, parsers, shutdownCoordinator, source, filter, sources);
+    }
+}
@@ -1,8 +1,11 @@
 package de.samply.samplexchange.utils.fhir;
 
 import ca.uhn.fhir.context.FhirContext;
+import de.samply.samplexchange.models.RawResource;
 import org.hl7.fhir.r4.model.Bundle;
 
+import java.util.List;
+
 /**
  * Superclass of fhir exporter.
  */
@@ -14,4 +17,32 @@ public abstract class FhirExportInterface {
      * Super export.
      */
     public abstract Boolean export(Bundle bundle);
+
+    /**
+     * Exports the bundle and runs the callback once the bundle is written, not if the export
+     * failed.
+     *
+     * @return whether the bundle was written
+     */
+    public Boolean export(Bundle bundle, Runnable onExported) {
+        Boolean exported = export(bundle);
+        if (Boolean.TRUE.equals(exported)) {
+            onExported.run();
+        }
+        return exported;
+    }
+
+    /**
+     * Exports resources copied without fhir model as transaction bundle and runs the callback
+     * once the bundle is written.
+     *
+     * @return whether the bundle was written
+     */
+    public abstract Boolean exportRaw(List<RawResource> resources, Runnable onExported);
+
+    /**
+     * Waits until all bundles passed to export are written.
+     */
+    public void flush() {
+    }
 }
@@ -0,0 +1,113 @@
+package de.samply.samplexchange.utils.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.OrganizationAffiliation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.Specimen;
+
+import java.util.List;
+
+/**
+ * Json parsers of a fhir context, one per thread. HAPI parsers are not thread safe but can be
+ * reused by the same thread, so they are not created again for every bundle.
+ */
+@Slf4j
+public class FhirParsers {
+
+    private static final int DEFAULT_POOL_SIZE = 100_000;
+
+    /**
+     * -- GETTER --
+     * Fhir context of the parsers.
+     */
+    @Getter
+    private final FhirContext context;
+
+    /**
+     * -- GETTER --
+     * Pool of the repeated strings of the parsed resources.
+     */
+    @Getter
+    private final StringPool pool;
+
+    private final ThreadLocal<IParser> json;
+
+    private final ThreadLocal<IParser> prettyJson;
+
+    /**
+     * Constructor with a pool of the default size.
+     */
+    public FhirParsers(FhirContext context) {
+        this(context, new StringPool(DEFAULT_POOL_SIZE));
+    }
+
+    /**
+     * Constructor.
+     */
+    public FhirParsers(FhirContext context, StringPool pool) {
+        this.context = context;
+        this.pool = pool;
+        this.json = ThreadLocal.withInitial(context::newJsonParser);
+        this.prettyJson = ThreadLocal.withInitial(() -> context.newJsonParser().setPrettyPrint(true));
+    }
+
+    /**
+     * Returns the json parser of the current thread.
+     */
+    public IParser json() {
+        return json.get();
+    }
+
+    /**
+     * Parses a resource with the json parser of the current thread and pools its codes and urls.
+     */
+    public IBaseResource parse(String json) {
+        return pool.intern(context, json().parseResource(json));
+    }
+
+    /**
+     * Parses a resource of a type with the json parser of the current thread and pools its
+     * codes and urls.
+     */
+    public <T extends IBaseResource> T parse(Class<T> type, String json) {
+        return pool.intern(context, json().parseResource(type, json));
+    }
+
+    /**
+     * Returns the pretty printing json parser of the current thread.
+     */
+    public IParser prettyJson() {
+        return prettyJson.get();
+    }
+
+    /**
+     * Scans the model of the transferred resource types and loads the parser, which HAPI
+     * otherwise does on first use.
+     */
+    public static void warmUp(FhirContext context) {
+        long start = System.currentTimeMillis();
+        Bundle bundle = new Bundle();
+        for (Class<? extends Resource> type : List.of(
+                Patient.class, Specimen.class, Condition.class, Observation.class,
+                Organization.class, OrganizationAffiliation.class)) {
+            context.getResourceDefinition(type);
+            try {
+                bundle.addEntry().setResource(type.getDeclaredConstructor().newInstance());
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        IParser parser = context.newJsonParser();
+        parser.parseResource(Bundle.class, parser.encodeResourceToString(bundle));
+        log.info("Warmed up the fhir context in {} ms", System.currentTimeMillis() - start);
+    }
+}
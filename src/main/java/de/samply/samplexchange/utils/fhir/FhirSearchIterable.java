@@ -0,0 +1,371 @@
+package de.samply.samplexchange.utils.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.IQuery;
+import ca.uhn.fhir.util.BundleUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+
+import java.lang.ref.Cleaner;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazy view on a fhir search result.
+ * Pages are only requested while iterating, so at most one page is held in memory.
+ * With a prefetch depth the following pages are requested in the background while
+ * the current page is processed, holding at most depth + 2 pages in memory.
+ * A prefetching iteration which is stopped early has to be closed, e.g. by {@link #forEach} or
+ * the stream, otherwise its background request is only cancelled once the iterator is collected.
+ */
+@Slf4j
+public class FhirSearchIterable<T extends IBaseResource> implements Iterable<T> {
+
+    private static final Object END = new Object();
+
+    private static final ExecutorService PREFETCH_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "fhir-page-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Cancels the prefetching of iterators which are not closed.
+     */
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final FhirContext ctx;
+
+    private final IGenericClient client;
+
+    /**
+     * Builds the query of the first page. A HAPI query adds its _count to its parameters again
+     * whenever it is executed, so every attempt needs a new one.
+     */
+    private final Supplier<IQuery<Bundle>> query;
+
+    private final Class<T> resourceType;
+
+    private final int prefetchDepth;
+
+    private final PageSizer.PageSize pageSize;
+
+    /**
+     * Constructor.
+     */
+    public FhirSearchIterable(
+            FhirContext ctx, IGenericClient client, IQuery<Bundle> query, Class<T> resourceType) {
+        this(ctx, client, () -> query, resourceType, 0, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param prefetchDepth number of pages which are requested ahead, 0 disables prefetching
+     */
+    public FhirSearchIterable(
+            FhirContext ctx,
+            IGenericClient client,
+            IQuery<Bundle> query,
+            Class<T> resourceType,
+            int prefetchDepth) {
+        this(ctx, client, () -> query, resourceType, prefetchDepth, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param query         builds the query of the first page, called for every attempt
+     * @param prefetchDepth number of pages which are requested ahead, 0 disables prefetching
+     * @param pageSize      adaptive _count of the search, null to use the _count of the query
+     */
+    public FhirSearchIterable(
+            FhirContext ctx,
+            IGenericClient client,
+            Supplier<IQuery<Bundle>> query,
+            Class<T> resourceType,
+            int prefetchDepth,
+            PageSizer.PageSize pageSize) {
+        this.ctx = ctx;
+        this.client = client;
+        this.query = query;
+        this.resourceType = resourceType;
+        this.prefetchDepth = prefetchDepth;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Iterates over the resources of all pages. Every call executes the search again.
+     */
+    @Override
+    public CloseableIterator<T> iterator() {
+        CloseableIterator<List<T>> pages = pageIterator();
+
+        return new CloseableIterator<>() {
+            private Iterator<T> page = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!page.hasNext()) {
+                    if (!pages.hasNext()) {
+                        return false;
+                    }
+                    page = pages.next().iterator();
+                }
+                return true;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return page.next();
+            }
+
+            @Override
+            public void close() {
+                pages.close();
+            }
+        };
+    }
+
+    /**
+     * Passes all resources to the action, the iteration is closed if the action fails.
+     */
+    @Override
+    public void forEach(Consumer<? super T> action) {
+        iterator().forEachAndClose(action);
+    }
+
+    /**
+     * Iterates page by page over the search result.
+     */
+    public Iterable<List<T>> pages() {
+        return new Iterable<>() {
+            @Override
+            public Iterator<List<T>> iterator() {
+                return pageIterator();
+            }
+
+            @Override
+            public void forEach(Consumer<? super List<T>> action) {
+                pageIterator().forEachAndClose(action);
+            }
+        };
+    }
+
+    private CloseableIterator<List<T>> pageIterator() {
+        return prefetchDepth > 0 ? new PrefetchingPageIterator() : new PageIterator();
+    }
+
+    /**
+     * Sequential stream of the search result, closing the stream stops the iteration.
+     */
+    public Stream<T> stream() {
+        CloseableIterator<T> resources = iterator();
+        return StreamSupport.stream(
+                        Spliterators.spliteratorUnknownSize(resources, Spliterator.ORDERED), false)
+                .onClose(resources::close);
+    }
+
+    private class PageIterator implements CloseableIterator<List<T>> {
+
+        private Bundle bundle;
+
+        @Override
+        public boolean hasNext() {
+            return bundle == null || bundle.getLink(IBaseBundle.LINK_NEXT) != null;
+        }
+
+        @Override
+        public List<T> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            bundle = bundle == null ? loadFirstPage() : loadNextPage(bundle);
+            return toList(bundle);
+        }
+
+        @Override
+        public void close() {
+            // Pages are only loaded on demand
+        }
+    }
+
+    private class PrefetchingPageIterator implements CloseableIterator<List<T>> {
+
+        private final Prefetch prefetch = new Prefetch(prefetchDepth);
+
+        private final Cleaner.Cleanable cleanable = CLEANER.register(this, prefetch::cancel);
+
+        private boolean started;
+
+        private Object head;
+
+        @Override
+        public boolean hasNext() {
+            if (head == null) {
+                head = advance();
+            }
+            return head != END;
+        }
+
+        @Override
+        public List<T> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Object item = head;
+            head = null;
+            if (item instanceof Throwable e) {
+                close();
+                if (e instanceof RuntimeException runtimeException) {
+                    throw runtimeException;
+                }
+                if (e instanceof Error error) {
+                    throw error;
+                }
+                throw new IllegalStateException("Loading the next page failed", e);
+            }
+            return toList((Bundle) item);
+        }
+
+        @Override
+        public void close() {
+            head = END;
+            cleanable.clean();
+        }
+
+        private Object advance() {
+            if (!started) {
+                // The first page is loaded directly, most searches do not need a second one
+                started = true;
+                Bundle first = loadFirstPage();
+                if (first.getLink(IBaseBundle.LINK_NEXT) != null) {
+                    // The task must not reference the iterator, so that the cleaner can cancel it
+                    FhirSearchIterable<T> search = FhirSearchIterable.this;
+                    Prefetch state = prefetch;
+                    state.producer = PREFETCH_EXECUTOR.submit(() -> search.produce(first, state));
+                } else {
+                    prefetch.queue.add(END);
+                }
+                return first;
+            }
+
+            try {
+                Object item = prefetch.queue.take();
+                if (item == END) {
+                    close();
+                }
+                return item;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new IllegalStateException("Interrupted while waiting for the next page", e);
+            }
+        }
+    }
+
+    /**
+     * Pages loaded in the background, shared by a prefetching iterator and its producer.
+     */
+    private static class Prefetch {
+
+        /**
+         * Pages, a failure or END, in the order of the search result.
+         */
+        private final BlockingQueue<Object> queue;
+
+        private volatile boolean closed;
+
+        private volatile Future<?> producer;
+
+        Prefetch(int depth) {
+            this.queue = new ArrayBlockingQueue<>(depth);
+        }
+
+        /**
+         * Waits until the consumer takes the item.
+         *
+         * @return false if the iteration was closed
+         */
+        boolean put(Object item) {
+            try {
+                while (!closed) {
+                    if (queue.offer(item, 1, TimeUnit.SECONDS)) {
+                        return true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        void cancel() {
+            closed = true;
+            Future<?> task = producer;
+            if (task != null) {
+                task.cancel(true);
+            }
+            queue.clear();
+        }
+    }
+
+    private void produce(Bundle first, Prefetch prefetch) {
+        Bundle bundle = first;
+        try {
+            while (bundle.getLink(IBaseBundle.LINK_NEXT) != null && !prefetch.closed) {
+                bundle = loadNextPage(bundle);
+                if (!prefetch.put(bundle)) {
+                    return;
+                }
+            }
+            prefetch.put(END);
+        } catch (Throwable e) {
+            // Also errors, otherwise the consumer would wait for the next page forever
+            prefetch.put(e);
+        }
+    }
+
+    private Bundle loadFirstPage() {
+        if (pageSize == null) {
+            return query.get().execute();
+        }
+        return pageSize.load(count -> query.get().count(count).execute(), page -> page.getEntry().size());
+    }
+
+    private Bundle loadNextPage(Bundle bundle) {
+        log.debug("Fetching next page of " + resourceType.getSimpleName());
+        String next = bundle.getLink(IBaseBundle.LINK_NEXT).getUrl();
+        if (pageSize == null || PageSizer.withCount(next, 0) == null) {
+            return client.loadPage().next(bundle).execute();
+        }
+        return pageSize.load(
+                count -> client.loadPage().byUrl(PageSizer.withCount(next, count)).andReturnBundle(Bundle.class).execute(),
+                page -> page.getEntry().size());
+    }
+
+    private List<T> toList(Bundle bundle) {
+        return BundleUtil.toListOfResourcesOfType(ctx, bundle, resourceType);
+    }
+}
@@ -1,15 +1,39 @@
 package de.samply.samplexchange.utils.fhir;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.SearchStyleEnum;
+import ca.uhn.fhir.rest.api.SummaryEnum;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
-import ca.uhn.fhir.util.BundleUtil;
+import ca.uhn.fhir.rest.gclient.IQuery;
+import ca.uhn.fhir.rest.gclient.ReferenceClientParam;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.NotImplementedOperationException;
+import de.samply.samplexchange.enums.DiscoveryProjection;
+import de.samply.samplexchange.models.PatientCompartment;
+import de.samply.samplexchange.models.PatientIdSet;
+import de.samply.samplexchange.models.RawResource;
+import de.samply.samplexchange.models.SpecimenInput;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
-import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.*;
 import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
 
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 
 /**
  * This class has most of the transformation and converting logic.
@@ -17,8 +41,68 @@ import java.util.*;
 @Slf4j
 public class FhirTransfer {
 
+    /**
+     * Searches with longer parameter lists are sent as POST _search.
+     */
+    static final int MAX_GET_PARAMETER_LENGTH = 2000;
+
     FhirContext ctx;
 
+    /**
+     * Number of search pages which are requested ahead while the current page is processed.
+     */
+    @Setter
+    private int prefetchDepth;
+
+    /**
+     * Parts of the specimens which are loaded in the patient discovery, the full specimens once
+     * the source rejected the projection.
+     */
+    @Setter
+    private DiscoveryProjection discoveryProjection = DiscoveryProjection.NONE;
+
+    /**
+     * Number of _lastUpdated partitions which are scanned concurrently in the patient discovery.
+     */
+    @Setter
+    private int discoveryPartitions = 1;
+
+    /**
+     * -- GETTER --
+     * If set, only patients whose resources changed after this point in time are discovered.
+     */
+    @Getter
+    @Setter
+    private Instant changedSince;
+
+    /**
+     * If set, specimens are read by the streaming parser instead of the fhir model.
+     */
+    @Setter
+    private SpecimenStreamReader specimenStream;
+
+    /**
+     * Search parameters of the specimens which select the patients to transfer.
+     */
+    @Setter
+    private Map<String, List<String>> discoveryFilter = Map.of();
+
+    /**
+     * -- GETTER --
+     * Adaptive page sizes of the searches, null to use fixed page sizes.
+     */
+    @Getter
+    @Setter
+    private PageSizer pageSizer;
+
+    /**
+     * -- GETTER --
+     * Resource types and searches of the patient compartments.
+     */
+    @Getter
+    @Setter
+    private SearchPlan searchPlan = SearchPlan.all();
+
     /**
      * Constructor.
      */
@@ -26,51 +110,72 @@ public class FhirTransfer {
         this.ctx = ctx;
     }
 
-    private List<IBaseResource> fetchSpecimenResources(IGenericClient client) {
+    private <T extends IBaseResource> FhirSearchIterable<T> search(
+            IGenericClient client, Supplier<IQuery<Bundle>> query, Class<T> resourceType) {
+        return search(resourceType.getSimpleName(), client, query, resourceType);
+    }
+
+    /**
+     * Search whose page size is adapted separately from the other searches of its type.
+     */
+    private <T extends IBaseResource> FhirSearchIterable<T> search(
+            String name, IGenericClient client, Supplier<IQuery<Bundle>> query, Class<T> resourceType) {
+        return new FhirSearchIterable<>(ctx, client, query, resourceType, prefetchDepth, getPageSize(name));
+    }
 
-        List<IBaseResource> resourceList = new ArrayList<>();
+    /**
+     * Returns the adaptive page size of a kind of search, null if the page sizes are fixed.
+     */
+    public PageSizer.PageSize getPageSize(String search) {
+        return pageSizer == null ? null : pageSizer.get(search);
+    }
 
-        // Search
-        Bundle bundle =
-                client.search().forResource(Specimen.class).returnBundle(Bundle.class).count(500).execute();
-        resourceList.addAll(BundleUtil.toListOfResources(ctx, bundle));
+    /**
+     * Fetches the specimens with only the parts needed to discover their patients.
+     *
+     * @param window     _lastUpdated range of the specimens, all specimens if null
+     * @param projection parts of the specimens which are loaded
+     */
+    private FhirSearchIterable<Specimen> fetchSpecimenSubjects(
+            IGenericClient client, DateRangeParam window, DiscoveryProjection projection) {
+        return search(projection == DiscoveryProjection.NONE ? "Specimen scan" : "Specimen discovery",
+                client, () -> specimenSubjectsQuery(client, window, projection), Specimen.class);
+    }
 
-        // Load the subsequent pages
-        while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-            bundle = client.loadPage().next(bundle).execute();
-            resourceList.addAll(BundleUtil.toListOfResources(ctx, bundle));
-            log.debug("Fetching next page of Specimen");
+    private IQuery<Bundle> specimenSubjectsQuery(
+            IGenericClient client, DateRangeParam window, DiscoveryProjection projection) {
+        IQuery<Bundle> query = filter(
+                client.search().forResource(Specimen.class).returnBundle(Bundle.class).count(500),
+                discoveryFilter);
+        if (window != null) {
+            query = query.lastUpdated(window);
         }
-        log.info("Loaded " + resourceList.size() + " Specimen Resources from source");
-
-        return resourceList;
+        switch (projection) {
+            case ELEMENTS -> query = query.elementsSubset("subject");
+            case SUMMARY -> query = query.summaryMode(SummaryEnum.TRUE);
+            default -> {
+                // Full resources
+            }
+        }
+        return query;
     }
 
     /**
      * Fetches all patient ids.
      */
     public Set<String> fetchPatientIds(IGenericClient client) {
+        if (changedSince != null) {
+            return this.getChangedPatients(client, changedSince);
+        }
         return this.getSpecimenPatients(client);
     }
 
-    private <T extends IBaseResource> List<T> fetchResources(
+    private <T extends IBaseResource> FhirSearchIterable<T> fetchResources(
             Class<T> resourceType, IGenericClient client) {
-        // Search
-        Bundle bundle =
-                client.search().forResource(resourceType).returnBundle(Bundle.class).count(500).execute();
-        List<T> resourceList =
-                new ArrayList<>(BundleUtil.toListOfResourcesOfType(ctx, bundle, resourceType));
-
-        // Load the subsequent pages
-        while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-            bundle = client.loadPage().next(bundle).execute();
-            resourceList.addAll(BundleUtil.toListOfResourcesOfType(ctx, bundle, resourceType));
-            log.debug("Fetching next page of " + resourceType.getName());
-        }
-        log.info(
-                "Loaded " + resourceList.size() + " " + resourceType.getName() + " Resources from source");
-
-        return resourceList;
+        return search(
+                client,
+                () -> client.search().forResource(resourceType).returnBundle(Bundle.class).count(500),
+                resourceType);
     }
 
     /**
@@ -91,160 +196,387 @@ public class FhirTransfer {
     /**
      * Fetches all patient specimen resources.
      */
-    public List<Specimen> fetchPatientSpecimens(IGenericClient client, String patientId) {
-        List<IBaseResource> resourceList = new ArrayList<>();
-
-        Bundle bundle =
-                client
+    public FhirSearchIterable<Specimen> fetchPatientSpecimens(IGenericClient client, String patientId) {
+        return search(
+                client,
+                () -> client
                         .search()
                         .forResource(Specimen.class)
                         .where(Specimen.SUBJECT.hasId(patientId))
-                        .returnBundle(Bundle.class)
-                        .execute();
-
-        resourceList.addAll(BundleUtil.toListOfResources(ctx, bundle));
+                        .returnBundle(Bundle.class),
+                Specimen.class);
+    }
 
-        while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-            bundle = client.loadPage().next(bundle).execute();
-            resourceList.addAll(BundleUtil.toListOfResources(ctx, bundle));
+    /**
+     * Fetches the specimens of the given patients with the searches of the search plan.
+     * Specimens read by the streaming parser are passed to the first consumer, specimens parsed
+     * with the fhir model to the second one.
+     */
+    public void fetchPatientsSpecimens(
+            IGenericClient client,
+            List<String> patientIds,
+            Consumer<SpecimenInput> inputs,
+            Consumer<Specimen> specimens) {
+        if (specimenStream == null) {
+            fetchPatientsResources(client, Specimen.class, patientIds, specimens);
+            return;
         }
-
-        List<Specimen> specimens = new ArrayList<>();
-
-        for (IBaseResource resource : resourceList) {
-            specimens.add((Specimen) resource);
+        List<Map<String, List<String>>> searches = searchPlan.searches(Specimen.class);
+        Set<String> seen = searches.size() > 1 ? new HashSet<>() : null;
+        PageSizer.PageSize pageSize = getPageSize("Specimen");
+        for (Map<String, List<String>> filter : searches) {
+            specimenStream.fetchPatientsSpecimens(patientIds, filter, pageSize,
+                    input -> {
+                        if (seen == null || seen.add(new IdType(input.getId()).toVersionless().getValue())) {
+                            inputs.accept(input);
+                        }
+                    },
+                    specimen -> {
+                        if (seen == null || seen.add(specimen.getIdElement().toVersionless().getValue())) {
+                            specimens.accept(specimen);
+                        }
+                    });
         }
-
-        return specimens;
     }
 
     /**
      * Fetches all organizations resources.
      */
-    public List<IBaseResource> fetchOrganizations(IGenericClient client) {
-        List<IBaseResource> resourceList = new ArrayList<>();
-
-        Bundle bundle =
-                client.search().forResource(Organization.class).returnBundle(Bundle.class).execute();
-
-        resourceList.addAll(BundleUtil.toListOfResources(ctx, bundle));
-
-        while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-            bundle = client.loadPage().next(bundle).execute();
-            resourceList.addAll(BundleUtil.toListOfResources(ctx, bundle));
-        }
-        return resourceList;
+    public FhirSearchIterable<Organization> fetchOrganizations(IGenericClient client) {
+        return search(
+                client,
+                () -> client.search().forResource(Organization.class).returnBundle(Bundle.class),
+                Organization.class);
     }
 
     /**
      * Fetches all organizations affiliation resources.
      */
-    public List<IBaseResource> fetchOrganizationAffiliation(IGenericClient client) {
-        List<IBaseResource> resourceList = new ArrayList<>();
-
-        Bundle bundle =
-                client
-                        .search()
-                        .forResource(OrganizationAffiliation.class)
-                        .returnBundle(Bundle.class)
-                        .execute();
-
-        resourceList.addAll(BundleUtil.toListOfResources(ctx, bundle));
-
-        while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-            bundle = client.loadPage().next(bundle).execute();
-            resourceList.addAll(BundleUtil.toListOfResources(ctx, bundle));
-        }
-        return resourceList;
+    public FhirSearchIterable<OrganizationAffiliation> fetchOrganizationAffiliation(
+            IGenericClient client) {
+        return search(
+                client,
+                () -> client.search().forResource(OrganizationAffiliation.class).returnBundle(Bundle.class),
+                OrganizationAffiliation.class);
     }
 
     /**
      * Fetches all observation resources.
      */
-    public List<IBaseResource> fetchPatientObservation(IGenericClient client, String patientId) {
-        List<IBaseResource> resourceList = new ArrayList<>();
-
-        Bundle bundle =
-                client
+    public FhirSearchIterable<Observation> fetchPatientObservation(
+            IGenericClient client, String patientId) {
+        return search(
+                client,
+                () -> client
                         .search()
                         .forResource(Observation.class)
                         .where(Observation.SUBJECT.hasId(patientId))
-                        .returnBundle(Bundle.class)
-                        .execute();
+                        .returnBundle(Bundle.class),
+                Observation.class);
+    }
+
+    /**
+     * Fetches all condition resources of a patient.
+     */
+    public FhirSearchIterable<Condition> fetchPatientCondition(
+            IGenericClient client, String patientId) {
+        return search(
+                client,
+                () -> client
+                        .search()
+                        .forResource(Condition.class)
+                        .where(Condition.SUBJECT.hasId(patientId))
+                        .returnBundle(Bundle.class),
+                Condition.class);
+    }
 
-        resourceList.addAll(BundleUtil.toListOfResources(ctx, bundle));
+    /**
+     * Fetches a patient together with its specimens, conditions and observations in one search.
+     * Only the types of the search plan are included, its search parameters are not applied.
+     */
+    public FhirSearchIterable<IBaseResource> fetchPatientCompartment(
+            IGenericClient client, String patientId) {
+        return search("Patient compartment", client, () -> compartmentQuery(client, patientId),
+                IBaseResource.class);
+    }
 
-        while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-            bundle = client.loadPage().next(bundle).execute();
-            resourceList.addAll(BundleUtil.toListOfResources(ctx, bundle));
+    private IQuery<Bundle> compartmentQuery(IGenericClient client, String patientId) {
+        IQuery<Bundle> query = client
+                .search()
+                .forResource(Patient.class)
+                .where(Patient.RES_ID.exactly().code(new IdType(patientId).getIdPart()))
+                .returnBundle(Bundle.class);
+        if (searchPlan.includes(Specimen.class)) {
+            query = query.revInclude(Specimen.INCLUDE_SUBJECT);
+        }
+        if (searchPlan.includes(Condition.class)) {
+            query = query.revInclude(Condition.INCLUDE_SUBJECT);
+        }
+        if (searchPlan.includes(Observation.class)) {
+            query = query.revInclude(Observation.INCLUDE_SUBJECT);
         }
+        return query;
+    }
 
-        return resourceList;
+    /**
+     * Fetches all patients with the given ids in one search.
+     */
+    public FhirSearchIterable<Patient> fetchPatients(IGenericClient client, List<String> patientIds) {
+        List<String> ids = patientIds.stream().map(id -> new IdType(id).getIdPart()).toList();
+        return search(
+                client,
+                () -> client
+                        .search()
+                        .forResource(Patient.class)
+                        .where(Patient.RES_ID.exactly().codes(ids))
+                        .usingStyle(searchStyle(ids))
+                        .returnBundle(Bundle.class),
+                Patient.class);
     }
 
     /**
-     * Fetches all condition resources of a patient.
+     * Fetches all resources of a type whose subject is one of the given patients in one search.
      */
-    public List<IBaseResource> fetchPatientCondition(IGenericClient client, String patientId) {
+    public <T extends IBaseResource> FhirSearchIterable<T> fetchPatientsResources(
+            IGenericClient client, Class<T> resourceType, List<String> patientIds) {
+        return search(client, () -> subjectQuery(client, resourceType, patientIds), resourceType);
+    }
 
-        Bundle bundle =
-                client
-                        .search()
-                        .forResource(Condition.class)
-                        .where(Condition.SUBJECT.hasId(patientId))
-                        .returnBundle(Bundle.class)
-                        .execute();
+    /**
+     * Fetches the resources of a type whose subject is one of the given patients, with the
+     * searches of the search plan. Resources found by several searches are passed only once.
+     */
+    public <T extends IBaseResource> void fetchPatientsResources(
+            IGenericClient client, Class<T> resourceType, List<String> patientIds, Consumer<T> resources) {
+        List<Map<String, List<String>>> searches = searchPlan.searches(resourceType);
+        Set<String> seen = searches.size() > 1 ? new HashSet<>() : null;
+        for (Map<String, List<String>> filter : searches) {
+            FhirSearchIterable<T> results = search(
+                    client, () -> filter(subjectQuery(client, resourceType, patientIds), filter), resourceType);
+            results.forEach(resource -> {
+                if (seen == null || seen.add(resource.getIdElement().toVersionless().getValue())) {
+                    resources.accept(resource);
+                }
+            });
+        }
+    }
 
-        List<IBaseResource> resourceList = new ArrayList<>(BundleUtil.toListOfResources(ctx, bundle));
+    private static IQuery<Bundle> subjectQuery(
+            IGenericClient client, Class<? extends IBaseResource> resourceType, List<String> patientIds) {
+        return client
+                .search()
+                .forResource(resourceType)
+                .where(new ReferenceClientParam("subject").hasAnyOfIds(patientIds))
+                .usingStyle(searchStyle(patientIds))
+                .returnBundle(Bundle.class);
+    }
 
-        while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-            bundle = client.loadPage().next(bundle).execute();
-            resourceList.addAll(BundleUtil.toListOfResources(ctx, bundle));
+    /**
+     * Adds search parameters to a query. Servers are asked to reject parameters they do not
+     * support, so that filters are not silently ignored.
+     */
+    private static IQuery<Bundle> filter(IQuery<Bundle> query, Map<String, List<String>> parameters) {
+        if (parameters.isEmpty()) {
+            return query;
         }
+        return query.whereMap(parameters).withAdditionalHeader("Prefer", "handling=strict");
+    }
 
-        return resourceList;
+    private static SearchStyleEnum searchStyle(List<String> values) {
+        int length = values.stream().mapToInt(value -> value.length() + 1).sum();
+        return length > MAX_GET_PARAMETER_LENGTH ? SearchStyleEnum.POST : SearchStyleEnum.GET;
     }
 
     /**
      * Fetches all patient ids which have a specimen.
      */
     public Set<String> getSpecimenPatients(IGenericClient sourceClient) {
-        List<IBaseResource> specimens = fetchSpecimenResources(sourceClient);
-        HashSet<String> patientRefs = new HashSet<>();
-        for (IBaseResource specimen : specimens) {
-            Specimen s = (Specimen) specimen;
-            patientRefs.add(s.getSubject().getReference());
+        PatientIdSet patientRefs = new PatientIdSet();
+        try {
+            scanSpecimens(sourceClient, discoveryProjection, specimen -> addPatientReference(patientRefs, specimen));
+        } catch (RuntimeException e) {
+            if (discoveryProjection == DiscoveryProjection.NONE || !isRejectedSearch(e)) {
+                throw e;
+            }
+            // A server which ignores the projection returns the full specimens, which works as
+            // well, but one which rejects it needs the full scan
+            log.warn("Source rejected the {} projection of the discovery, loading the full specimens instead: {}",
+                    discoveryProjection, e.getMessage());
+            discoveryProjection = DiscoveryProjection.NONE;
+            return getSpecimenPatients(sourceClient);
         }
+        log.info("Discovered " + patientRefs.describeMemory());
         return patientRefs;
     }
 
     /**
-     * Fetches all specimen ids which have an associated patient.
+     * Returns whether the search failed because the server does not support one of its
+     * parameters, also if the failure was wrapped by a partitioned scan.
      */
-    public Set<String> getSpecimenIds(IGenericClient sourceClient) {
-        List<IBaseResource> specimens = fetchSpecimenResources(sourceClient);
-        HashSet<String> specimenRefs = new HashSet<>();
-        for (IBaseResource specimen : specimens) {
-            Specimen s = (Specimen) specimen;
-            specimenRefs.add(s.getId());
+    private static boolean isRejectedSearch(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof InvalidRequestException || cause instanceof NotImplementedOperationException) {
+                return true;
+            }
         }
-        return specimenRefs;
+        return false;
     }
 
-    private HashSet<String> getPatientRefs(IGenericClient sourceClient) {
-        List<Patient> patients = fetchResources(Patient.class, sourceClient);
-        HashSet<String> patientRefs = new HashSet<>();
+    /**
+     * Fetches the json of all specimens with the discovery filter, in concurrent partitions if
+     * configured. The consumer is then called concurrently.
+     *
+     * @return number of specimens
+     */
+    public int fetchAllSpecimens(
+            IGenericClient sourceClient, RawSearchReader reader, Consumer<RawResource> specimens) {
+        PageSizer.PageSize pageSize = getPageSize("Specimen scan");
+        return scanSpecimens(sourceClient, window -> {
+            Map<String, List<String>> filter = new LinkedHashMap<>(discoveryFilter);
+            if (window != null) {
+                filter.put(Constants.PARAM_LASTUPDATED, List.of(
+                        window.getLowerBound().getValueAsQueryToken(ctx),
+                        window.getUpperBound().getValueAsQueryToken(ctx)));
+            }
+            AtomicInteger specimenCount = new AtomicInteger();
+            reader.search("Specimen", null, filter, pageSize, page -> {
+                page.forEach(specimens);
+                specimenCount.addAndGet(page.size());
+            });
+            return specimenCount.get();
+        });
+    }
+
+    private int scanSpecimens(
+            IGenericClient sourceClient, DiscoveryProjection projection, Consumer<Specimen> specimens) {
+        return scanSpecimens(sourceClient, window -> {
+            AtomicInteger specimenCount = new AtomicInteger();
+            fetchSpecimenSubjects(sourceClient, window, projection).forEach(specimen -> {
+                specimens.accept(specimen);
+                specimenCount.incrementAndGet();
+            });
+            return specimenCount.get();
+        });
+    }
+
+    /**
+     * Runs a scan of the specimens, in concurrent _lastUpdated partitions if configured.
+     *
+     * @param scan scans the specimens of a window, all specimens if it is null, and returns
+     *             their number
+     */
+    private int scanSpecimens(IGenericClient sourceClient, ToIntFunction<DateRangeParam> scan) {
+        if (discoveryPartitions <= 1) {
+            int specimenCount = scan.applyAsInt(null);
+            log.info("Loaded " + specimenCount + " Specimen Resources from source");
+            return specimenCount;
+        }
+
+        List<DateRangeParam> windows =
+                new LastUpdatedPartitioner(sourceClient, Specimen.class).partition(discoveryPartitions);
+
+        int specimenCount = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, windows.size()));
+        try {
+            List<Future<Integer>> scans = new ArrayList<>();
+            for (DateRangeParam window : windows) {
+                scans.add(executor.submit(() -> {
+                    int windowCount = scan.applyAsInt(window);
+                    log.debug("Finished specimen partition " + window);
+                    return windowCount;
+                }));
+            }
+            for (Future<Integer> windowScan : scans) {
+                specimenCount += windowScan.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during the partitioned specimen scan", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Partitioned specimen scan failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
 
-        for (IBaseResource patient : patients) {
-            patientRefs.add(patient.getIdElement().getValue());
+        log.info("Loaded " + specimenCount + " Specimen Resources from source in "
+                + windows.size() + " partitions");
+        return specimenCount;
+    }
+
+    /**
+     * Fetches all patients with a specimen whose Patient, Specimen, Condition or Observation
+     * resources changed after the given point in time.
+     */
+    public Set<String> getChangedPatients(IGenericClient sourceClient, Instant since) {
+        DateRangeParam changed = new DateRangeParam(
+                new DateParam(ParamPrefixEnum.GREATERTHAN, since.toString()), null);
+
+        PatientIdSet patientRefs = new PatientIdSet();
+        search("Specimen changes", sourceClient,
+                () -> filter(changedQuery(sourceClient, Specimen.class, changed, "subject"), discoveryFilter),
+                Specimen.class).forEach(specimen -> addPatientReference(patientRefs, specimen));
+
+        // Other changes only matter for patients which have specimens at all
+        PatientIdSet candidates = new PatientIdSet();
+        changedResources(sourceClient, Patient.class, changed, "id")
+                .forEach(patient -> addCandidate(candidates, patientRefs, patient));
+        changedResources(sourceClient, Condition.class, changed, "subject")
+                .forEach(condition -> addCandidate(candidates, patientRefs, condition));
+        changedResources(sourceClient, Observation.class, changed, "subject")
+                .forEach(observation -> addCandidate(candidates, patientRefs, observation));
+
+        List<String> batch = new ArrayList<>();
+        for (Iterator<String> it = candidates.iterator(); it.hasNext(); ) {
+            batch.add(it.next());
+            if (batch.size() == 100 || !it.hasNext()) {
+                List<String> ids = List.copyOf(batch);
+                search(sourceClient,
+                        () -> filter(subjectQuery(sourceClient, Specimen.class, ids), discoveryFilter),
+                        Specimen.class).forEach(specimen -> addPatientReference(patientRefs, specimen));
+                batch.clear();
+            }
         }
+
+        log.info("Found " + patientRefs.size() + " patients with changes since " + since);
         return patientRefs;
     }
 
+    private <T extends IBaseResource> FhirSearchIterable<T> changedResources(
+            IGenericClient client, Class<T> resourceType, DateRangeParam changed, String element) {
+        return search(resourceType.getSimpleName() + " changes", client,
+                () -> changedQuery(client, resourceType, changed, element), resourceType);
+    }
+
+    private static IQuery<Bundle> changedQuery(IGenericClient client,
+            Class<? extends IBaseResource> resourceType, DateRangeParam changed, String element) {
+        return client
+                .search()
+                .forResource(resourceType)
+                .lastUpdated(changed)
+                .elementsSubset(element)
+                .returnBundle(Bundle.class)
+                .count(500);
+    }
+
+    private static void addPatientReference(Set<String> patientRefs, IBaseResource resource) {
+        String reference = PatientCompartment.patientReference(resource);
+        if (reference != null) {
+            patientRefs.add(reference);
+        }
+    }
+
+    private static void addCandidate(
+            Set<String> candidates, Set<String> patientRefs, IBaseResource resource) {
+        String reference = PatientCompartment.patientReference(resource);
+        if (reference != null && !patientRefs.contains(reference)) {
+            candidates.add(reference);
+        }
+    }
+
     /**
      * Builds a bundle out of resource.
      */
-    public Bundle buildResources(List<IBaseResource> resources) {
+    public Bundle buildResources(List<? extends IBaseResource> resources) {
         Bundle bundleOut = new Bundle();
         bundleOut.setId(String.valueOf(UUID.randomUUID()));
         bundleOut.setType(Bundle.BundleType.TRANSACTION);
@@ -0,0 +1,99 @@
+package de.samply.samplexchange.utils.fhir;
+
+import de.samply.samplexchange.utils.fhir.clients.ServerClock;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Optional;
+
+/**
+ * Incremental run of a source, which transfers the changes since the watermark of the previous
+ * run and stores its own start as watermark once it completes.
+ * The watermark is the time of the source server before the discovery, as the Date header of
+ * its first response tells, less the time until that response arrived. It is compared with the
+ * _lastUpdated of the server in the next run, with the clock of this machine changes of the
+ * next run would be skipped as far as it is ahead of the server.
+ */
+@Slf4j
+class IncrementalRun {
+
+    private final WatermarkStore store;
+
+    private final String key;
+
+    private final ServerClock serverClock;
+
+    /**
+     * Start of the run on the local clock, used if the server sends no Date.
+     */
+    private final Instant clientStart = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+
+    /**
+     * -- GETTER --
+     * Watermark the run transfers the changes since, null if everything is transferred.
+     */
+    @Getter
+    private final Instant changedSince;
+
+    private Instant start;
+
+    /**
+     * Starts a run, loads the watermark of the source and starts the clock of the source server.
+     *
+     * @param key key of the source in the watermark file
+     */
+    IncrementalRun(Path watermarkFile, String key, ServerClock serverClock) {
+        this.store = new WatermarkStore(watermarkFile);
+        this.key = key;
+        this.serverClock = serverClock;
+        serverClock.start();
+
+        try {
+            Optional<Instant> watermark = store.load(key);
+            if (watermark.isPresent()) {
+                log.info("Transferring changes since {}", watermark.get());
+            } else {
+                log.info("No watermark found in {}, transferring everything", watermarkFile);
+            }
+            changedSince = watermark.orElse(null);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read watermark file " + watermarkFile, e);
+        }
+    }
+
+    /**
+     * Returns the start of the run on the clock of the source server.
+     */
+    synchronized Instant getStart() {
+        if (start == null) {
+            Optional<Instant> serverStart = serverClock.getStartTime();
+            if (serverStart.isPresent()) {
+                start = serverStart.get();
+            } else {
+                start = clientStart;
+                log.warn("{} sent no Date header, the watermark is taken from the local clock", key);
+            }
+        }
+        return start;
+    }
+
+    /**
+     * Continues a run which was stopped, its watermark is the start of the first attempt.
+     */
+    synchronized void resume(Instant startedAt) {
+        start = startedAt;
+    }
+
+    /**
+     * Stores the start of the run as watermark. Must only be called after all patients have
+     * been transferred.
+     */
+    void commit() throws IOException {
+        store.save(key, getStart());
+    }
+}
@@ -0,0 +1,135 @@
+package de.samply.samplexchange.utils.fhir;
+
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.SummaryEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DateTimeType;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Splits all resources of a type into _lastUpdated windows of about the same size.
+ * The windows end at the newest resource found when partitioning, so resources which
+ * are changed during the scan are not read twice. No window is empty, so there are fewer
+ * windows than requested if resources share their _lastUpdated.
+ */
+@Slf4j
+public class LastUpdatedPartitioner {
+
+    private static final int MAX_BISECTIONS = 24;
+
+    private final IGenericClient client;
+
+    private final Class<? extends IBaseResource> resourceType;
+
+    /**
+     * Constructor.
+     */
+    public LastUpdatedPartitioner(IGenericClient client, Class<? extends IBaseResource> resourceType) {
+        this.client = client;
+        this.resourceType = resourceType;
+    }
+
+    /**
+     * Returns up to the given number of consecutive, non-overlapping windows covering all
+     * resources, none if there are no resources.
+     */
+    public List<DateRangeParam> partition(int partitions) {
+        Date oldest = probeLastUpdated(true);
+        Date newest = probeLastUpdated(false);
+        if (oldest == null || newest == null) {
+            return List.of();
+        }
+
+        long lower = oldest.getTime();
+        long snapshot = newest.getTime() + 1;
+        int total = count(lower, snapshot);
+
+        List<Long> boundaries = new ArrayList<>();
+        boundaries.add(lower);
+        // Resources before the last boundary
+        int reached = 0;
+        for (int i = 1; i < partitions; i++) {
+            long target = (long) total * i / partitions;
+            if (target <= reached) {
+                // More partitions than resources, or many resources with the same _lastUpdated
+                continue;
+            }
+            long low = boundaries.get(boundaries.size() - 1);
+            long high = snapshot;
+            int highCount = total;
+            for (int bisection = 0; bisection < MAX_BISECTIONS && high - low > 1; bisection++) {
+                long middle = low + (high - low) / 2;
+                int middleCount = count(lower, middle);
+                if (middleCount < target) {
+                    low = middle;
+                } else {
+                    high = middle;
+                    highCount = middleCount;
+                }
+            }
+            if (high > boundaries.get(boundaries.size() - 1) && high < snapshot) {
+                boundaries.add(high);
+                reached = highCount;
+            }
+        }
+        boundaries.add(snapshot);
+
+        List<DateRangeParam> windows = new ArrayList<>();
+        for (int i = 0; i + 1 < boundaries.size(); i++) {
+            windows.add(window(boundaries.get(i), boundaries.get(i + 1)));
+        }
+        log.info("Split {} {} resources into {} _lastUpdated partitions",
+                total, resourceType.getSimpleName(), windows.size());
+        return windows;
+    }
+
+    private Date probeLastUpdated(boolean oldest) {
+        var sort = client.search().forResource(resourceType).sort();
+        // A single resource is read, so it is not projected, servers may not support _elements
+        Bundle bundle = (oldest
+                ? sort.ascending(Constants.PARAM_LASTUPDATED)
+                : sort.descending(Constants.PARAM_LASTUPDATED))
+                .count(1)
+                .returnBundle(Bundle.class)
+                .execute();
+
+        if (bundle.getEntry().isEmpty()) {
+            return null;
+        }
+        return bundle.getEntryFirstRep().getResource().getMeta().getLastUpdated();
+    }
+
+    private int count(long from, long to) {
+        return client
+                .search()
+                .forResource(resourceType)
+                .lastUpdated(window(from, to))
+                .summaryMode(SummaryEnum.COUNT)
+                .returnBundle(Bundle.class)
+                .execute()
+                .getTotal();
+    }
+
+    /**
+     * Window from inclusive to exclusive, both in epoch milliseconds.
+     */
+    static DateRangeParam window(long from, long to) {
+        return new DateRangeParam(
+                new DateParam(ParamPrefixEnum.GREATERTHAN_OR_EQUALS, instant(from)),
+                new DateParam(ParamPrefixEnum.LESSTHAN, instant(to)));
+    }
+
+    private static String instant(long millis) {
+        return new DateTimeType(new Date(millis), TemporalPrecisionEnum.MILLI).getValueAsString();
+    }
+}
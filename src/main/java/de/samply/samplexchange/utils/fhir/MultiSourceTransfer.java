@@ -0,0 +1,139 @@
+package de.samply.samplexchange.utils.fhir;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.samply.samplexchange.models.SourceModel;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transfers a list of sources concurrently, every source by a component of its own which shares
+ * the export, filter and search plan of the configured component. A failed source does not stop
+ * the others, its journal is kept for a resume.
+ */
+@Slf4j
+class MultiSourceTransfer {
+
+    private static final long PROGRESS_INTERVAL = TimeUnit.MINUTES.toSeconds(1);
+
+    private final FhirComponent shared;
+
+    private final List<SourceModel> sources;
+
+    /**
+     * Constructor.
+     *
+     * @param shared  component of the configured source whose export, filter and plan are shared
+     * @param sources sources which are transferred instead of the configured one
+     */
+    MultiSourceTransfer(FhirComponent shared, List<SourceModel> sources) {
+        this.shared = shared;
+        this.sources = sources;
+    }
+
+    /**
+     * Runs the transfer of every source and finishes the sources once all of them are exported.
+     *
+     * @throws IllegalStateException if a source failed, after the others are finished
+     */
+    void run(FhirComponent.SourceTransfer transfer) throws Exception {
+        List<FhirComponent> components = new ArrayList<>();
+        for (SourceModel source : sources) {
+            components.add(shared.forSource(source));
+        }
+        log.info("Transferring {} sources concurrently", components.size());
+
+        ExecutorService executor = Executors.newFixedThreadPool(components.size());
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "transfer-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        progress.scheduleAtFixedRate(() -> components.forEach(FhirComponent::logProgress),
+                PROGRESS_INTERVAL, PROGRESS_INTERVAL, TimeUnit.SECONDS);
+
+        List<FhirComponent> failed = new ArrayList<>();
+        Exception failure = null;
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (FhirComponent component : components) {
+                futures.add(executor.submit(() -> {
+                    Thread.currentThread().setName("source-" + component.getSourceName());
+                    transfer.transfer(component);
+                    return null;
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    log.error("Transfer of source {} failed", components.get(i).getSourceName(), e.getCause());
+                    failed.add(components.get(i));
+                    if (failure == null) {
+                        failure = e.getCause() instanceof Exception cause ? cause : e;
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+            progress.shutdownNow();
+        }
+
+        try {
+            shared.getFhirExportInterface().flush();
+            for (FhirComponent component : components) {
+                component.finishSource(failed.contains(component));
+                component.logProgress();
+            }
+        } finally {
+            components.forEach(FhirComponent::releaseReader);
+        }
+        shared.logTargetStatistics();
+        log.info("String pool: {}", shared.getParsers().getPool().describeStats());
+        if (failure != null) {
+            throw new IllegalStateException(
+                    failed.size() + " of " + components.size() + " sources failed", failure);
+        }
+    }
+
+    /**
+     * Reads the list of sources of an aggregating transfer.
+     */
+    static List<SourceModel> readSources(Path file) throws IOException {
+        List<SourceModel> sources = new ObjectMapper().readValue(file.toFile(), new TypeReference<>() {
+        });
+        if (sources.isEmpty()) {
+            throw new IllegalArgumentException("No sources in " + file);
+        }
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < sources.size(); i++) {
+            SourceModel source = sources.get(i);
+            if (source.url == null || source.url.isBlank()) {
+                throw new IllegalArgumentException("Source " + (i + 1) + " of " + file + " has no url");
+            }
+            if (source.name == null || source.name.isBlank()) {
+                source.name = "source-" + (i + 1);
+            }
+            // The name is part of the file name of the checkpoint journal
+            if (!source.name.matches("[A-Za-z0-9._-]+") || !names.add(source.name)) {
+                throw new IllegalArgumentException("Invalid or duplicate source name " + source.name + " in " + file);
+            }
+            source.username = Objects.requireNonNullElse(source.username, "");
+            source.password = Objects.requireNonNullElse(source.password, "");
+        }
+        return sources;
+    }
+}
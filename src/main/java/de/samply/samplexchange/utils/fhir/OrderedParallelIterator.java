@@ -0,0 +1,94 @@
+package de.samply.samplexchange.utils.fhir;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Applies a function to the elements of an iterator with several workers and returns the results
+ * in the order of the elements. At most as many elements as workers are processed ahead, so the
+ * adaptive limiter of the client decides how many requests are actually sent.
+ */
+public class OrderedParallelIterator<S, T> implements Iterator<T> {
+
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "fhir-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Iterator<S> source;
+
+    private final Function<S, T> function;
+
+    private final int workers;
+
+    private final Deque<CompletableFuture<T>> pending = new ArrayDeque<>();
+
+    /**
+     * Constructor.
+     */
+    public OrderedParallelIterator(Iterator<S> source, Function<S, T> function, int workers) {
+        this.source = source;
+        this.function = function;
+        this.workers = Math.max(1, workers);
+    }
+
+    /**
+     * Returns an iterator which applies the function in the calling thread for a single worker.
+     */
+    public static <S, T> Iterator<T> of(Iterator<S> source, Function<S, T> function, int workers) {
+        if (workers <= 1) {
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return source.hasNext();
+                }
+
+                @Override
+                public T next() {
+                    return function.apply(source.next());
+                }
+            };
+        }
+        return new OrderedParallelIterator<>(source, function, workers);
+    }
+
+    @Override
+    public boolean hasNext() {
+        fill();
+        return !pending.isEmpty();
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        try {
+            T result = pending.removeFirst().join();
+            fill();
+            return result;
+        } catch (CompletionException e) {
+            pending.forEach(future -> future.cancel(true));
+            pending.clear();
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    private void fill() {
+        while (pending.size() < workers && source.hasNext()) {
+            S element = source.next();
+            pending.addLast(CompletableFuture.supplyAsync(() -> function.apply(element), WORKERS));
+        }
+    }
+}
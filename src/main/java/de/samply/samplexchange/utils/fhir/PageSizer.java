@@ -0,0 +1,192 @@
+package de.samply.samplexchange.utils.fhir;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import de.samply.samplexchange.utils.fhir.clients.CompressionInterceptor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Adapts the _count of the searches to the response time and size of their pages.
+ * Every kind of search has its own page size. It follows the number of entries which fit into
+ * the latency and size budget of a page, changing at most twofold per page, and is halved when a
+ * page fails with a server error or a timeout. The failed page is then requested again and the
+ * page size stays below the failed one.
+ */
+@Slf4j
+public class PageSizer {
+
+    private static final int MIN_COUNT = 10;
+
+    private static final double MAX_GROWTH = 2.0;
+
+    /**
+     * Share of a failed page size which is not exceeded afterwards.
+     */
+    private static final double FAILED_CEILING = 0.9;
+
+    private static final int MAX_RETRIES = 3;
+
+    private static final Pattern COUNT = Pattern.compile("([?&]_count=)(\\d+)");
+
+    private final int initialCount;
+
+    private final int maxCount;
+
+    private final long targetNanos;
+
+    private final long targetBytes;
+
+    private final Map<String, PageSize> sizes = new LinkedHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param initialCount _count of the first page of every kind of search
+     * @param maxCount     maximum _count
+     * @param targetMillis latency budget of a page
+     * @param targetBytes  size budget of a page
+     */
+    public PageSizer(int initialCount, int maxCount, long targetMillis, long targetBytes) {
+        this.maxCount = Math.max(MIN_COUNT, maxCount);
+        this.initialCount = Math.min(this.maxCount, Math.max(MIN_COUNT, initialCount));
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+        this.targetBytes = targetBytes;
+    }
+
+    /**
+     * Returns the page size of a kind of search.
+     */
+    public synchronized PageSize get(String search) {
+        return sizes.computeIfAbsent(search, PageSize::new);
+    }
+
+    /**
+     * Replaces the _count of a paging link, returns null if the link has none.
+     */
+    public static String withCount(String url, int count) {
+        Matcher matcher = COUNT.matcher(url);
+        return matcher.find() ? matcher.replaceFirst("$1" + count) : null;
+    }
+
+    /**
+     * Describes the page sizes for logging.
+     */
+    public synchronized String describeStats() {
+        return sizes.values().stream().map(PageSize::describe).collect(Collectors.joining(", "));
+    }
+
+    /**
+     * Adaptive _count of one kind of search.
+     */
+    public class PageSize {
+
+        private final String search;
+
+        private int count = initialCount;
+
+        private int ceiling = maxCount;
+
+        private int smallest = initialCount;
+
+        private int largest = initialCount;
+
+        private long pages;
+
+        private long backoffs;
+
+        private PageSize(String search) {
+            this.search = search;
+        }
+
+        /**
+         * Returns the current _count.
+         */
+        public synchronized int getCount() {
+            return count;
+        }
+
+        /**
+         * Loads a page with the current _count and adapts it to the page. Server errors and
+         * timeouts halve the _count and load the page again.
+         *
+         * @param load    loads the page with the given _count
+         * @param entries number of entries of a page
+         */
+        public <P> P load(IntFunction<P> load, ToIntFunction<P> entries) {
+            for (int retry = 0; ; retry++) {
+                int requested = getCount();
+                long bytes = CompressionInterceptor.currentThreadResponseBytes();
+                long start = System.nanoTime();
+                try {
+                    P page = load.apply(requested);
+                    record(requested, entries.applyAsInt(page), System.nanoTime() - start,
+                            CompressionInterceptor.currentThreadResponseBytes() - bytes);
+                    return page;
+                } catch (BaseServerResponseException e) {
+                    boolean retryable = e instanceof FhirClientConnectionException || e.getStatusCode() >= 500;
+                    if (!retryable || retry >= MAX_RETRIES || !backOff(requested)) {
+                        throw e;
+                    }
+                    log.warn("Page of {} with _count={} failed: {}, retrying with _count={}",
+                            search, requested, e.getMessage(), getCount());
+                }
+            }
+        }
+
+        private synchronized void record(int requested, int entries, long nanos, long bytes) {
+            pages++;
+            // Only full pages tell how many entries fit into the budget, the last one is smaller
+            if (entries == 0 || entries < requested || requested != count) {
+                return;
+            }
+            double fitting = targetNanos / (nanos / (double) entries);
+            if (bytes > 0) {
+                fitting = Math.min(fitting, targetBytes / (bytes / (double) entries));
+            }
+            double bounded = Math.max(count / MAX_GROWTH, Math.min(fitting, count * MAX_GROWTH));
+            int next = (int) Math.max(MIN_COUNT, Math.min(ceiling, bounded));
+            if (next != count) {
+                log.debug("Page size of {} changed from {} to {} after {} entries in {} ms and {} bytes",
+                        search, count, next, entries, TimeUnit.NANOSECONDS.toMillis(nanos), bytes);
+                setCount(next);
+            }
+        }
+
+        /**
+         * Halves the _count after a failed page, returns false if it cannot be reduced.
+         */
+        private synchronized boolean backOff(int requested) {
+            if (count < requested) {
+                // Another page failed concurrently and already reduced it
+                return true;
+            }
+            if (count <= MIN_COUNT) {
+                return false;
+            }
+            ceiling = Math.max(MIN_COUNT, Math.min(ceiling, (int) (requested * FAILED_CEILING)));
+            backoffs++;
+            setCount(Math.max(MIN_COUNT, count / 2));
+            return true;
+        }
+
+        private void setCount(int count) {
+            this.count = count;
+            smallest = Math.min(smallest, count);
+            largest = Math.max(largest, count);
+        }
+
+        private synchronized String describe() {
+            return String.format("%s _count=%d (%d to %d, %d pages, %d backoffs, at most %d)",
+                    search, count, smallest, largest, pages, backoffs, ceiling);
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package de.samply.samplexchange.utils.fhir;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import de.samply.samplexchange.models.RawResource;
+import de.samply.samplexchange.utils.fhir.clients.FhirClient;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.util.EntityUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * Reads resources without the fhir model. Search pages are streamed and the json of every
+ * resource is copied token by token, only its type and id are extracted.
+ */
+@Slf4j
+public class RawSearchReader {
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private static final String FHIR_JSON = "application/fhir+json";
+
+    private final FhirClient client;
+
+    private final LongAdder resources = new LongAdder();
+
+    private final LongAdder bytes = new LongAdder();
+
+    private final LongAdder pages = new LongAdder();
+
+    /**
+     * Constructor.
+     */
+    public RawSearchReader(FhirClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Reads a resource, e.g. Patient/123.
+     */
+    public RawResource read(String reference) {
+        HttpGet request = new HttpGet(client.getClient().getServerBase() + "/" + reference);
+        try (CloseableHttpResponse response = execute(request, false)) {
+            try (InputStream content = response.getEntity().getContent();
+                 JsonParser parser = JSON.createParser(content)) {
+                parser.nextToken();
+                return copyResource(parser);
+            }
+        } catch (IOException e) {
+            throw new FhirClientConnectionException(e);
+        }
+    }
+
+    /**
+     * Searches the resources of a type page by page.
+     *
+     * @param subject  reference of the patient the resources belong to, null for all resources
+     * @param filter   further search parameters, which the server is asked to reject if unsupported
+     * @param pageSize adaptive _count of the search, null to use the page size of the server
+     * @param consumer receives the resources of the type on every page
+     */
+    public void search(String resourceType, String subject, Map<String, List<String>> filter,
+                       PageSizer.PageSize pageSize, Consumer<List<RawResource>> consumer) {
+        Map<String, List<String>> parameters = new LinkedHashMap<>();
+        if (subject != null) {
+            parameters.put("subject", List.of(subject));
+        }
+        parameters.putAll(filter);
+        boolean strict = !filter.isEmpty();
+
+        Page page = load(count -> firstRequest(resourceType, parameters, count), pageSize, resourceType, strict);
+        consumer.accept(page.resources());
+        while (page.next() != null) {
+            String next = page.next();
+            page = PageSizer.withCount(next, 0) == null
+                    ? load(count -> new HttpGet(next), null, resourceType, strict)
+                    : load(count -> new HttpGet(PageSizer.withCount(next, count)), pageSize, resourceType, strict);
+            consumer.accept(page.resources());
+        }
+    }
+
+    private Page load(IntFunction<HttpGet> request, PageSizer.PageSize pageSize,
+                      String resourceType, boolean strict) {
+        if (pageSize == null) {
+            return readPage(request.apply(0), resourceType, strict);
+        }
+        return pageSize.load(count -> readPage(request.apply(count), resourceType, strict), Page::entries);
+    }
+
+    /**
+     * Builds the first request of a search.
+     *
+     * @param count _count of the page, 0 for the page size of the server
+     */
+    private HttpGet firstRequest(String resourceType, Map<String, List<String>> parameters, int count) {
+        String base = client.getClient().getServerBase();
+        try {
+            URIBuilder uri = new URIBuilder(base + "/" + resourceType);
+            parameters.forEach((name, values) -> values.forEach(value -> uri.addParameter(name, value)));
+            if (count > 0) {
+                uri.addParameter("_count", String.valueOf(count));
+            }
+            return new HttpGet(uri.build());
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid source server " + base, e);
+        }
+    }
+
+    private Page readPage(HttpGet request, String resourceType, boolean strict) {
+        try (CloseableHttpResponse response = execute(request, strict)) {
+            String next = null;
+            int entries = 0;
+            List<RawResource> found = new ArrayList<>();
+            try (InputStream content = response.getEntity().getContent();
+                 JsonParser parser = JSON.createParser(content)) {
+                parser.nextToken();
+                if (parser.currentToken() != JsonToken.START_OBJECT) {
+                    throw new IOException("Search result is not a json object");
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.currentName();
+                    parser.nextToken();
+                    switch (field) {
+                        case "link" -> next = readNextLink(parser);
+                        case "entry" -> entries = readEntries(parser, resourceType, found);
+                        default -> parser.skipChildren();
+                    }
+                }
+            }
+            pages.increment();
+            return new Page(next, entries, found);
+        } catch (IOException e) {
+            throw new FhirClientConnectionException(e);
+        }
+    }
+
+    private CloseableHttpResponse execute(HttpGet request, boolean strict) throws IOException {
+        request.setHeader(HttpHeaders.ACCEPT, FHIR_JSON);
+        if (strict) {
+            request.setHeader("Prefer", "handling=strict");
+        }
+        client.authorize(request);
+        log.debug("Copying {}", request.getURI());
+
+        CloseableHttpResponse response = client.getHttpClient().execute(request);
+        int status = response.getStatusLine().getStatusCode();
+        if (status != HttpStatus.SC_OK) {
+            try (response) {
+                String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity());
+                throw BaseServerResponseException.newInstance(status,
+                        "Request " + request.getURI() + " failed with " + response.getStatusLine() + ": " + body);
+            }
+        }
+        return response;
+    }
+
+    private int readEntries(JsonParser parser, String resourceType, List<RawResource> found) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            throw new IOException("Bundle entries are not an array");
+        }
+        int entries = 0;
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            entries++;
+            String fullUrl = null;
+            RawResource resource = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                if (field.equals("fullUrl")) {
+                    fullUrl = parser.getValueAsString();
+                } else if (field.equals("resource")) {
+                    resource = copyResource(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            // Other types are e.g. an OperationOutcome of the search
+            if (resource != null && resource.resourceType().equals(resourceType)) {
+                found.add(fullUrl == null ? resource
+                        : new RawResource(resource.resourceType(), resource.id(), fullUrl, resource.json()));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Copies the resource object the parser is at and extracts its type and id.
+     * Numbers are copied as written, fhir decimals keep their precision.
+     */
+    private RawResource copyResource(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Resource is not a json object");
+        }
+        ByteArrayOutputStream json = new ByteArrayOutputStream(1024);
+        String resourceType = null;
+        String id = null;
+        try (JsonGenerator generator = JSON.createGenerator(json)) {
+            int depth = 0;
+            String field = null;
+            do {
+                JsonToken token = parser.currentToken();
+                if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT) {
+                    generator.writeNumber(parser.getText());
+                } else {
+                    generator.copyCurrentEvent(parser);
+                }
+                if (depth == 1 && token == JsonToken.FIELD_NAME) {
+                    field = parser.currentName();
+                } else if (depth == 1 && token == JsonToken.VALUE_STRING) {
+                    if ("resourceType".equals(field)) {
+                        resourceType = parser.getText();
+                    } else if ("id".equals(field)) {
+                        id = parser.getText();
+                    }
+                }
+                if (token.isStructStart()) {
+                    depth++;
+                } else if (token.isStructEnd()) {
+                    depth--;
+                }
+            } while (depth > 0 && parser.nextToken() != null);
+        }
+        if (resourceType == null || id == null) {
+            throw new IOException("Resource without resourceType or id");
+        }
+        resources.increment();
+        bytes.add(json.size());
+        return new RawResource(resourceType, id,
+                client.getClient().getServerBase() + "/" + resourceType + "/" + id, json.toByteArray());
+    }
+
+    private static String readNextLink(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return null;
+        }
+        String next = null;
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            String relation = null;
+            String url = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                switch (field) {
+                    case "relation" -> relation = parser.getValueAsString();
+                    case "url" -> url = parser.getValueAsString();
+                    default -> parser.skipChildren();
+                }
+            }
+            if ("next".equals(relation)) {
+                next = url;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Page of a search, with the url of the next page or null.
+     */
+    private record Page(String next, int entries, List<RawResource> resources) {
+    }
+
+    /**
+     * Describes how many resources were copied for logging.
+     */
+    public String describeStats() {
+        return String.format("%d resources of %d KiB copied from %d pages",
+                resources.sum(), bytes.sum() / 1024, pages.sum());
+    }
+}
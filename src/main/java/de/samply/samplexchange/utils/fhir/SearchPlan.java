@@ -0,0 +1,160 @@
+package de.samply.samplexchange.utils.fhir;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Resource types of the patient compartments a mapping consumes, together with the search
+ * parameters which select the resources it accepts. Several searches of one type are combined,
+ * e.g. for acceptance predicates which are joined by or.
+ */
+public class SearchPlan {
+
+    /**
+     * Resource types of the patient compartments.
+     */
+    public static final List<String> COMPARTMENT_TYPES =
+            List.of("Patient", "Specimen", "Condition", "Observation");
+
+    private static final Map<String, List<String>> UNFILTERED = Map.of();
+
+    /**
+     * Searches per resource type, without parameters for all resources of the type.
+     */
+    private final Map<String, List<Map<String, List<String>>>> searches = new LinkedHashMap<>();
+
+    /**
+     * Returns a plan which reads all resources of the patient compartments.
+     */
+    public static SearchPlan all() {
+        return of(COMPARTMENT_TYPES);
+    }
+
+    /**
+     * Returns a plan which reads all resources of the given types.
+     *
+     * @throws IllegalArgumentException if a type is not part of the patient compartments
+     */
+    public static SearchPlan of(Collection<String> resourceTypes) {
+        SearchPlan plan = new SearchPlan();
+        for (String resourceType : resourceTypes) {
+            if (!COMPARTMENT_TYPES.contains(resourceType)) {
+                throw new IllegalArgumentException("Unsupported resource type " + resourceType
+                        + ", possible values are " + COMPARTMENT_TYPES);
+            }
+            plan.searches.put(resourceType, List.of(UNFILTERED));
+        }
+        return plan;
+    }
+
+    /**
+     * Reads all resources of a type.
+     */
+    public SearchPlan fetch(Class<? extends IBaseResource> resourceType) {
+        return fetch(resourceType, List.of());
+    }
+
+    /**
+     * Reads the resources of a type which match one of the given searches, all resources of
+     * the type if none is given.
+     */
+    public SearchPlan fetch(
+            Class<? extends IBaseResource> resourceType, List<Map<String, List<String>>> filters) {
+        searches.put(resourceType.getSimpleName(), filters.isEmpty() ? List.of(UNFILTERED) : List.copyOf(filters));
+        return this;
+    }
+
+    /**
+     * Restricts a type to the resources which match one of the given searches, if the type is read.
+     */
+    public SearchPlan filter(
+            Class<? extends IBaseResource> resourceType, List<Map<String, List<String>>> filters) {
+        return includes(resourceType) ? fetch(resourceType, filters) : this;
+    }
+
+    /**
+     * Adds the given search parameters to every search of a type.
+     */
+    public SearchPlan restrict(
+            Class<? extends IBaseResource> resourceType, Map<String, List<String>> parameters) {
+        if (parameters.isEmpty() || !includes(resourceType)) {
+            return this;
+        }
+        List<Map<String, List<String>>> restricted = new ArrayList<>();
+        for (Map<String, List<String>> filter : searches(resourceType)) {
+            Map<String, List<String>> combined = new LinkedHashMap<>(filter);
+            parameters.forEach((name, values) -> combined.merge(name, values,
+                    (first, second) -> Stream.concat(first.stream(), second.stream()).toList()));
+            restricted.add(combined);
+        }
+        searches.put(resourceType.getSimpleName(), restricted);
+        return this;
+    }
+
+    /**
+     * Returns a plan with the same types which reads all of their resources.
+     */
+    public SearchPlan unfiltered() {
+        return of(searches.keySet());
+    }
+
+    /**
+     * Returns a copy which can be restricted without changing this plan.
+     */
+    public SearchPlan copy() {
+        SearchPlan plan = new SearchPlan();
+        plan.searches.putAll(searches);
+        return plan;
+    }
+
+    /**
+     * Returns whether resources of the type are read.
+     */
+    public boolean includes(Class<? extends IBaseResource> resourceType) {
+        return searches.containsKey(resourceType.getSimpleName());
+    }
+
+    /**
+     * Returns whether a type is restricted by search parameters.
+     */
+    public boolean isFiltered() {
+        return searches.values().stream().anyMatch(filters -> !filters.equals(List.of(UNFILTERED)));
+    }
+
+    /**
+     * Returns the names of the types which are read.
+     */
+    public Set<String> getResourceTypes() {
+        return searches.keySet();
+    }
+
+    /**
+     * Returns the search parameters of the searches of a type, none if the type is not read.
+     */
+    public List<Map<String, List<String>>> searches(Class<? extends IBaseResource> resourceType) {
+        return searches.getOrDefault(resourceType.getSimpleName(), List.of());
+    }
+
+    /**
+     * Describes the searches for logging, e.g. {@code Patient, Specimen?parent:missing=true}.
+     */
+    public String describe() {
+        return searches.entrySet().stream()
+                .flatMap(entry -> entry.getValue().stream().map(filter -> entry.getKey() + describe(filter)))
+                .collect(Collectors.joining(", "));
+    }
+
+    private static String describe(Map<String, List<String>> filter) {
+        return filter.entrySet().stream()
+                .flatMap(parameter -> parameter.getValue().stream().map(value -> parameter.getKey() + "=" + value))
+                .collect(Collectors.joining("&", filter.isEmpty() ? "" : "?", ""));
+    }
+}
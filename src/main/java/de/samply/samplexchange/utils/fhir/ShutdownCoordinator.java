@@ -0,0 +1,78 @@
+package de.samply.samplexchange.utils.fhir;
+
+import de.samply.samplexchange.readers.ResumableCompartmentReader;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops the transfers of all sources on shutdown with a single shutdown hook of the process.
+ * The hook is registered with the first transfer and removed once the last one is finished.
+ */
+@Slf4j
+@Component
+public class ShutdownCoordinator {
+
+    private static final long SHUTDOWN_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+
+    private final Set<ResumableCompartmentReader> readers = new LinkedHashSet<>();
+
+    private Thread hook;
+
+    /**
+     * Stops the reader on shutdown, the shutdown waits until it is released.
+     */
+    synchronized void register(ResumableCompartmentReader reader) {
+        readers.add(reader);
+        if (hook == null) {
+            hook = new Thread(this::shutdown, "graceful-shutdown");
+            Runtime.getRuntime().addShutdownHook(hook);
+        }
+    }
+
+    /**
+     * Releases the reader once its patients are exported and recorded, null is ignored.
+     */
+    synchronized void release(ResumableCompartmentReader reader) {
+        if (reader == null || !readers.remove(reader)) {
+            return;
+        }
+        notifyAll();
+        if (readers.isEmpty() && hook != null && Thread.currentThread() != hook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            } catch (IllegalStateException e) {
+                // The shutdown is already running and waits for this release
+                return;
+            }
+            hook = null;
+        }
+    }
+
+    /**
+     * Returns whether a reader is registered and not released yet.
+     */
+    synchronized boolean isRegistered(ResumableCompartmentReader reader) {
+        return readers.contains(reader);
+    }
+
+    private synchronized void shutdown() {
+        if (readers.isEmpty()) {
+            return;
+        }
+        log.info("Shutdown requested, finishing the patients in flight of {} transfers", readers.size());
+        readers.forEach(ResumableCompartmentReader::stop);
+        long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+        try {
+            for (long wait = SHUTDOWN_TIMEOUT; !readers.isEmpty() && wait > 0;
+                    wait = deadline - System.currentTimeMillis()) {
+                wait(wait);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
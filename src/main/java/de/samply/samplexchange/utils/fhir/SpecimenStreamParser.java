@@ -0,0 +1,393 @@
+package de.samply.samplexchange.utils.fhir;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import de.samply.samplexchange.models.SpecimenInput;
+import org.hl7.fhir.r4.model.DateTimeType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Extracts the fields read by the specimen mapping from the json of a specimen with a streaming
+ * parser, without building the fhir model. Shapes the mapping does not expect, e.g. a collection
+ * period or an extension value of another type, throw an {@link UnsupportedShapeException}, such
+ * specimens are parsed and mapped with the fhir model instead.
+ */
+public final class SpecimenStreamParser {
+
+    private static final String STORAGE_TEMPERATURE =
+            "https://fhir.bbmri.de/StructureDefinition/StorageTemperature";
+
+    private static final String SAMPLE_DIAGNOSIS =
+            "https://fhir.bbmri.de/StructureDefinition/SampleDiagnosis";
+
+    private static final String CUSTODIAN = "https://fhir.bbmri.de/StructureDefinition/Custodian";
+
+    private static final String MII_DIAGNOSIS =
+            "https://simplifier.net/medizininformatikinitiative-modulbiobank/files/fsh-generated/resources/structuredefinition-diagnose.json";
+
+    private static final String TEMPERATURE_CONDITIONS =
+            "https://www.medizininformatik-initiative.de/fhir/ext/modul-biobank/StructureDefinition/Temperaturbedingungen";
+
+    private static final String SNOMED = "http://snomed.info/sct";
+
+    private static final String STORAGE_PROCEDURE = "1186936003";
+
+    private final StringPool pool;
+
+    /**
+     * Constructor.
+     *
+     * @param pool pool of the codes and references of the specimens
+     */
+    public SpecimenStreamParser(StringPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Parses the specimen the parser is positioned on.
+     *
+     * @return the specimen, null if the resource is not a specimen
+     */
+    public SpecimenInput parse(JsonParser parser) throws IOException {
+        expect(parser, JsonToken.START_OBJECT);
+
+        SpecimenInput specimen = new SpecimenInput();
+        String resourceType = null;
+        String id = null;
+        String versionId = null;
+        // Storage processing steps are only valid after 1900, at the current time of day
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(1900, Calendar.JANUARY, 1);
+        Date storageAfter = calendar.getTime();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "resourceType" -> resourceType = parser.getValueAsString();
+                case "id" -> id = parser.getValueAsString();
+                case "meta" -> versionId = readVersionId(parser);
+                case "subject" -> specimen.setSubject(readReference(parser));
+                case "type" -> {
+                    SpecimenInput.Code type = firstCoding(readCodeableConcept(parser));
+                    specimen.setTypeCode(type == null ? null : type.code());
+                }
+                case "parent" -> {
+                    expect(parser, JsonToken.START_ARRAY);
+                    specimen.setHasParent(parser.nextToken() != JsonToken.END_ARRAY);
+                    if (specimen.isHasParent()) {
+                        parser.skipChildren();
+                        skipToEnd(parser);
+                    }
+                }
+                case "collection" -> readCollection(parser, specimen);
+                case "extension" -> readExtensions(parser, specimen);
+                case "processing" -> readProcessing(parser, specimen, storageAfter);
+                default -> parser.skipChildren();
+            }
+        }
+
+        if (!"Specimen".equals(resourceType)) {
+            return null;
+        }
+        if (id != null) {
+            specimen.setId("Specimen/" + id + (versionId == null ? "" : "/_history/" + versionId));
+        }
+        return specimen;
+    }
+
+    private void readCollection(JsonParser parser, SpecimenInput specimen) throws IOException {
+        expect(parser, JsonToken.START_OBJECT);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "collectedDateTime" -> specimen.setCollectedDateTime(parser.getValueAsString());
+                case "bodySite" -> {
+                    SpecimenInput.Code bodySite = firstCoding(readCodeableConcept(parser));
+                    if (bodySite != null) {
+                        specimen.setBodySiteSystem(bodySite.system());
+                        specimen.setBodySiteCode(bodySite.code());
+                    }
+                }
+                case "fastingStatusCodeableConcept" -> {
+                    SpecimenInput.Code fastingStatus = firstCoding(readCodeableConcept(parser));
+                    if (fastingStatus != null) {
+                        specimen.setFastingStatusSystem(fastingStatus.system());
+                        specimen.setFastingStatusCode(fastingStatus.code());
+                    }
+                }
+                case "collectedPeriod", "fastingStatusDuration" -> throw new UnsupportedShapeException(field);
+                default -> parser.skipChildren();
+            }
+        }
+    }
+
+    private void readExtensions(JsonParser parser, SpecimenInput specimen) throws IOException {
+        for (Extension extension : readExtensionList(parser)) {
+            switch (extension.url == null ? "" : extension.url) {
+                case STORAGE_TEMPERATURE -> {
+                    SpecimenInput.Code temperature = firstCoding(extension.codeableConcept());
+                    specimen.setStorageTemperature(temperature == null ? null : temperature.code());
+                }
+                case SAMPLE_DIAGNOSIS -> {
+                    for (SpecimenInput.Code diagnosis : extension.codeableConcept()) {
+                        if (diagnosis.system() == null) {
+                            throw new UnsupportedShapeException("diagnosis without system");
+                        }
+                        specimen.getDiagnoses().add(diagnosis);
+                    }
+                }
+                case CUSTODIAN -> specimen.setCustodian(pool.intern(extension.reference()));
+                default -> {
+                    if (MII_DIAGNOSIS.equals(extension.url)) {
+                        specimen.setConditionReference(extension.reference);
+                    }
+                    // Logged by the bbmri.de mapping
+                    specimen.setUnsupportedExtensions(specimen.getUnsupportedExtensions() + 1);
+                }
+            }
+        }
+    }
+
+    private void readProcessing(JsonParser parser, SpecimenInput specimen, Date storageAfter)
+            throws IOException {
+        expect(parser, JsonToken.START_ARRAY);
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            List<SpecimenInput.Code> procedure = List.of();
+            List<Extension> extensions = List.of();
+            String start = null;
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                switch (field) {
+                    case "procedure" -> procedure = readCodeableConcept(parser);
+                    case "extension" -> extensions = readExtensionList(parser);
+                    case "timePeriod" -> start = readPeriodStart(parser);
+                    case "timeDateTime" -> throw new UnsupportedShapeException(field);
+                    default -> parser.skipChildren();
+                }
+            }
+
+            boolean storage = procedure.stream().anyMatch(code ->
+                    SNOMED.equals(code.system()) && STORAGE_PROCEDURE.equals(code.code()));
+            boolean temperature = extensions.stream().anyMatch(extension ->
+                    TEMPERATURE_CONDITIONS.equals(extension.url));
+            if (!storage || !temperature) {
+                continue;
+            }
+            if (start == null) {
+                throw new UnsupportedShapeException("storage without start");
+            }
+            if (new DateTimeType(start).getValue().after(storageAfter)) {
+                // The mapping reads the range from the first extension of the step
+                Extension range = extensions.get(0);
+                if (!"valueRange".equals(range.valueType)) {
+                    throw new UnsupportedShapeException("storage temperature without range");
+                }
+                specimen.setStorageTemperatureHigh(range.rangeHigh);
+                specimen.setStorageTemperatureLow(range.rangeLow);
+            }
+        }
+    }
+
+    private List<Extension> readExtensionList(JsonParser parser) throws IOException {
+        expect(parser, JsonToken.START_ARRAY);
+        List<Extension> extensions = new ArrayList<>();
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            Extension extension = new Extension();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                if (field.equals("url")) {
+                    extension.url = parser.getValueAsString();
+                } else if (field.startsWith("value")) {
+                    extension.valueType = field;
+                    switch (field) {
+                        case "valueCodeableConcept" -> extension.codings = readCodeableConcept(parser);
+                        case "valueReference" -> extension.reference = readReference(parser);
+                        case "valueRange" -> readRange(parser, extension);
+                        default -> parser.skipChildren();
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            extensions.add(extension);
+        }
+        return extensions;
+    }
+
+    private static void readRange(JsonParser parser, Extension extension) throws IOException {
+        expect(parser, JsonToken.START_OBJECT);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "high" -> extension.rangeHigh = readQuantityValue(parser);
+                case "low" -> extension.rangeLow = readQuantityValue(parser);
+                default -> parser.skipChildren();
+            }
+        }
+    }
+
+    private static Long readQuantityValue(JsonParser parser) throws IOException {
+        expect(parser, JsonToken.START_OBJECT);
+        Long value = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if (field.equals("value")) {
+                if (token != JsonToken.VALUE_NUMBER_INT && token != JsonToken.VALUE_NUMBER_FLOAT) {
+                    throw new UnsupportedShapeException("quantity value " + token);
+                }
+                value = parser.getDecimalValue().longValue();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return value;
+    }
+
+    private static String readPeriodStart(JsonParser parser) throws IOException {
+        expect(parser, JsonToken.START_OBJECT);
+        String start = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if (field.equals("start")) {
+                start = parser.getValueAsString();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return start;
+    }
+
+    private static String readVersionId(JsonParser parser) throws IOException {
+        expect(parser, JsonToken.START_OBJECT);
+        String versionId = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if (field.equals("versionId")) {
+                versionId = parser.getValueAsString();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return versionId;
+    }
+
+    private static String readReference(JsonParser parser) throws IOException {
+        expect(parser, JsonToken.START_OBJECT);
+        String reference = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if (field.equals("reference")) {
+                reference = parser.getValueAsString();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return reference;
+    }
+
+    private List<SpecimenInput.Code> readCodeableConcept(JsonParser parser) throws IOException {
+        expect(parser, JsonToken.START_OBJECT);
+        List<SpecimenInput.Code> codings = new ArrayList<>(1);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if (!field.equals("coding")) {
+                parser.skipChildren();
+                continue;
+            }
+
+            expect(parser, JsonToken.START_ARRAY);
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                String system = null;
+                String code = null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String codingField = parser.currentName();
+                    parser.nextToken();
+                    switch (codingField) {
+                        case "system" -> system = parser.getValueAsString();
+                        case "code" -> code = parser.getValueAsString();
+                        default -> parser.skipChildren();
+                    }
+                }
+                codings.add(new SpecimenInput.Code(pool.intern(system), pool.intern(code)));
+            }
+        }
+        return codings;
+    }
+
+    private static SpecimenInput.Code firstCoding(List<SpecimenInput.Code> codings) {
+        return codings.isEmpty() ? null : codings.get(0);
+    }
+
+    private static void skipToEnd(JsonParser parser) throws IOException {
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            parser.skipChildren();
+        }
+    }
+
+    private static void expect(JsonParser parser, JsonToken token) throws IOException {
+        if (parser.currentToken() != token) {
+            throw new UnsupportedShapeException("expected " + token + " but found "
+                    + parser.currentToken() + " at " + parser.currentName());
+        }
+    }
+
+    /**
+     * Extension with the value types read by the mapping.
+     */
+    private static final class Extension {
+
+        private String url;
+
+        private String valueType;
+
+        private List<SpecimenInput.Code> codings;
+
+        private String reference;
+
+        private Long rangeHigh;
+
+        private Long rangeLow;
+
+        List<SpecimenInput.Code> codeableConcept() throws UnsupportedShapeException {
+            if (!"valueCodeableConcept".equals(valueType)) {
+                throw new UnsupportedShapeException(url + " without codeable concept");
+            }
+            return codings;
+        }
+
+        String reference() throws UnsupportedShapeException {
+            if (!"valueReference".equals(valueType)) {
+                throw new UnsupportedShapeException(url + " without reference");
+            }
+            return reference;
+        }
+    }
+
+    /**
+     * Thrown for specimens which have to be parsed with the fhir model.
+     */
+    public static class UnsupportedShapeException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedShapeException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package de.samply.samplexchange.utils.fhir;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import de.samply.samplexchange.models.SpecimenInput;
+import de.samply.samplexchange.utils.fhir.clients.FhirClient;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Specimen;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Reads specimen searches without the fhir model. The pages are streamed and every specimen is
+ * extracted by the {@link SpecimenStreamParser}. Specimens it does not support are parsed with
+ * the fhir model as before. The specimens of a page are passed on once the page is read
+ * completely, so a page which is loaded again after a failure does not repeat them.
+ */
+@Slf4j
+public class SpecimenStreamReader {
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private static final String FHIR_JSON = "application/fhir+json";
+
+    private final FhirParsers parsers;
+
+    private final FhirClient client;
+
+    private final SpecimenStreamParser streamParser;
+
+    private final LongAdder streamed = new LongAdder();
+
+    private final LongAdder parsed = new LongAdder();
+
+    private final LongAdder pages = new LongAdder();
+
+    private final LongAdder pageNanos = new LongAdder();
+
+    /**
+     * Constructor.
+     */
+    public SpecimenStreamReader(FhirParsers parsers, FhirClient client) {
+        this.parsers = parsers;
+        this.client = client;
+        this.streamParser = new SpecimenStreamParser(parsers.getPool());
+    }
+
+    /**
+     * Searches the specimens of the given patients. Streamed specimens are passed to the first
+     * consumer, specimens parsed with the fhir model to the second one.
+     *
+     * @param filter   further search parameters, which the server is asked to reject if unsupported
+     * @param pageSize adaptive _count of the search, null to use the page size of the server
+     */
+    public void fetchPatientsSpecimens(
+            List<String> patientIds,
+            Map<String, List<String>> filter,
+            PageSizer.PageSize pageSize,
+            Consumer<SpecimenInput> inputs,
+            Consumer<Specimen> specimens) {
+        String subjects = String.join(",", patientIds);
+        List<NameValuePair> parameters = new ArrayList<>();
+        parameters.add(new BasicNameValuePair("subject", subjects));
+        filter.forEach((name, values) ->
+                values.forEach(value -> parameters.add(new BasicNameValuePair(name, value))));
+        boolean strict = !filter.isEmpty();
+
+        Page page;
+        if (pageSize == null) {
+            page = readPage(firstRequest(parameters, subjects.length(), 0), strict);
+        } else {
+            page = pageSize.load(count -> readPage(firstRequest(parameters, subjects.length(), count), strict),
+                    Page::entries);
+        }
+        page.passTo(inputs, specimens);
+        while (page.next() != null) {
+            String next = page.next();
+            if (pageSize == null || PageSizer.withCount(next, 0) == null) {
+                page = readPage(new HttpGet(next), strict);
+            } else {
+                page = pageSize.load(count -> readPage(new HttpGet(PageSizer.withCount(next, count)), strict),
+                        Page::entries);
+            }
+            page.passTo(inputs, specimens);
+        }
+    }
+
+    /**
+     * Builds the first request of a search, posted if the subjects are too long for a url.
+     *
+     * @param count _count of the page, 0 for the page size of the server
+     */
+    private HttpRequestBase firstRequest(List<NameValuePair> parameters, int subjectsLength, int count) {
+        List<NameValuePair> pageParameters = new ArrayList<>(parameters);
+        if (count > 0) {
+            pageParameters.add(new BasicNameValuePair("_count", String.valueOf(count)));
+        }
+        String base = client.getClient().getServerBase();
+        if (subjectsLength > FhirTransfer.MAX_GET_PARAMETER_LENGTH) {
+            HttpPost post = new HttpPost(base + "/Specimen/_search");
+            post.setEntity(new UrlEncodedFormEntity(pageParameters, StandardCharsets.UTF_8));
+            return post;
+        }
+        try {
+            return new HttpGet(new URIBuilder(base + "/Specimen")
+                    .addParameters(pageParameters)
+                    .build());
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid source server " + base, e);
+        }
+    }
+
+    private Page readPage(HttpRequestBase request, boolean strict) {
+        request.setHeader(HttpHeaders.ACCEPT, FHIR_JSON);
+        if (strict) {
+            request.setHeader("Prefer", "handling=strict");
+        }
+        client.authorize(request);
+        log.debug("Streaming {}", request.getURI());
+
+        long start = System.nanoTime();
+        try (CloseableHttpResponse response = client.getHttpClient().execute(request)) {
+            int status = response.getStatusLine().getStatusCode();
+            if (status != HttpStatus.SC_OK) {
+                String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity());
+                throw BaseServerResponseException.newInstance(status,
+                        "Specimen search failed with " + response.getStatusLine() + ": " + body);
+            }
+
+            String next = null;
+            int entries = 0;
+            List<SpecimenInput> inputs = new ArrayList<>();
+            List<Specimen> specimens = new ArrayList<>();
+            try (InputStream content = response.getEntity().getContent();
+                 JsonParser parser = JSON.createParser(content)) {
+                parser.nextToken();
+                expectObject(parser);
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.currentName();
+                    parser.nextToken();
+                    switch (field) {
+                        case "link" -> next = readNextLink(parser);
+                        case "entry" -> entries = readEntries(parser, inputs, specimens);
+                        default -> parser.skipChildren();
+                    }
+                }
+            }
+            return new Page(next, entries, inputs, specimens);
+        } catch (IOException e) {
+            throw new FhirClientConnectionException(e);
+        } finally {
+            pages.increment();
+            pageNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    private int readEntries(JsonParser parser, List<SpecimenInput> inputs, List<Specimen> specimens)
+            throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            throw new IOException("Bundle entries are not an array");
+        }
+        int entries = 0;
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            entries++;
+            String fullUrl = null;
+            TokenBuffer resource = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                if (field.equals("fullUrl")) {
+                    fullUrl = parser.getValueAsString();
+                } else if (field.equals("resource")) {
+                    // Buffered as tokens, so the fhir model can parse it if the stream parser fails
+                    resource = new TokenBuffer(parser);
+                    resource.copyCurrentStructure(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (resource != null) {
+                readResource(fullUrl, resource, inputs, specimens);
+            }
+        }
+        return entries;
+    }
+
+    private void readResource(
+            String fullUrl, TokenBuffer resource, List<SpecimenInput> inputs, List<Specimen> specimens)
+            throws IOException {
+        SpecimenInput input;
+        try (JsonParser parser = resource.asParser()) {
+            parser.nextToken();
+            input = streamParser.parse(parser);
+        } catch (SpecimenStreamParser.UnsupportedShapeException | RuntimeException e) {
+            log.debug("Parsing specimen {} with the fhir model: {}", fullUrl, e.getMessage());
+            StringWriter json = new StringWriter();
+            try (JsonGenerator generator = JSON.createGenerator(json)) {
+                resource.serialize(generator);
+            }
+            Specimen specimen = parsers.parse(Specimen.class, json.toString());
+            if (fullUrl != null) {
+                specimen.setId(withVersion(fullUrl, specimen.getIdElement().getVersionIdPart()));
+            }
+            parsed.increment();
+            specimens.add(specimen);
+            return;
+        }
+
+        if (input == null) {
+            // Not a specimen, e.g. an OperationOutcome of the search
+            return;
+        }
+        if (fullUrl != null) {
+            String version = input.getId() == null ? null : new IdType(input.getId()).getVersionIdPart();
+            input.setId(withVersion(fullUrl, version));
+        }
+        streamed.increment();
+        inputs.add(input);
+    }
+
+    private static String withVersion(String fullUrl, String version) {
+        return version == null ? fullUrl : fullUrl + "/_history/" + version;
+    }
+
+    private static String readNextLink(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return null;
+        }
+        String next = null;
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            String relation = null;
+            String url = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                switch (field) {
+                    case "relation" -> relation = parser.getValueAsString();
+                    case "url" -> url = parser.getValueAsString();
+                    default -> parser.skipChildren();
+                }
+            }
+            if ("next".equals(relation)) {
+                next = url;
+            }
+        }
+        return next;
+    }
+
+    private static void expectObject(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Search result is not a json object");
+        }
+    }
+
+    /**
+     * Page of a search, with the url of the next page or null and its specimens.
+     */
+    private record Page(String next, int entries, List<SpecimenInput> inputs, List<Specimen> specimens) {
+
+        void passTo(Consumer<SpecimenInput> inputConsumer, Consumer<Specimen> specimenConsumer) {
+            inputs.forEach(inputConsumer);
+            specimens.forEach(specimenConsumer);
+        }
+    }
+
+    /**
+     * Describes how many specimens were streamed for logging.
+     */
+    public String describeStats() {
+        long pageCount = pages.sum();
+        return String.format("%d specimens streamed, %d parsed with the fhir model, %d pages in %.1f ms on average",
+                streamed.sum(), parsed.sum(), pageCount,
+                pageCount == 0 ? 0.0 : pageNanos.sum() / (double) pageCount / TimeUnit.MILLISECONDS.toNanos(1));
+    }
+}
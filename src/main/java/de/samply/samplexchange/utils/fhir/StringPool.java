@@ -0,0 +1,161 @@
+package de.samply.samplexchange.utils.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CanonicalType;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.PrimitiveType;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.UriType;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of the strings which repeat across resources, e.g. code systems, codes, profile and
+ * extension urls. Every parsed resource holds copies of its own of these strings, the pool
+ * replaces them with one shared instance. The pool is bounded, once it is full further strings
+ * are no longer pooled, so only the values of a few low-cardinality paths are pooled. Ids,
+ * references, free text and other uris like {@code Meta.source} or {@code Attachment.url} are
+ * not pooled, they rarely repeat and would fill the pool with strings which are never shared.
+ * The pool is owned by the {@link FhirParsers} of the transfer.
+ */
+public final class StringPool {
+
+    /**
+     * Longer strings are not pooled, they are rarely codes or urls.
+     */
+    private static final int MAX_LENGTH = 256;
+
+    private final ConcurrentHashMap<String, String> pool = new ConcurrentHashMap<>();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final int maxSize;
+
+    /**
+     * Constructor.
+     *
+     * @param maxSize maximum number of pooled strings, 0 disables the pool
+     */
+    public StringPool(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the pooled instance of the string, or the string itself if it is not pooled.
+     */
+    public String intern(String value) {
+        if (value == null || value.length() > MAX_LENGTH || maxSize == 0) {
+            return value;
+        }
+        String pooled = pool.get(value);
+        if (pooled != null) {
+            hits.increment();
+            return pooled;
+        }
+        misses.increment();
+        if (size.get() >= maxSize) {
+            return value;
+        }
+        // A slot is reserved before the string is added, so concurrent misses never overfill it
+        if (size.incrementAndGet() > maxSize) {
+            size.decrementAndGet();
+            return value;
+        }
+        pooled = pool.putIfAbsent(value, value);
+        if (pooled != null) {
+            size.decrementAndGet();
+            return pooled;
+        }
+        return value;
+    }
+
+    /**
+     * Replaces the codes, urls and coding displays of a parsed resource and its contained
+     * resources, e.g. of a search bundle, with their pooled instances.
+     */
+    public <T extends IBaseResource> T intern(FhirContext ctx, T resource) {
+        if (resource != null && maxSize > 0) {
+            internChildren(ctx, resource);
+        }
+        return resource;
+    }
+
+    /**
+     * Walks the children along the runtime definitions of the model, like the terser but
+     * without keeping the path of every element.
+     */
+    private void internChildren(FhirContext ctx, IBase element) {
+        BaseRuntimeElementDefinition<?> definition = ctx.getElementDefinition(element.getClass());
+        if (!(definition instanceof BaseRuntimeElementCompositeDefinition<?> composite)) {
+            return;
+        }
+        for (BaseRuntimeChildDefinition child : composite.getChildrenAndExtension()) {
+            for (IBase value : child.getAccessor().getValues(element)) {
+                if (value instanceof UriType uri) {
+                    if (isSharedUri(element, child.getElementName(), uri)) {
+                        intern(uri);
+                    }
+                } else if (value instanceof CodeType code) {
+                    intern(code);
+                } else if (value instanceof StringType string) {
+                    if (element instanceof Coding || element instanceof Quantity) {
+                        // Display of a coding or unit of a quantity
+                        intern(string);
+                    }
+                } else if (!(value instanceof PrimitiveType<?>)) {
+                    internChildren(ctx, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether the uri is a system, e.g. of a coding, quantity or identifier, an extension
+     * url or a canonical url like {@code Meta.profile}. Other uris mostly differ per resource.
+     */
+    private static boolean isSharedUri(IBase element, String name, UriType uri) {
+        return uri instanceof CanonicalType
+                || "system".equals(name)
+                || "url".equals(name) && element instanceof Extension;
+    }
+
+    private void intern(PrimitiveType<String> element) {
+        String value = element.getValue();
+        String pooled = intern(value);
+        if (pooled != value) {
+            // Uris, codes and strings keep the value as string representation, no copy is made
+            element.setValue(pooled);
+        }
+    }
+
+    /**
+     * Returns the number of pooled strings.
+     */
+    int size() {
+        return pool.size();
+    }
+
+    /**
+     * Describes the pool for logging.
+     */
+    public String describeStats() {
+        long shared = hits.sum();
+        long lookups = shared + misses.sum();
+        return String.format("%d strings pooled of at most %d, %d of %d lookups shared (%.1f%%)",
+                size.get(), maxSize, shared, lookups, lookups == 0 ? 0.0 : 100.0 * shared / lookups);
+    }
+}
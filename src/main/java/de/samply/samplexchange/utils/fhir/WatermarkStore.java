@@ -0,0 +1,63 @@
+package de.samply.samplexchange.utils.fhir;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.Properties;
+
+/**
+ * Persists the point in time up to which a source server has been transferred.
+ * The watermarks of all sources are kept in one properties file, keyed by the source url.
+ */
+@Slf4j
+public class WatermarkStore {
+
+    private final Path file;
+
+    public WatermarkStore(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the watermark of a source, empty if it was never transferred completely.
+     */
+    public Optional<Instant> load(String source) throws IOException {
+        String value = read().getProperty(source);
+        return value == null ? Optional.empty() : Optional.of(Instant.parse(value));
+    }
+
+    /**
+     * Stores the watermark of a source, replacing the file atomically.
+     */
+    public void save(String source, Instant watermark) throws IOException {
+        Properties properties = read();
+        properties.setProperty(source, watermark.toString());
+
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            properties.store(writer, "SampleXChange watermarks");
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Stored watermark {} for {}", watermark, source);
+    }
+
+    private Properties read() throws IOException {
+        Properties properties = new Properties();
+        if (Files.exists(file)) {
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            }
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,141 @@
+package de.samply.samplexchange.utils.fhir.clients;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the concurrent requests to a server with additive increase and multiplicative decrease.
+ * The limit grows by one per round trip while the latency stays within twice the baseline
+ * latency and the limit is in use. Latency spikes shrink the limit by 10 %, overload responses
+ * halve it and pause all requests for the Retry-After time.
+ */
+public class AdaptiveLimiter {
+
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    private static final double LATENCY_BACKOFF = 0.9;
+
+    private static final double OVERLOAD_BACKOFF = 0.5;
+
+    /**
+     * Share of the latency difference the baseline follows per response, so the baseline adapts
+     * to permanently slower responses.
+     */
+    private static final double BASELINE_DRIFT = 0.01;
+
+    private final int maxLimit;
+
+    private double limit;
+
+    private int inFlight;
+
+    private double baselineNanos = Double.NaN;
+
+    private long lastDecrease = System.nanoTime();
+
+    private long pausedUntil = System.nanoTime();
+
+    private int maxInFlight;
+
+    private long overloads;
+
+    private long latencyBackoffs;
+
+    /**
+     * Constructor.
+     */
+    public AdaptiveLimiter(int initialLimit, int maxLimit) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(1, initialLimit));
+    }
+
+    /**
+     * Waits until a request may be sent.
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (true) {
+            long pause = pausedUntil - System.nanoTime();
+            if (pause > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, pause);
+            } else if (inFlight >= (int) limit) {
+                wait();
+            } else {
+                break;
+            }
+        }
+        inFlight++;
+        maxInFlight = Math.max(maxInFlight, inFlight);
+    }
+
+    /**
+     * Releases a request which was answered after the given latency.
+     */
+    public synchronized void release(long latencyNanos) {
+        boolean limited = inFlight * 2 >= (int) limit;
+        inFlight--;
+
+        if (Double.isNaN(baselineNanos) || latencyNanos < baselineNanos) {
+            baselineNanos = latencyNanos;
+        } else {
+            baselineNanos += (latencyNanos - baselineNanos) * BASELINE_DRIFT;
+        }
+
+        long now = System.nanoTime();
+        if (latencyNanos > baselineNanos * LATENCY_TOLERANCE) {
+            // Back off at most once per round trip, a spike is reported by all requests in flight
+            if (now - lastDecrease > latencyNanos) {
+                limit = Math.max(1, limit * LATENCY_BACKOFF);
+                lastDecrease = now;
+                latencyBackoffs++;
+            }
+        } else if (limited) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Releases a request which failed without a usable latency.
+     */
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Releases a request which was rejected because the server is overloaded.
+     *
+     * @param retryAfterMillis time the server asked to wait, 0 if unknown
+     */
+    public synchronized void releaseOverloaded(long retryAfterMillis) {
+        inFlight--;
+        overloads++;
+
+        long now = System.nanoTime();
+        limit = Math.max(1, limit * OVERLOAD_BACKOFF);
+        lastDecrease = now;
+        pausedUntil = Math.max(pausedUntil, now + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis));
+        notifyAll();
+    }
+
+    /**
+     * Returns the current limit of concurrent requests.
+     */
+    public synchronized double getLimit() {
+        return limit;
+    }
+
+    /**
+     * Describes the state of the limiter for logging.
+     */
+    public synchronized String describeStats() {
+        return String.format(
+                "concurrency limit %.1f of %d, %d maximum in flight, %.1f ms baseline latency, "
+                        + "%d overload responses, %d latency backoffs",
+                limit,
+                maxLimit,
+                maxInFlight,
+                Double.isNaN(baselineNanos) ? 0.0 : baselineNanos / 1e6,
+                overloads,
+                latencyBackoffs);
+    }
+}
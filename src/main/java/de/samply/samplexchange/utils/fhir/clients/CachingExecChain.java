@@ -0,0 +1,159 @@
+package de.samply.samplexchange.utils.fhir.clients;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Answers GET requests from a disk cache. Cached responses are revalidated with
+ * If-None-Match and If-Modified-Since, so unchanged responses are transferred without body.
+ * The responses are cached as received, before they are decompressed.
+ */
+public class CachingExecChain implements ClientExecChain {
+
+    /**
+     * Context attribute set if the response was answered from the cache.
+     */
+    public static final String CACHE_HIT = "samplexchange.cache.hit";
+
+    private final ClientExecChain next;
+
+    private final DiskResponseCache cache;
+
+    /**
+     * Constructor.
+     */
+    public CachingExecChain(ClientExecChain next, DiskResponseCache cache) {
+        this.next = next;
+        this.cache = cache;
+    }
+
+    @Override
+    public CloseableHttpResponse execute(
+            HttpRoute route,
+            HttpRequestWrapper request,
+            HttpClientContext context,
+            HttpExecutionAware execAware) throws IOException, HttpException {
+        if (!"GET".equals(request.getRequestLine().getMethod())) {
+            return next.execute(route, request, context, execAware);
+        }
+
+        // Responses differ by user and by the negotiated format and encoding
+        String key = DiskResponseCache.key(
+                route.getTargetHost().toURI() + request.getRequestLine().getUri(),
+                headerValue(request.getFirstHeader(HttpHeaders.AUTHORIZATION)),
+                headerValue(request.getFirstHeader(HttpHeaders.ACCEPT)),
+                headerValue(request.getFirstHeader(HttpHeaders.ACCEPT_ENCODING)));
+
+        DiskResponseCache.Entry cached = cache.get(key);
+        if (cached != null) {
+            if (!cached.etag().isEmpty()) {
+                request.setHeader(HttpHeaders.IF_NONE_MATCH, cached.etag());
+            }
+            if (!cached.lastModified().isEmpty()) {
+                request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, cached.lastModified());
+            }
+        }
+
+        CloseableHttpResponse response = next.execute(route, request, context, execAware);
+        int status = response.getStatusLine().getStatusCode();
+        if (status == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+            response.close();
+            InputStream body = cache.openBody(key, cached);
+            if (body != null) {
+                cache.recordHit(cached);
+                context.setAttribute(CACHE_HIT, Boolean.TRUE);
+                return new CachedResponse(cached, body);
+            }
+            // The entry was replaced or removed in the meantime, ask for the full response
+            request.removeHeaders(HttpHeaders.IF_NONE_MATCH);
+            request.removeHeaders(HttpHeaders.IF_MODIFIED_SINCE);
+            response = next.execute(route, request, context, execAware);
+            status = response.getStatusLine().getStatusCode();
+        }
+
+        cache.recordMiss();
+        HttpEntity entity = response.getEntity();
+        if (status == HttpStatus.SC_OK && entity != null && isCacheable(response)) {
+            DiskResponseCache.Entry metadata = new DiskResponseCache.Entry(
+                    headerValue(response.getFirstHeader(HttpHeaders.ETAG)),
+                    headerValue(response.getFirstHeader(HttpHeaders.LAST_MODIFIED)),
+                    headerValue(entity.getContentType()),
+                    headerValue(entity.getContentEncoding()),
+                    -1);
+            InputStreamEntity storing = new InputStreamEntity(
+                    cache.storing(key, metadata, entity.getContent()), entity.getContentLength());
+            storing.setContentType(entity.getContentType());
+            storing.setContentEncoding(entity.getContentEncoding());
+            storing.setChunked(entity.isChunked());
+            response.setEntity(storing);
+        }
+        return response;
+    }
+
+    private static boolean isCacheable(CloseableHttpResponse response) {
+        if (!response.containsHeader(HttpHeaders.ETAG) && !response.containsHeader(HttpHeaders.LAST_MODIFIED)) {
+            return false;
+        }
+        for (Header header : response.getHeaders(HttpHeaders.CACHE_CONTROL)) {
+            if (header.getValue().toLowerCase().contains("no-store")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String headerValue(Header header) {
+        return header == null ? "" : header.getValue();
+    }
+
+    /**
+     * Response rebuilt from a cache entry, its body is streamed from the cache file.
+     */
+    private static final class CachedResponse extends BasicHttpResponse implements CloseableHttpResponse {
+
+        private final InputStream body;
+
+        CachedResponse(DiskResponseCache.Entry entry, InputStream body) {
+            super(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+            this.body = body;
+            InputStreamEntity entity = new InputStreamEntity(body, entry.length());
+            if (!entry.contentType().isEmpty()) {
+                entity.setContentType(entry.contentType());
+                setHeader(HttpHeaders.CONTENT_TYPE, entry.contentType());
+            }
+            if (!entry.contentEncoding().isEmpty()) {
+                entity.setContentEncoding(entry.contentEncoding());
+                setHeader(HttpHeaders.CONTENT_ENCODING, entry.contentEncoding());
+            }
+            if (!entry.etag().isEmpty()) {
+                setHeader(new BasicHeader(HttpHeaders.ETAG, entry.etag()));
+            }
+            if (!entry.lastModified().isEmpty()) {
+                setHeader(new BasicHeader(HttpHeaders.LAST_MODIFIED, entry.lastModified()));
+            }
+            setHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(entry.length()));
+            setEntity(entity);
+        }
+
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package de.samply.samplexchange.utils.fhir.clients;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Negotiates gzip compressed responses, compresses large request bodies and counts the body
+ * bytes before and after compression.
+ */
+public class CompressionInterceptor implements HttpRequestInterceptor, HttpResponseInterceptor {
+
+    private static final String GZIP = "gzip";
+
+    /**
+     * Decoded response bytes read by each thread, responses are read by the requesting thread.
+     */
+    private static final ThreadLocal<long[]> THREAD_RESPONSE_BYTES = ThreadLocal.withInitial(() -> new long[1]);
+
+    private final boolean acceptGzip;
+
+    private final boolean gzipRequests;
+
+    private final int threshold;
+
+    private final LongAdder requestBytes = new LongAdder();
+
+    private final LongAdder requestWireBytes = new LongAdder();
+
+    private final LongAdder responseBytes = new LongAdder();
+
+    private final LongAdder responseWireBytes = new LongAdder();
+
+    /**
+     * Constructor.
+     *
+     * @param acceptGzip   request gzip compressed responses
+     * @param gzipRequests compress request bodies
+     * @param threshold    minimum size in bytes of compressed request bodies
+     */
+    public CompressionInterceptor(boolean acceptGzip, boolean gzipRequests, int threshold) {
+        this.acceptGzip = acceptGzip;
+        this.gzipRequests = gzipRequests;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public void process(HttpRequest request, HttpContext context) throws IOException {
+        if (acceptGzip && !request.containsHeader(HttpHeaders.ACCEPT_ENCODING)) {
+            request.setHeader(HttpHeaders.ACCEPT_ENCODING, GZIP);
+        }
+        if (!(request instanceof HttpEntityEnclosingRequest enclosingRequest)
+                || enclosingRequest.getEntity() == null) {
+            return;
+        }
+
+        HttpEntity entity = enclosingRequest.getEntity();
+        long length = entity.getContentLength();
+        if (!gzipRequests
+                || entity.getContentEncoding() != null
+                || request.containsHeader(HttpHeaders.CONTENT_ENCODING)
+                || (length >= 0 && length < threshold)) {
+            if (length > 0) {
+                requestBytes.add(length);
+                requestWireBytes.add(length);
+            }
+            return;
+        }
+
+        byte[] body = EntityUtils.toByteArray(entity);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(body);
+        }
+        ByteArrayEntity gzipEntity = new ByteArrayEntity(compressed.toByteArray());
+        gzipEntity.setContentType(entity.getContentType());
+        gzipEntity.setContentEncoding(GZIP);
+        enclosingRequest.setEntity(gzipEntity);
+        enclosingRequest.setHeader(HttpHeaders.CONTENT_ENCODING, GZIP);
+
+        requestBytes.add(body.length);
+        requestWireBytes.add(compressed.size());
+    }
+
+    @Override
+    public void process(HttpResponse response, HttpContext context) {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return;
+        }
+
+        // Responses from the response cache did not cross the wire
+        LongAdder[] wireBytes = Boolean.TRUE.equals(context.getAttribute(CachingExecChain.CACHE_HIT))
+                ? new LongAdder[0]
+                : new LongAdder[]{responseWireBytes};
+
+        Header encoding = entity.getContentEncoding();
+        if (encoding != null && GZIP.equalsIgnoreCase(encoding.getValue().trim())) {
+            response.setEntity(new CountingEntity(
+                    new GzipDecompressingEntity(new CountingEntity(entity, false, wireBytes)),
+                    true, responseBytes));
+            response.removeHeaders(HttpHeaders.CONTENT_LENGTH);
+            response.removeHeaders(HttpHeaders.CONTENT_ENCODING);
+            response.removeHeaders("Content-MD5");
+        } else {
+            response.setEntity(wireBytes.length == 0
+                    ? new CountingEntity(entity, true, responseBytes)
+                    : new CountingEntity(entity, true, responseWireBytes, responseBytes));
+        }
+    }
+
+    /**
+     * Describes the transferred body bytes for logging.
+     */
+    public String describeStats() {
+        return String.format("received %s (%s on the wire), sent %s (%s on the wire)",
+                size(responseBytes.sum()), size(responseWireBytes.sum()),
+                size(requestBytes.sum()), size(requestWireBytes.sum()));
+    }
+
+    /**
+     * Returns the decoded response bytes the current thread has read so far, the difference
+     * around a request is the size of its response.
+     */
+    public static long currentThreadResponseBytes() {
+        return THREAD_RESPONSE_BYTES.get()[0];
+    }
+
+    /**
+     * Formats a byte count for logging.
+     */
+    static String size(long bytes) {
+        return bytes < 1024 * 1024
+                ? String.format("%.1f KiB", bytes / 1024.0)
+                : String.format("%.1f MiB", bytes / (1024.0 * 1024.0));
+    }
+
+    /**
+     * Entity which counts the bytes read from its content.
+     */
+    private static final class CountingEntity extends HttpEntityWrapper {
+
+        private final boolean decoded;
+
+        private final LongAdder[] counters;
+
+        CountingEntity(HttpEntity entity, boolean decoded, LongAdder... counters) {
+            super(entity);
+            this.decoded = decoded;
+            this.counters = counters;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new FilterInputStream(super.getContent()) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        count(1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    int read = super.read(buffer, offset, length);
+                    if (read > 0) {
+                        count(read);
+                    }
+                    return read;
+                }
+            };
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try (InputStream in = getContent()) {
+                in.transferTo(out);
+            }
+        }
+
+        private void count(long bytes) {
+            for (LongAdder counter : counters) {
+                counter.add(bytes);
+            }
+            if (decoded) {
+                THREAD_RESPONSE_BYTES.get()[0] += bytes;
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package de.samply.samplexchange.utils.fhir.clients;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Connection pool and timeout settings of one fhir endpoint. Durations are in seconds.
+ */
+@Data
+@AllArgsConstructor
+public class ConnectionSettings {
+
+    /**
+     * Maximum number of open connections.
+     */
+    private int maxTotal;
+
+    /**
+     * Maximum number of open connections per route.
+     */
+    private int maxPerRoute;
+
+    /**
+     * Keep alive of idle connections if the server sends no Keep-Alive header.
+     */
+    private int keepAlive;
+
+    /**
+     * Idle connections are closed after this time.
+     */
+    private int idleTimeout;
+
+    private int connectTimeout;
+
+    private int socketTimeout;
+
+    /**
+     * Maximum wait for a free connection of the pool.
+     */
+    private int leaseTimeout;
+
+    /**
+     * Request gzip compressed responses.
+     */
+    private boolean acceptGzip;
+
+    /**
+     * Compress request bodies with gzip.
+     */
+    private boolean gzipRequests;
+
+    /**
+     * Minimum size in bytes of compressed request bodies.
+     */
+    private int gzipThreshold;
+
+    /**
+     * Concurrent requests at the start, adapted while transferring.
+     */
+    private int initialConcurrency;
+
+    /**
+     * Upper bound of concurrent requests.
+     */
+    private int maxConcurrency;
+
+    /**
+     * Directory of the response cache, empty to disable the cache.
+     */
+    private String cacheDirectory;
+
+    /**
+     * Maximum size of the response cache in MiB.
+     */
+    private int cacheMaxSize;
+}
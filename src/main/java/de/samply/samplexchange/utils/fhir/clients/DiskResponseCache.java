@@ -0,0 +1,387 @@
+package de.samply.samplexchange.utils.fhir.clients;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Persistent cache of http responses which carry an ETag or Last-Modified validator.
+ * Every response is stored in one file, a header with the body length and the validators
+ * followed by the body. Only the header is read to revalidate a response, the body is read
+ * once the server confirmed it. The least recently used responses are removed once the cache
+ * exceeds its maximum size.
+ */
+@Slf4j
+public class DiskResponseCache {
+
+    private static final int MAGIC = 0x53584332;
+
+    private static final String SUFFIX = ".entry";
+
+    private final Path directory;
+
+    private final long maxSize;
+
+    /**
+     * Sizes of the entries, in access order.
+     */
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long size;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder bytesSaved = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Constructor, loads the index of an existing cache directory.
+     *
+     * @param maxSize maximum size in bytes
+     */
+    public DiskResponseCache(Path directory, long maxSize) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        Files.createDirectories(directory);
+
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> entries = files
+                    .filter(file -> file.getFileName().toString().endsWith(SUFFIX))
+                    .sorted(Comparator.comparing(DiskResponseCache::lastModified))
+                    .toList();
+            for (Path entry : entries) {
+                long entrySize = Files.size(entry);
+                index.put(key(entry), entrySize);
+                size += entrySize;
+            }
+        }
+        evict();
+        log.info("Using response cache {} with {} entries and {} MiB",
+                directory, index.size(), size / (1024 * 1024));
+    }
+
+    /**
+     * Builds the key of a request out of its url and the headers which change the response.
+     */
+    public static String key(String url, String... headers) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(url.getBytes(StandardCharsets.UTF_8));
+            for (String header : headers) {
+                digest.update((byte) '\n');
+                if (header != null) {
+                    digest.update(header.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the validators and headers of the cached response, null if there is none or its
+     * file is corrupt.
+     */
+    public Entry get(String key) {
+        synchronized (this) {
+            if (index.get(key) == null) {
+                return null;
+            }
+        }
+
+        Path file = file(key);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Entry entry = readHeader(channel);
+            if (entry == null) {
+                log.debug("Removing corrupt cache entry {}", file);
+                remove(key);
+            }
+            return entry;
+        } catch (IOException e) {
+            log.debug("Could not read cache entry {}: {}", file, e.getMessage());
+            remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Opens the body of a cached response which the server confirmed, null if the entry was
+     * replaced or removed since it was read.
+     */
+    public InputStream openBody(String key, Entry entry) {
+        Path file = file(key);
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            if (!entry.equals(readHeader(channel))) {
+                channel.close();
+                return null;
+            }
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return new BufferedInputStream(Channels.newInputStream(channel));
+        } catch (IOException e) {
+            log.debug("Could not read cache entry {}: {}", file, e.getMessage());
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException closeException) {
+                    e.addSuppressed(closeException);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Reads the header of an entry, null if the file is no complete entry. The channel is
+     * positioned at the start of the body afterwards.
+     */
+    private static Entry readHeader(FileChannel channel) throws IOException {
+        // Not buffered, so the channel is not read beyond the header
+        DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+        if (channel.size() < Integer.BYTES + Long.BYTES || in.readInt() != MAGIC) {
+            return null;
+        }
+        long length = in.readLong();
+        if (length < 0 || length > channel.size()) {
+            return null;
+        }
+        Entry entry = new Entry(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), length);
+        // A file which was cut off is shorter than its header says
+        return channel.position() + length == channel.size() ? entry : null;
+    }
+
+    /**
+     * Returns a stream which stores the content of the given stream as cache entry while it is
+     * read. The content which is not read yet is drained on close, the entry is discarded if
+     * the content cannot be read completely.
+     */
+    public InputStream storing(String key, Entry metadata, InputStream content) throws IOException {
+        Path temp = Files.createTempFile(directory, key, ".tmp");
+        FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        out.writeInt(MAGIC);
+        // The length of the body is written once it is known
+        out.writeLong(-1);
+        out.writeUTF(metadata.etag());
+        out.writeUTF(metadata.lastModified());
+        out.writeUTF(metadata.contentType());
+        out.writeUTF(metadata.contentEncoding());
+
+        return new FilterInputStream(content) {
+            private boolean done;
+
+            private long length;
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b < 0) {
+                    commit();
+                } else {
+                    write(out, new byte[]{(byte) b}, 0, 1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read < 0) {
+                    commit();
+                } else {
+                    write(out, buffer, offset, read);
+                }
+                return read;
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    // Parsers stop at the end of the document, the rest is usually empty
+                    if (!done) {
+                        byte[] buffer = new byte[8192];
+                        while (read(buffer, 0, buffer.length) >= 0) {
+                            // Drain
+                        }
+                    }
+                    super.close();
+                } finally {
+                    discard();
+                }
+            }
+
+            private void write(OutputStream out, byte[] buffer, int offset, int length) {
+                if (done) {
+                    return;
+                }
+                try {
+                    out.write(buffer, offset, length);
+                    this.length += length;
+                } catch (IOException e) {
+                    log.debug("Could not write cache entry: {}", e.getMessage());
+                    discard();
+                }
+            }
+
+            private void commit() {
+                if (done) {
+                    return;
+                }
+                done = true;
+                try {
+                    out.flush();
+                    channel.write(ByteBuffer.allocate(Long.BYTES).putLong(0, length), Integer.BYTES);
+                    out.close();
+                    put(key, temp);
+                } catch (IOException e) {
+                    log.debug("Could not store cache entry: {}", e.getMessage());
+                    deleteTemp();
+                }
+            }
+
+            private void discard() {
+                if (done) {
+                    return;
+                }
+                done = true;
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // The entry is removed anyway
+                }
+                deleteTemp();
+            }
+
+            private void deleteTemp() {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    log.debug("Could not remove incomplete cache entry: {}", e.getMessage());
+                }
+            }
+        };
+    }
+
+    /**
+     * Records a response which was answered from the cache.
+     */
+    public void recordHit(Entry entry) {
+        hits.increment();
+        bytesSaved.add(entry.length());
+    }
+
+    /**
+     * Records a response which had to be transferred.
+     */
+    public void recordMiss() {
+        misses.increment();
+    }
+
+    /**
+     * Describes the cache statistics for logging.
+     */
+    public synchronized String describeStats() {
+        return String.format("%d hits, %d misses, %s saved, %d evictions, %d entries with %s",
+                hits.sum(), misses.sum(), CompressionInterceptor.size(bytesSaved.sum()), evictions.sum(),
+                index.size(), CompressionInterceptor.size(size));
+    }
+
+    private void put(String key, Path temp) throws IOException {
+        long entrySize = Files.size(temp);
+        if (entrySize > maxSize) {
+            Files.deleteIfExists(temp);
+            return;
+        }
+        Files.move(temp, file(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        synchronized (this) {
+            Long previous = index.put(key, entrySize);
+            size += entrySize - (previous == null ? 0 : previous);
+            evict();
+        }
+    }
+
+    private synchronized void remove(String key) {
+        Long entrySize = index.remove(key);
+        if (entrySize != null) {
+            size -= entrySize;
+        }
+        try {
+            Files.deleteIfExists(file(key));
+        } catch (IOException e) {
+            log.debug("Could not remove cache entry {}: {}", key, e.getMessage());
+        }
+    }
+
+    private synchronized void evict() {
+        Iterator<Map.Entry<String, Long>> entries = index.entrySet().iterator();
+        while (size > maxSize && entries.hasNext()) {
+            Map.Entry<String, Long> entry = entries.next();
+            entries.remove();
+            size -= entry.getValue();
+            evictions.increment();
+            try {
+                Files.deleteIfExists(file(entry.getKey()));
+            } catch (IOException e) {
+                log.debug("Could not remove cache entry {}: {}", entry.getKey(), e.getMessage());
+            }
+        }
+    }
+
+    private Path file(String key) {
+        return directory.resolve(key + SUFFIX);
+    }
+
+    private static String key(Path file) {
+        String name = file.getFileName().toString();
+        return name.substring(0, name.length() - SUFFIX.length());
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /**
+     * Cached response without its body, validators and headers are empty strings if not present.
+     *
+     * @param length length of the body in bytes
+     */
+    public record Entry(
+            String etag, String lastModified, String contentType, String contentEncoding, long length) {
+    }
+}
@@ -0,0 +1,93 @@
+package de.samply.samplexchange.utils.fhir.clients;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.client.apache.ApacheHttpClient;
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
+import ca.uhn.fhir.rest.client.api.Header;
+import ca.uhn.fhir.rest.client.api.IHttpClient;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.client.HttpClient;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Restful client factory which sends the requests of every registered server through its own
+ * http client. HAPI creates the http client of each request from the factory of the context,
+ * so the factory of the context has to choose the connection pool by url.
+ */
+@Slf4j
+public class EndpointRoutingClientFactory extends ApacheRestfulClientFactory {
+
+    private final Map<String, HttpClient> endpoints = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     */
+    public EndpointRoutingClientFactory(FhirContext ctx) {
+        super(ctx);
+    }
+
+    /**
+     * Returns the routing factory of the context, installing it if necessary.
+     */
+    public static EndpointRoutingClientFactory install(FhirContext ctx) {
+        synchronized (ctx) {
+            if (ctx.getRestfulClientFactory() instanceof EndpointRoutingClientFactory factory) {
+                return factory;
+            }
+            EndpointRoutingClientFactory factory = new EndpointRoutingClientFactory(ctx);
+            ctx.setRestfulClientFactory(factory);
+            return factory;
+        }
+    }
+
+    /**
+     * Sends all requests below the server base through the given http client.
+     * The requests are routed by url only, so a server base is kept by its first client. A later
+     * client of the same base, like a target which is also the source, shares the connection pool
+     * and concurrency limit of the first one.
+     *
+     * @return the http client the requests of the server base are sent through
+     */
+    public HttpClient register(String serverBase, HttpClient httpClient) {
+        String base = normalize(serverBase);
+        HttpClient registered = endpoints.putIfAbsent(base, httpClient);
+        if (registered == null) {
+            return httpClient;
+        }
+        if (registered != httpClient) {
+            log.warn("{} is already registered, its fhir requests share the connection pool and "
+                    + "concurrency limit of the first client", base);
+        }
+        return registered;
+    }
+
+    @Override
+    public synchronized IHttpClient getHttpClient(
+            StringBuilder url,
+            Map<String, List<String>> ifNoneExistParams,
+            String ifNoneExistString,
+            RequestTypeEnum requestType,
+            List<Header> headers) {
+        return new ApacheHttpClient(
+                httpClientFor(url.toString()), url, ifNoneExistParams, ifNoneExistString, requestType, headers);
+    }
+
+    private HttpClient httpClientFor(String url) {
+        String match = null;
+        for (String serverBase : endpoints.keySet()) {
+            if ((url.equals(serverBase) || url.startsWith(serverBase + "/") || url.startsWith(serverBase + "?"))
+                    && (match == null || serverBase.length() > match.length())) {
+                match = serverBase;
+            }
+        }
+        return match == null ? getNativeHttpClient() : endpoints.get(match);
+    }
+
+    private static String normalize(String serverBase) {
+        return serverBase.endsWith("/") ? serverBase.substring(0, serverBase.length() - 1) : serverBase;
+    }
+}
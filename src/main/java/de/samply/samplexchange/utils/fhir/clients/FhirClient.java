@@ -4,24 +4,41 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.client.api.IClientInterceptor;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.client.interceptor.BasicAuthInterceptor;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.execchain.ClientExecChain;
 import org.apache.http.ssl.SSLContexts;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Fhir generic client with some additions.
+ * Every client has its own connection pool, so source and target do not compete for connections.
  */
 @Getter
 @Slf4j
@@ -33,11 +50,54 @@ public class FhirClient {
      */
     private final IGenericClient client;
 
+    /**
+     * -- GETTER --
+     * Plain http client for requests which are not covered by the fhir client.
+     */
+    private final CloseableHttpClient httpClient;
+
+    /**
+     * -- GETTER --
+     * Connection pool of the client.
+     */
+    private final InstrumentedConnectionManager connectionManager;
+
+    @Getter(AccessLevel.NONE)
+    private final CompressionInterceptor compression;
+
+    /**
+     * -- GETTER --
+     * Limiter of the concurrent requests to the server.
+     */
+    private final AdaptiveLimiter limiter;
+
+    /**
+     * -- GETTER --
+     * Maximum number of concurrent requests to the server.
+     */
+    private final int maxConcurrency;
+
+    /**
+     * -- GETTER --
+     * Disk cache of the responses, null if disabled.
+     */
+    private final DiskResponseCache responseCache;
+
+    /**
+     * -- GETTER --
+     * Clock of the server, measured from the Date headers of its responses.
+     */
+    private final ServerClock serverClock = new ServerClock();
+
+    @Getter(AccessLevel.NONE)
+    private String authorization;
+
     /**
      * Creates the fhir server client.
      */
-    public FhirClient(FhirContext ctx, String server, boolean ssl)
+    public FhirClient(FhirContext ctx, String server, boolean ssl, ConnectionSettings settings)
             throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+        SSLConnectionSocketFactory sslFactory = SSLConnectionSocketFactory.getSocketFactory();
         if (ssl) {
             try {
                 KeyStore truststore = null;
@@ -47,26 +107,104 @@ public class FhirClient {
                                 .build();
 
                 HostnameVerifier hostnameVerifier = NoopHostnameVerifier.INSTANCE;
-                SSLConnectionSocketFactory sslFactory =
-                        new SSLConnectionSocketFactory(sslContext, hostnameVerifier);
-
-                CloseableHttpClient httpClient =
-                        HttpClients.custom().setSSLSocketFactory(sslFactory).build();
-                ctx.getRestfulClientFactory().setHttpClient(httpClient);
+                sslFactory = new SSLConnectionSocketFactory(sslContext, hostnameVerifier);
                 log.info("Disable SSL checking");
             } catch (Exception e) {
                 log.info(e.getMessage());
             }
         }
+
+        connectionManager = new InstrumentedConnectionManager(
+                RegistryBuilder.<ConnectionSocketFactory>create()
+                        .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                        .register("https", sslFactory)
+                        .build());
+        connectionManager.setMaxTotal(settings.getMaxTotal());
+        connectionManager.setDefaultMaxPerRoute(settings.getMaxPerRoute());
+        connectionManager.setValidateAfterInactivity(1000);
+
+        // Compression is handled by our interceptor, which also counts the bytes on the wire
+        compression = new CompressionInterceptor(
+                settings.isAcceptGzip(), settings.isGzipRequests(), settings.getGzipThreshold());
+
+        maxConcurrency = Math.max(1, settings.getMaxConcurrency());
+        limiter = new AdaptiveLimiter(settings.getInitialConcurrency(), maxConcurrency);
+
+        responseCache = createResponseCache(settings);
+
+        long keepAlive = TimeUnit.SECONDS.toMillis(settings.getKeepAlive());
+        httpClient = new HttpClientBuilder() {
+                    @Override
+                    protected ClientExecChain decorateMainExec(ClientExecChain mainExec) {
+                        ClientExecChain limiting = new LimitingExecChain(mainExec, limiter);
+                        return responseCache == null ? limiting : new CachingExecChain(limiting, responseCache);
+                    }
+                }
+                .setConnectionManager(connectionManager)
+                .disableContentCompression()
+                .addInterceptorFirst((HttpRequestInterceptor) compression)
+                .addInterceptorFirst((HttpResponseInterceptor) compression)
+                .addInterceptorLast(serverClock)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(settings.getConnectTimeout() * 1000)
+                        .setSocketTimeout(settings.getSocketTimeout() * 1000)
+                        .setConnectionRequestTimeout(settings.getLeaseTimeout() * 1000)
+                        .build())
+                .setKeepAliveStrategy((response, context) -> {
+                    long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE
+                            .getKeepAliveDuration(response, context);
+                    return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAlive) : keepAlive;
+                })
+                .evictExpiredConnections()
+                .evictIdleConnections(settings.getIdleTimeout(), TimeUnit.SECONDS)
+                .build();
+
+        EndpointRoutingClientFactory.install(ctx).register(server, httpClient);
         client = ctx.newRestfulGenericClient(server);
     }
 
+    private static DiskResponseCache createResponseCache(ConnectionSettings settings) {
+        if (settings.getCacheDirectory() == null || settings.getCacheDirectory().isBlank()) {
+            return null;
+        }
+        try {
+            return new DiskResponseCache(Path.of(settings.getCacheDirectory()),
+                    settings.getCacheMaxSize() * 1024L * 1024L);
+        } catch (IOException e) {
+            log.warn("Response cache disabled, {} is not usable: {}", settings.getCacheDirectory(), e.getMessage());
+            return null;
+        }
+    }
+
     /**
      * Sets basic auth for client.
      */
     public void setBasicAuth(String username, String password) {
         IClientInterceptor authInterceptor = new BasicAuthInterceptor(username, password);
         client.registerInterceptor(authInterceptor);
+        authorization = "Basic " + Base64.getEncoder().encodeToString(
+                (username + ":" + password).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Adds the authentication of this client to a plain http request.
+     */
+    public void authorize(HttpRequest request) {
+        if (authorization != null) {
+            request.setHeader(HttpHeaders.AUTHORIZATION, authorization);
+        }
+    }
+
+    /**
+     * Logs the connection pool statistics of the client.
+     */
+    public void logStatistics() {
+        log.info("Connections to {}: {}", client.getServerBase(), connectionManager.describeStats());
+        log.info("Transfer with {}: {}", client.getServerBase(), compression.describeStats());
+        log.info("Requests to {}: {}", client.getServerBase(), limiter.describeStats());
+        if (responseCache != null) {
+            log.info("Response cache of {}: {}", client.getServerBase(), responseCache.describeStats());
+        }
     }
 
 }
@@ -0,0 +1,85 @@
+package de.samply.samplexchange.utils.fhir.clients;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.config.Registry;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connection pool which records how often and how long requests wait for a connection.
+ */
+public class InstrumentedConnectionManager extends PoolingHttpClientConnectionManager {
+
+    private final LongAdder leases = new LongAdder();
+
+    private final LongAdder waitNanos = new LongAdder();
+
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+
+    private final AtomicLong leaseTimeouts = new AtomicLong();
+
+    /**
+     * Constructor.
+     */
+    public InstrumentedConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry) {
+        super(socketFactoryRegistry);
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+        ConnectionRequest request = super.requestConnection(route, state);
+
+        return new ConnectionRequest() {
+            @Override
+            public HttpClientConnection get(long timeout, TimeUnit timeUnit)
+                    throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                long start = System.nanoTime();
+                try {
+                    HttpClientConnection connection = request.get(timeout, timeUnit);
+                    long waited = System.nanoTime() - start;
+                    leases.increment();
+                    waitNanos.add(waited);
+                    maxWaitNanos.accumulate(waited);
+                    return connection;
+                } catch (ConnectionPoolTimeoutException e) {
+                    leaseTimeouts.incrementAndGet();
+                    throw e;
+                }
+            }
+
+            @Override
+            public boolean cancel() {
+                return request.cancel();
+            }
+        };
+    }
+
+    /**
+     * Describes the lease statistics and the current state of the pool for logging.
+     */
+    public String describeStats() {
+        long count = leases.sum();
+        PoolStats pool = getTotalStats();
+        return String.format(
+                "%d leases, %.2f ms average and %.2f ms maximum wait, %d lease timeouts, "
+                        + "%d leased, %d available, %d pending of %d connections",
+                count,
+                count == 0 ? 0.0 : waitNanos.sum() / 1e6 / count,
+                maxWaitNanos.get() / 1e6,
+                leaseTimeouts.get(),
+                pool.getLeased(),
+                pool.getAvailable(),
+                pool.getPending(),
+                pool.getMax());
+    }
+}
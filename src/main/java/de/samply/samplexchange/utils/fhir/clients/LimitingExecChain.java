@@ -0,0 +1,223 @@
+package de.samply.samplexchange.utils.fhir.clients;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.EofSensorInputStream;
+import org.apache.http.conn.EofSensorWatcher;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.message.BasicHttpResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends every request through an adaptive limiter. A request holds its permit until the body of
+ * its response is read or the response is closed, so the limit covers the transfer of the body
+ * and the latency of the limiter is the time to the end of the body. Requests rejected with 429
+ * or 503 are repeated after the Retry-After time if their body can be sent again.
+ */
+@Slf4j
+public class LimitingExecChain implements ClientExecChain {
+
+    private static final int MAX_ATTEMPTS = 5;
+
+    private static final long DEFAULT_RETRY_AFTER = TimeUnit.SECONDS.toMillis(1);
+
+    private static final long MAX_RETRY_AFTER = TimeUnit.MINUTES.toMillis(5);
+
+    private final ClientExecChain next;
+
+    private final AdaptiveLimiter limiter;
+
+    /**
+     * Constructor.
+     */
+    public LimitingExecChain(ClientExecChain next, AdaptiveLimiter limiter) {
+        this.next = next;
+        this.limiter = limiter;
+    }
+
+    @Override
+    public CloseableHttpResponse execute(
+            HttpRoute route,
+            HttpRequestWrapper request,
+            HttpClientContext context,
+            HttpExecutionAware execAware) throws IOException, HttpException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                limiter.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the concurrency limit");
+            }
+
+            long start = System.nanoTime();
+            CloseableHttpResponse response;
+            try {
+                response = next.execute(route, request, context, execAware);
+            } catch (SocketTimeoutException e) {
+                limiter.releaseOverloaded(0);
+                throw e;
+            } catch (IOException | HttpException | RuntimeException e) {
+                limiter.release();
+                throw e;
+            }
+
+            int status = response.getStatusLine().getStatusCode();
+            if (status != HttpStatus.SC_TOO_MANY_REQUESTS && status != HttpStatus.SC_SERVICE_UNAVAILABLE) {
+                Permit permit = new Permit(start);
+                if (response.getEntity() == null) {
+                    permit.release();
+                    return response;
+                }
+                return new PermitResponse(response, permit);
+            }
+
+            long retryAfter = retryAfter(response);
+            limiter.releaseOverloaded(retryAfter);
+            if (attempt == MAX_ATTEMPTS || !isRepeatable(request)) {
+                return response;
+            }
+            log.debug("{} answered {}, retrying after {} ms",
+                    route.getTargetHost(), status, retryAfter);
+            response.close();
+        }
+    }
+
+    private static boolean isRepeatable(HttpRequestWrapper request) {
+        return !(request instanceof HttpEntityEnclosingRequest enclosingRequest)
+                || enclosingRequest.getEntity() == null
+                || enclosingRequest.getEntity().isRepeatable();
+    }
+
+    private static long retryAfter(CloseableHttpResponse response) {
+        Header header = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+        if (header == null) {
+            return DEFAULT_RETRY_AFTER;
+        }
+
+        String value = header.getValue().trim();
+        long millis;
+        try {
+            millis = TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            millis = date == null ? DEFAULT_RETRY_AFTER : date.getTime() - System.currentTimeMillis();
+        }
+        return Math.min(MAX_RETRY_AFTER, Math.max(0, millis));
+    }
+
+    /**
+     * Permit of a request, released once.
+     */
+    private final class Permit {
+
+        private final long start;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Permit(long start) {
+            this.start = start;
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                limiter.release(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Response which releases the permit of its request at the end of the body or on close.
+     */
+    private static final class PermitResponse extends BasicHttpResponse implements CloseableHttpResponse {
+
+        private final CloseableHttpResponse response;
+
+        private final Permit permit;
+
+        PermitResponse(CloseableHttpResponse response, Permit permit) {
+            super(response.getStatusLine());
+            this.response = response;
+            this.permit = permit;
+            setHeaders(response.getAllHeaders());
+            setLocale(response.getLocale());
+            setEntity(new PermitEntity(response.getEntity(), permit));
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                response.close();
+            } finally {
+                permit.release();
+            }
+        }
+    }
+
+    /**
+     * Entity which releases the permit once its content is read to the end, closed or aborted.
+     */
+    private static final class PermitEntity extends HttpEntityWrapper {
+
+        private final Permit permit;
+
+        PermitEntity(HttpEntity entity, Permit permit) {
+            super(entity);
+            this.permit = permit;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new EofSensorInputStream(super.getContent(), new EofSensorWatcher() {
+                @Override
+                public boolean eofDetected(InputStream wrapped) {
+                    permit.release();
+                    return true;
+                }
+
+                @Override
+                public boolean streamClosed(InputStream wrapped) throws IOException {
+                    // Closing reads the rest of the body, which still belongs to the request
+                    try {
+                        wrapped.close();
+                    } finally {
+                        permit.release();
+                    }
+                    return false;
+                }
+
+                @Override
+                public boolean streamAbort(InputStream wrapped) {
+                    permit.release();
+                    return true;
+                }
+            });
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try (InputStream content = getContent()) {
+                content.transferTo(out);
+            }
+        }
+    }
+}
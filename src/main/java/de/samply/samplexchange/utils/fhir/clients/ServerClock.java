@@ -0,0 +1,65 @@
+package de.samply.samplexchange.utils.fhir.clients;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.protocol.HttpContext;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.Optional;
+
+/**
+ * Measures the time of the server at a point in time from the Date header of its next response.
+ * The time which passes until the response arrives is subtracted, so the measured time is never
+ * later than the time of the server at the start, only earlier by up to the response time and
+ * the second the Date header is truncated to.
+ */
+public class ServerClock implements HttpResponseInterceptor {
+
+    private long startNanos;
+
+    private Instant serverStart;
+
+    private boolean started;
+
+    /**
+     * Starts the measurement, the next response with a Date header determines the server time.
+     */
+    public synchronized void start() {
+        startNanos = System.nanoTime();
+        serverStart = null;
+        started = true;
+    }
+
+    /**
+     * Returns the time of the server at the start, empty if no response with a Date header
+     * arrived since.
+     */
+    public synchronized Optional<Instant> getStartTime() {
+        return Optional.ofNullable(serverStart);
+    }
+
+    @Override
+    public void process(HttpResponse response, HttpContext context) {
+        long now = System.nanoTime();
+        synchronized (this) {
+            if (!started || serverStart != null) {
+                return;
+            }
+        }
+        Header header = response.getFirstHeader(HttpHeaders.DATE);
+        Date date = header == null ? null : DateUtils.parseDate(header.getValue());
+        if (date == null) {
+            return;
+        }
+        synchronized (this) {
+            if (started && serverStart == null) {
+                serverStart = date.toInstant().minus(Duration.ofNanos(now - startNanos));
+            }
+        }
+    }
+}
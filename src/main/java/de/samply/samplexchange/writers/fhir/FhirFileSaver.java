@@ -1,12 +1,17 @@
 package de.samply.samplexchange.writers.fhir;
 
-import ca.uhn.fhir.context.FhirContext;
+import de.samply.samplexchange.models.RawResource;
 import de.samply.samplexchange.utils.fhir.FhirExportInterface;
+import de.samply.samplexchange.utils.fhir.FhirParsers;
 import lombok.extern.slf4j.Slf4j;
 import org.hl7.fhir.r4.model.Bundle;
 
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
 
 /**
  * Interface to post data to local file system.
@@ -16,28 +21,46 @@ public class FhirFileSaver extends FhirExportInterface {
 
     String path;
 
+    private final FhirParsers parsers;
+
     /**
      * Filer Saver constructor.
      */
-    public FhirFileSaver(FhirContext context, String path) {
+    public FhirFileSaver(FhirParsers parsers, String path) {
         this.path = path;
-        this.ctx = context;
+        this.parsers = parsers;
+        this.ctx = parsers.getContext();
     }
 
     /**
      * export.
+     *
+     * @return false if the file could not be written
      */
     @Override
     public Boolean export(Bundle bundle) {
 
-        String output = ctx.newJsonParser().setPrettyPrint(true).encodeResourceToString(bundle);
+        String output = parsers.prettyJson().encodeResourceToString(bundle);
         try (FileWriter myWriter = new FileWriter(path + bundle.getId() + ".json")) {
             myWriter.write(output);
         } catch (IOException e) {
-            log.error("An error occurred while writing output to file.");
-            e.printStackTrace();
+            log.error("An error occurred while writing output to file.", e);
+            return false;
         }
 
         return true;
     }
+
+    @Override
+    public Boolean exportRaw(List<RawResource> resources, Runnable onExported) {
+        String id = String.valueOf(UUID.randomUUID());
+        try {
+            Files.write(Path.of(path + id + ".json"), RawBundleWriter.transaction(id, resources));
+        } catch (IOException e) {
+            log.error("An error occurred while writing output to file.", e);
+            return false;
+        }
+        onExported.run();
+        return true;
+    }
 }
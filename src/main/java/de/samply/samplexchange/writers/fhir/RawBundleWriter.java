@@ -0,0 +1,55 @@
+package de.samply.samplexchange.writers.fhir;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import de.samply.samplexchange.models.RawResource;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Builds transaction bundles out of resources copied without fhir model. Only the envelope is
+ * written, the json of the resources is copied as it is.
+ */
+public class RawBundleWriter {
+
+    private RawBundleWriter() {
+    }
+
+    /**
+     * Builds a transaction bundle which puts the resources, like
+     * {@link FhirBundleWriter#buildResources(List)}.
+     */
+    public static byte[] transaction(String id, List<RawResource> resources) {
+        int size = 128;
+        for (RawResource resource : resources) {
+            size += resource.json().length + resource.fullUrl().length() + 128;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        write(out, "{\"resourceType\":\"Bundle\",\"id\":");
+        string(out, id);
+        write(out, ",\"type\":\"transaction\",\"entry\":[");
+        for (int i = 0; i < resources.size(); i++) {
+            RawResource resource = resources.get(i);
+            write(out, i == 0 ? "{\"fullUrl\":" : ",{\"fullUrl\":");
+            string(out, resource.fullUrl());
+            write(out, ",\"resource\":");
+            out.writeBytes(resource.json());
+            write(out, ",\"request\":{\"method\":\"PUT\",\"url\":");
+            string(out, resource.resourceType() + "/" + resource.id());
+            write(out, "}}");
+        }
+        write(out, "]}");
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, String json) {
+        out.writeBytes(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void string(ByteArrayOutputStream out, String value) {
+        out.write('"');
+        out.writeBytes(JsonStringEncoder.getInstance().quoteAsUTF8(value));
+        out.write('"');
+    }
+}
@@ -0,0 +1,120 @@
+package de.samply.samplexchange.models;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares the set with a HashSet of the same references.
+ */
+class PatientIdSetTest {
+
+    @Test
+    void keepsReferencesWithAndWithoutPrefixApart() {
+        PatientIdSet set = new PatientIdSet();
+        assertTrue(set.add("Patient/1"));
+        assertTrue(set.add("1"));
+        assertTrue(set.add("Group/1"));
+        assertFalse(set.add("Patient/1"));
+
+        assertEquals(3, set.size());
+        assertTrue(set.contains("Patient/1"));
+        assertTrue(set.contains("1"));
+        assertFalse(set.contains("Patient/2"));
+        assertFalse(set.contains("Patient/"));
+        assertFalse(set.contains(1));
+        assertEquals(Set.of("Patient/1", "1", "Group/1"), new HashSet<>(set));
+    }
+
+    @Test
+    void growsAcrossAllStripes() {
+        PatientIdSet set = new PatientIdSet();
+        Set<String> expected = new HashSet<>();
+        for (int i = 0; i < 100_000; i++) {
+            String reference = "Patient/" + UUID.nameUUIDFromBytes(new byte[]{(byte) i, (byte) (i >> 8), (byte) (i >> 16)});
+            assertEquals(expected.add(reference), set.add(reference));
+        }
+
+        assertEquals(expected.size(), set.size());
+        assertTrue(expected.stream().allMatch(set::contains));
+        assertEquals(expected, collect(set));
+        assertTrue(set.memoryBytes() < 100L * expected.size());
+    }
+
+    @Test
+    void storesNonAsciiAndLongIds() {
+        List<String> references = List.of(
+                "Patient/Müller-Lüdenscheidt",
+                "Patient/患者-1",
+                "Patient/🧪",
+                "Patient/" + "x".repeat(200),
+                "Patient/" + "ä".repeat(5000),
+                "Patient/Müller");
+        PatientIdSet set = new PatientIdSet();
+        references.forEach(set::add);
+
+        assertEquals(references.size(), set.size());
+        assertTrue(references.stream().allMatch(set::contains));
+        // Equal after normalization, but a different id
+        assertFalse(set.contains("Patient/Mueller"));
+        assertEquals(new HashSet<>(references), collect(set));
+    }
+
+    @Test
+    void collectsConcurrentInserts() throws Exception {
+        PatientIdSet set = new PatientIdSet();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 8; thread++) {
+                // Every reference is added by two threads
+                int first = thread / 2 * 10_000;
+                futures.add(executor.submit(() -> IntStream.range(first, first + 10_000)
+                        .forEach(i -> set.add("Patient/" + i))));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(40_000, set.size());
+        assertEquals(40_000, collect(set).size());
+    }
+
+    @Test
+    void endsTheIteration() {
+        PatientIdSet set = new PatientIdSet();
+        assertFalse(set.iterator().hasNext());
+
+        set.add("Patient/1");
+        Iterator<String> iterator = set.iterator();
+        assertEquals("Patient/1", iterator.next());
+        assertFalse(iterator.hasNext());
+        assertThrows(NoSuchElementException.class, iterator::next);
+    }
+
+    private static Set<String> collect(PatientIdSet set) {
+        Set<String> references = new HashSet<>();
+        for (String reference : set) {
+            assertTrue(references.add(reference), reference);
+        }
+        return references;
+    }
+}
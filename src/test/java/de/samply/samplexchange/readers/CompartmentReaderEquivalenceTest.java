@@ -0,0 +1,252 @@
+package de.samply.samplexchange.readers;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import de.samply.samplexchange.models.PatientCompartment;
+import de.samply.samplexchange.utils.fhir.FhirTransfer;
+import de.samply.samplexchange.utils.fhir.SearchPlan;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Reads the compartments of a stub server with the per-patient search, the _revinclude and the
+ * batched reader, which have to read the same resources.
+ */
+class CompartmentReaderEquivalenceTest {
+
+    private static final FhirContext CTX = FhirContext.forR4Cached();
+
+    /**
+     * Entries of a page of the subject searches, so the searches of a batch are paged.
+     */
+    private static final int PAGE_SIZE = 2;
+
+    /**
+     * Resources of the server, as type, id and the id of the subject, null without subject.
+     */
+    private static final List<String[]> RESOURCES = List.of(
+            new String[]{"Patient", "1", null},
+            new String[]{"Patient", "2", null},
+            new String[]{"Patient", "3", null},
+            new String[]{"Patient", "4", null},
+            new String[]{"Patient", "5", null},
+            new String[]{"Specimen", "s1", "1"},
+            new String[]{"Specimen", "s2", "1"},
+            new String[]{"Specimen", "s3", "1"},
+            new String[]{"Specimen", "s4", "2"},
+            new String[]{"Specimen", "s5", "3"},
+            new String[]{"Specimen", "s6", "5"},
+            new String[]{"Specimen", "s7", null},
+            new String[]{"Condition", "c1", "1"},
+            new String[]{"Condition", "c2", "3"},
+            new String[]{"Condition", "c3", "3"},
+            new String[]{"Condition", "c4", "3"},
+            new String[]{"Condition", "c5", "4"},
+            new String[]{"Observation", "o1", "2"},
+            new String[]{"Observation", "o2", "5"},
+            new String[]{"Observation", "o3", "5"},
+            new String[]{"Observation", "o4", null});
+
+    private HttpServer server;
+
+    private IGenericClient client;
+
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/fhir", this::handle);
+        server.start();
+        CTX.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+        client = CTX.newRestfulGenericClient(base());
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void readTheSameCompartments() throws Exception {
+        Map<String, List<String>> expected = read(new SearchCompartmentReader(transfer(SearchPlan.all()), client, 2));
+
+        // Patient 4 has no specimen and the specimen s7 no patient
+        assertEquals(List.of("Patient/1", "Patient/2", "Patient/3", "Patient/5"), List.copyOf(expected.keySet()));
+        assertEquals(List.of("Condition/c1", "Patient/1", "Specimen/s1", "Specimen/s2", "Specimen/s3"),
+                expected.get("Patient/1"));
+        assertEquals(List.of("Observation/o2", "Observation/o3", "Patient/5", "Specimen/s6"),
+                expected.get("Patient/5"));
+
+        requests.clear();
+        assertEquals(expected, read(new RevIncludeCompartmentReader(transfer(SearchPlan.all()), client, 2)));
+        // One search per patient after the discovery
+        assertEquals(expected.size(), requests.stream().filter(request -> request.startsWith("Patient ")).count());
+        assertTrue(requests.stream().filter(request -> !request.startsWith("Specimen "))
+                .allMatch(request -> request.contains("_revinclude")));
+
+        for (int batchSize : List.of(1, 2, 3, 10)) {
+            assertEquals(expected, read(new BatchedCompartmentReader(transfer(SearchPlan.all()), client, batchSize, 2)),
+                    "Batches of " + batchSize);
+        }
+    }
+
+    @Test
+    void readOnlyTheTypesOfThePlan() throws Exception {
+        SearchPlan plan = SearchPlan.of(List.of("Patient", "Specimen", "Condition"));
+        Map<String, List<String>> expected = read(new SearchCompartmentReader(transfer(plan), client, 2));
+
+        assertTrue(expected.values().stream().flatMap(List::stream).noneMatch(id -> id.startsWith("Observation")));
+        assertEquals(expected, read(new RevIncludeCompartmentReader(transfer(plan), client, 2)));
+        assertEquals(expected, read(new BatchedCompartmentReader(transfer(plan), client, 2, 2)));
+        assertTrue(requests.stream().noneMatch(request -> request.contains("Observation")));
+    }
+
+    private static FhirTransfer transfer(SearchPlan plan) {
+        FhirTransfer transfer = new FhirTransfer(CTX);
+        transfer.setSearchPlan(plan);
+        return transfer;
+    }
+
+    /**
+     * Reads all compartments, every resource as its reference. Readers only keep the order of
+     * the patients, the resources of a patient are sorted.
+     */
+    private static Map<String, List<String>> read(CompartmentReader reader) throws Exception {
+        reader.discover();
+        Map<String, List<String>> compartments = new TreeMap<>();
+        for (PatientCompartment compartment : reader) {
+            List<String> resources = new ArrayList<>();
+            for (IBaseResource resource : compartment.getResources()) {
+                resources.add(resource.getIdElement().toUnqualifiedVersionless().getValue());
+            }
+            resources.sort(null);
+            compartments.put("Patient/" + compartment.getPatientId().replace("Patient/", ""), resources);
+        }
+        return compartments;
+    }
+
+    private String base() {
+        return "http://localhost:" + server.getAddress().getPort() + "/fhir";
+    }
+
+    /**
+     * Answers reads, searches by _id and subject, also as POST _search, and _revinclude of the
+     * subject. Subject searches are paged.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        String[] path = exchange.getRequestURI().getPath().substring("/fhir/".length()).split("/");
+        String query = "POST".equals(exchange.getRequestMethod())
+                ? new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8)
+                : exchange.getRequestURI().getRawQuery();
+        Map<String, List<String>> parameters = parse(query);
+        requests.add(path[0] + " " + parameters);
+
+        if (path.length == 2 && !path[1].equals("_search")) {
+            String[] resource = RESOURCES.stream()
+                    .filter(candidate -> candidate[0].equals(path[0]) && candidate[1].equals(path[1]))
+                    .findFirst().orElseThrow();
+            respond(exchange, json(resource));
+            return;
+        }
+
+        List<String> ids = values(parameters, "_id");
+        List<String> subjects = values(parameters, "subject").stream()
+                .map(subject -> subject.replace("Patient/", "")).toList();
+        List<String[]> matches = RESOURCES.stream()
+                .filter(resource -> resource[0].equals(path[0]))
+                .filter(resource -> ids.isEmpty() || ids.contains(resource[1]))
+                .filter(resource -> subjects.isEmpty() || subjects.contains(resource[2]))
+                .toList();
+
+        List<String> entries = new ArrayList<>();
+        String next = null;
+        if (parameters.containsKey("_revinclude")) {
+            for (String[] patient : matches) {
+                entries.add(entry(patient, "match"));
+                for (String include : parameters.get("_revinclude")) {
+                    String type = include.substring(0, include.indexOf(':'));
+                    RESOURCES.stream()
+                            .filter(resource -> resource[0].equals(type) && patient[1].equals(resource[2]))
+                            .forEach(resource -> entries.add(entry(resource, "include")));
+                }
+            }
+        } else {
+            int offset = parameters.containsKey("_offset") ? Integer.parseInt(parameters.get("_offset").get(0)) : 0;
+            int end = Math.min(offset + PAGE_SIZE, matches.size());
+            matches.subList(Math.min(offset, end), end).forEach(resource -> entries.add(entry(resource, "match")));
+            if (end < matches.size()) {
+                Map<String, List<String>> nextParameters = new LinkedHashMap<>(parameters);
+                nextParameters.put("_offset", List.of(String.valueOf(end)));
+                next = base() + "/" + path[0] + "?" + nextParameters.entrySet().stream()
+                        .flatMap(parameter -> parameter.getValue().stream().map(value ->
+                                parameter.getKey() + "=" + URLEncoder.encode(value, StandardCharsets.UTF_8)))
+                        .collect(Collectors.joining("&"));
+            }
+        }
+        respond(exchange, "{\"resourceType\":\"Bundle\",\"type\":\"searchset\""
+                + (next == null ? "" : ",\"link\":[{\"relation\":\"next\",\"url\":\"" + next + "\"}]")
+                + ",\"entry\":[" + String.join(",", entries) + "]}");
+    }
+
+    private static String entry(String[] resource, String mode) {
+        return "{\"resource\":" + json(resource) + ",\"search\":{\"mode\":\"" + mode + "\"}}";
+    }
+
+    private static String json(String[] resource) {
+        return "{\"resourceType\":\"" + resource[0] + "\",\"id\":\"" + resource[1] + "\""
+                + (resource[2] == null ? "" : ",\"subject\":{\"reference\":\"Patient/" + resource[2] + "\"}") + "}";
+    }
+
+    private static List<String> values(Map<String, List<String>> parameters, String name) {
+        return parameters.getOrDefault(name, List.of()).stream()
+                .flatMap(value -> Arrays.stream(value.split(","))).toList();
+    }
+
+    private static Map<String, List<String>> parse(String query) {
+        Map<String, List<String>> parameters = new LinkedHashMap<>();
+        if (query == null || query.isEmpty()) {
+            return parameters;
+        }
+        for (String parameter : query.split("&")) {
+            String[] pair = parameter.split("=", 2);
+            parameters.computeIfAbsent(URLDecoder.decode(pair[0], StandardCharsets.UTF_8), name -> new ArrayList<>())
+                    .add(URLDecoder.decode(pair.length > 1 ? pair[1] : "", StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
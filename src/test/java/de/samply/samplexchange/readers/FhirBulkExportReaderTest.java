@@ -0,0 +1,150 @@
+package de.samply.samplexchange.readers;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import de.samply.samplexchange.models.PatientCompartment;
+import de.samply.samplexchange.utils.fhir.FhirParsers;
+import de.samply.samplexchange.utils.fhir.clients.ConnectionSettings;
+import de.samply.samplexchange.utils.fhir.clients.FhirClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the bulk export reader against a stub server which serves NDJSON files.
+ */
+class FhirBulkExportReaderTest {
+
+    private static final FhirContext CTX = FhirContext.forR4Cached();
+
+    private static final String PATIENTS = """
+            {"resourceType":"Patient","id":"p1","gender":"female"}
+            {"resourceType":"Patient","id":"p2","gender":"male"}
+
+            {"resourceType":"Patient","id":"p3"}
+            """;
+
+    private static final String SPECIMENS = """
+            {"resourceType":"Specimen","id":"s1","subject":{"reference":"Patient/p1"}}
+            {"resourceType":"Specimen","id":"s2","subject":{"reference":"Patient/p1"}}
+            {"resourceType":"Specimen","id":"s3","subject":{"reference":"http://other/fhir/Patient/p2"}}
+            {"resourceType":"Specimen","id":"s4"}
+            """;
+
+    private static final String OTHERS = """
+            {"resourceType":"Condition","id":"c1","subject":{"reference":"Patient/p1"}}
+            {"resourceType":"Condition","id":"c3","subject":{"reference":"Patient/p3"}}
+            {"resourceType":"Encounter","id":"e1","subject":{"reference":"Patient/p1"}}""";
+
+    private HttpServer server;
+
+    private final List<String> deleted = new ArrayList<>();
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        String base = "http://localhost:" + server.getAddress().getPort() + "/fhir";
+        server.createContext("/fhir/$export", exchange -> {
+            exchange.getResponseHeaders().add("Content-Location", base + "/status/1");
+            respond(exchange, 202, "");
+        });
+        server.createContext("/fhir/status/1", exchange -> {
+            if (exchange.getRequestMethod().equals("DELETE")) {
+                deleted.add(exchange.getRequestURI().getPath());
+                respond(exchange, 202, "");
+                return;
+            }
+            respond(exchange, 200, """
+                    {"requiresAccessToken":false,"output":[
+                      {"type":"Patient","url":"%1$s/files/patients.ndjson"},
+                      {"type":"Specimen","url":"%1$s/files/specimens.ndjson"},
+                      {"type":"Condition","url":"%1$s/files/others.ndjson"}],"error":[]}
+                    """.formatted(base));
+        });
+        Map<String, String> files = Map.of(
+                "/fhir/files/patients.ndjson", PATIENTS,
+                "/fhir/files/specimens.ndjson", SPECIMENS,
+                "/fhir/files/others.ndjson", OTHERS);
+        server.createContext("/fhir/files", exchange ->
+                respond(exchange, 200, files.get(exchange.getRequestURI().getPath())));
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void groupsResourcesOfPatientsWithSpecimens() throws Exception {
+        FhirBulkExportReader reader = reader(null, 64L * 1024 * 1024);
+
+        assertEquals(2, reader.discover());
+        Map<String, PatientCompartment> compartments = read(reader);
+
+        assertEquals(List.of("Patient/p1", "Patient/p2"), new ArrayList<>(compartments.keySet()));
+        PatientCompartment p1 = compartments.get("Patient/p1");
+        assertNotNull(p1.getPatient());
+        assertEquals(2, p1.getSpecimens().size());
+        assertEquals(1, p1.getConditions().size());
+        assertEquals(1, compartments.get("Patient/p2").getSpecimens().size());
+        assertEquals(List.of("/fhir/status/1"), deleted);
+    }
+
+    @Test
+    void groupsOnDiskBeyondTheMemoryBudget(@TempDir Path spillDirectory) throws Exception {
+        // Every resource is spilled on its own
+        FhirBulkExportReader reader = reader(spillDirectory, 1);
+
+        assertEquals(2, reader.discover());
+        assertTrue(Files.list(spillDirectory).count() > 1);
+        Map<String, PatientCompartment> compartments = read(reader);
+
+        assertEquals(2, compartments.get("Patient/p1").getSpecimens().size());
+        assertEquals(1, compartments.get("Patient/p1").getConditions().size());
+        assertEquals(1, compartments.get("Patient/p2").getSpecimens().size());
+        // The spill files are deleted once all patients are read
+        assertEquals(0, Files.list(spillDirectory).count());
+    }
+
+    private FhirBulkExportReader reader(Path spillDirectory, long memoryBudget) throws Exception {
+        String base = "http://localhost:" + server.getAddress().getPort() + "/fhir";
+        FhirClient client = new FhirClient(CTX, base, false, new ConnectionSettings(
+                4, 4, 60, 60, 10, 10, 10, false, false, 0, 1, 1, "", 0));
+        return new FhirBulkExportReader(new FhirParsers(CTX), client, "",
+                List.of("Patient", "Specimen", "Condition"), 1, 1, spillDirectory, memoryBudget);
+    }
+
+    private static Map<String, PatientCompartment> read(CompartmentReader reader) {
+        Map<String, PatientCompartment> compartments = new TreeMap<>();
+        for (PatientCompartment compartment : reader) {
+            compartments.put(compartment.getPatientId(), compartment);
+        }
+        return compartments;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package de.samply.samplexchange.readers;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import de.samply.samplexchange.models.PatientCompartment;
+import de.samply.samplexchange.utils.fhir.FhirParsers;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Specimen;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Reads the same resources from NDJSON files split into parts at every offset, from Bundle files
+ * and from gzipped files. The names contain multi-byte UTF-8 characters, so the parts also start
+ * inside of characters and the byte offsets of the bundle entries differ from the char offsets.
+ */
+class FileCompartmentReaderTest {
+
+    private static final FhirContext CTX = FhirContext.forR4Cached();
+
+    private static final FhirParsers PARSERS = new FhirParsers(CTX);
+
+    private static final List<String> TYPES = List.of("Patient", "Specimen", "Condition");
+
+    private static final String NDJSON = """
+            {"resourceType":"Patient","id":"p1","name":[{"family":"Müller-Lüdenscheidt"}]}
+            {"resourceType":"Specimen","id":"s1","subject":{"reference":"Patient/p1"},"note":[{"text":"Kühlung ❄ 4°C"}]}
+            {"resourceType":"Condition","id":"c1","subject":{"reference":"Patient/p1"},"code":{"text":"患者の診断"}}
+
+            {"resourceType":"Patient","id":"p2","name":[{"family":"🧪"}]}
+            {"resourceType":"Specimen","id":"s2","subject":{"reference":"Patient/p2"},"note":[{"text":"ä"}]}
+            {"resourceType":"Specimen","id":"s3","subject":{"reference":"Patient/p2"}}
+            {"resourceType":"Encounter","id":"e1","subject":{"reference":"Patient/p2"}}
+            {"resourceType":"Patient","id":"p3","name":[{"family":"Ørsted"}]}
+            {"resourceType":"Specimen","id":"s4","subject":{"reference":"Patient/p3"}}""";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsTheSameResourcesWithPartsStartingAtEveryOffset() throws Exception {
+        Path files = Files.createDirectory(directory.resolve("ndjson"));
+        Files.writeString(files.resolve("resources.ndjson"), NDJSON);
+        Map<String, List<String>> expected = read(files, 64L * 1024 * 1024);
+
+        assertEquals(List.of("Patient/p1", "Patient/p2", "Patient/p3"), List.copyOf(expected.keySet()));
+        assertEquals(List.of("Condition/c1|患者の診断", "Patient/p1|Müller-Lüdenscheidt", "Specimen/s1|Kühlung ❄ 4°C"),
+                expected.get("Patient/p1"));
+        assertEquals(List.of("Patient/p2|🧪", "Specimen/s2|ä", "Specimen/s3|"), expected.get("Patient/p2"));
+
+        int size = NDJSON.getBytes(StandardCharsets.UTF_8).length;
+        for (int chunkSize = 1; chunkSize <= size; chunkSize++) {
+            assertEquals(expected, read(files, chunkSize), "Parts of " + chunkSize + " bytes");
+        }
+    }
+
+    @Test
+    void readsBundlesLikeNdjson() throws Exception {
+        Path ndjson = Files.createDirectory(directory.resolve("ndjson"));
+        Files.writeString(ndjson.resolve("resources.ndjson"), NDJSON);
+
+        IParser parser = CTX.newJsonParser();
+        StringBuilder bundle = new StringBuilder("{\"resourceType\":\"Bundle\",\"id\":\"Bündel\",\"type\":\"collection\","
+                + "\"entry\":[");
+        String[] lines = NDJSON.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            if (!lines[i].isBlank()) {
+                // Pretty printed, with the resource after other fields of the entry
+                String resource = parser.setPrettyPrint(true).encodeResourceToString(parser.parseResource(lines[i]));
+                bundle.append(i == 0 ? "" : ",").append("{\"fullUrl\":\"urn:uuid:ü-").append(i)
+                        .append("\",\"resource\":").append(resource).append(",\"search\":{\"mode\":\"match\"}}");
+            }
+        }
+        bundle.append("]}");
+        Path bundles = Files.createDirectory(directory.resolve("bundles"));
+        Files.writeString(bundles.resolve("bundle.json"), bundle);
+
+        assertEquals(read(ndjson, 64L * 1024 * 1024), read(bundles, 64L * 1024 * 1024));
+    }
+
+    @Test
+    void readsGzippedFilesLikeUncompressedOnes() throws Exception {
+        Path plain = Files.createDirectory(directory.resolve("plain"));
+        Files.writeString(plain.resolve("resources.ndjson"), NDJSON);
+        Path compressed = Files.createDirectory(directory.resolve("compressed"));
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(compressed.resolve("resources.ndjson.gz")))) {
+            out.write(NDJSON.getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertEquals(read(plain, 16), read(compressed, 16));
+    }
+
+    /**
+     * Reads the compartments, every resource as its reference and its name or text. The parts are
+     * scanned concurrently, so the resources of a patient are sorted.
+     */
+    private static Map<String, List<String>> read(Path files, long chunkSize) throws Exception {
+        FileCompartmentReader reader = new FileCompartmentReader(
+                PARSERS, files, TYPES, 4, null, 64L * 1024 * 1024, chunkSize);
+        reader.discover();
+        Map<String, List<String>> compartments = new TreeMap<>();
+        for (PatientCompartment compartment : reader) {
+            compartments.put(compartment.getPatientId(),
+                    compartment.getResources().stream().map(FileCompartmentReaderTest::describe).sorted().toList());
+        }
+        return compartments;
+    }
+
+    private static String describe(IBaseResource resource) {
+        String text = null;
+        if (resource instanceof Patient patient) {
+            text = patient.getNameFirstRep().getFamily();
+        } else if (resource instanceof Specimen specimen) {
+            text = specimen.getNoteFirstRep().getText();
+        } else if (resource instanceof Condition condition) {
+            text = condition.getCode().getText();
+        }
+        return resource.getIdElement().toUnqualifiedVersionless().getValue() + "|" + (text == null ? "" : text);
+    }
+}
@@ -0,0 +1,118 @@
+package de.samply.samplexchange.readers;
+
+import de.samply.samplexchange.models.PatientCompartment;
+import de.samply.samplexchange.utils.fhir.CheckpointJournal;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Interrupts a transfer whose reader returns the patients in another order than discovered and
+ * drops one of them, and resumes it from the checkpoint journal.
+ */
+class ResumableCompartmentReaderTest {
+
+    private static final List<String> PATIENTS = IntStream.rangeClosed(1, 20)
+            .mapToObj(i -> "Patient/" + i).toList();
+
+    private static final String DROPPED = "Patient/7";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void resumesWithoutDuplicatingOrLosingPatients() throws Exception {
+        Path file = directory.resolve("journal");
+        List<String> exported = new ArrayList<>();
+
+        CheckpointJournal first = CheckpointJournal.open(file, "test", Instant::now);
+        ResumableCompartmentReader reader = new ResumableCompartmentReader(new ShuffledReader(), first);
+        assertEquals(PATIENTS.size(), reader.discover());
+        Iterator<PatientCompartment> compartments = reader.iterator();
+        for (int i = 0; i < 8; i++) {
+            String patientId = compartments.next().getPatientId();
+            exported.add(patientId);
+            first.complete(patientId);
+        }
+        // The first run is killed without closing the journal
+
+        CheckpointJournal second = CheckpointJournal.open(file, "test", Instant::now);
+        assertTrue(second.isResumable());
+        ShuffledReader resumed = new ShuffledReader();
+        reader = new ResumableCompartmentReader(resumed, second);
+        assertEquals(PATIENTS.size() - 8, reader.discover());
+        assertFalse(resumed.discovered);
+        for (PatientCompartment compartment : reader) {
+            exported.add(compartment.getPatientId());
+            second.complete(compartment.getPatientId());
+        }
+        second.delete();
+
+        assertEquals(exported.size(), Set.copyOf(exported).size(), "duplicated patients " + exported);
+        List<String> expected = new ArrayList<>(PATIENTS);
+        expected.remove(DROPPED);
+        assertEquals(Set.copyOf(expected), Set.copyOf(exported));
+    }
+
+    @Test
+    void stopsHandingOutCompartments() throws Exception {
+        ResumableCompartmentReader reader = new ResumableCompartmentReader(new ShuffledReader(), null);
+        reader.discover();
+        Iterator<PatientCompartment> compartments = reader.iterator();
+        compartments.next();
+        reader.stop();
+        assertFalse(compartments.hasNext());
+        assertTrue(reader.isStopped());
+    }
+
+    /**
+     * Reads the patients from the last to the first, e.g. in the order of a grouping, and never
+     * returns the dropped one, e.g. because its compartment came back empty.
+     */
+    private static class ShuffledReader extends CompartmentReader {
+
+        private List<String> patientIds = PATIENTS;
+
+        private boolean discovered;
+
+        @Override
+        public int discover() {
+            discovered = true;
+            return patientIds.size();
+        }
+
+        @Override
+        public Collection<String> getPatientIds() {
+            return patientIds;
+        }
+
+        @Override
+        public boolean usePatientIds(Collection<String> patientIds) {
+            this.patientIds = List.copyOf(patientIds);
+            return true;
+        }
+
+        @Override
+        public Iterator<PatientCompartment> iterator() {
+            List<PatientCompartment> compartments = new ArrayList<>();
+            for (int i = patientIds.size() - 1; i >= 0; i--) {
+                if (!patientIds.get(i).equals(DROPPED)) {
+                    compartments.add(new PatientCompartment(patientIds.get(i)));
+                }
+            }
+            return compartments.iterator();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package de.samply.samplexchange.resources;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import de.samply.samplexchange.models.SpecimenInput;
+import de.samply.samplexchange.utils.fhir.SpecimenStreamParser;
+import de.samply.samplexchange.utils.fhir.StringPool;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Duration;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Range;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Specimen;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Maps bbmri.de and MII specimens once parsed with the fhir model and once with the streaming
+ * parser, both have to give the same mapping.
+ */
+class SpecimenMappingStreamTest {
+
+    private static final FhirContext CTX = FhirContext.forR4Cached();
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private static final SpecimenStreamParser STREAM_PARSER = new SpecimenStreamParser(new StringPool(1000));
+
+    private static final String SNOMED = "http://snomed.info/sct";
+
+    private static final String MII_DIAGNOSIS =
+            "https://simplifier.net/medizininformatikinitiative-modulbiobank/files/fsh-generated/resources/structuredefinition-diagnose.json";
+
+    private static final String TEMPERATURE_CONDITIONS =
+            "https://www.medizininformatik-initiative.de/fhir/ext/modul-biobank/StructureDefinition/Temperaturbedingungen";
+
+    @Test
+    void mapsBbmriSpecimensLikeTheFhirModel() throws IOException {
+        for (Specimen specimen : List.of(bbmriSpecimen("1", "http://hl7.org/fhir/sid/icd-10"),
+                bbmriSpecimen("2", "http://fhir.de/CodeSystem/dimdi/icd-10-gm"), minimalSpecimen("3"))) {
+            String json = encode(specimen);
+            SpecimenMapping model = new SpecimenMapping();
+            model.fromBbmri(parser().parseResource(Specimen.class, json));
+            SpecimenMapping stream = new SpecimenMapping();
+            stream.fromBbmri(streamParse(json));
+
+            assertEquals(bbmriFields(model), bbmriFields(stream), json);
+            assertEquals(encode(model.toMii()), encode(stream.toMii()), json);
+        }
+    }
+
+    @Test
+    void mapsMiiSpecimensLikeTheFhirModel() throws IOException {
+        Specimen child = miiSpecimen("2");
+        child.addParent(new Reference("Specimen/1"));
+        for (Specimen specimen : List.of(miiSpecimen("1"), child, minimalSpecimen("3"))) {
+            String json = encode(specimen);
+            SpecimenMapping model = new SpecimenMapping();
+            model.fromMii(parser().parseResource(Specimen.class, json));
+            SpecimenMapping stream = new SpecimenMapping();
+            stream.fromMii(streamParse(json));
+
+            assertEquals(miiFields(model), miiFields(stream), json);
+            String bbmri = model.toBbmri() == null ? null : encode(model.toBbmri());
+            assertEquals(bbmri, stream.toBbmri() == null ? null : encode(stream.toBbmri()), json);
+        }
+    }
+
+    /**
+     * The condition reference is read, but not mapped, the mapped specimens are the same.
+     */
+    @Test
+    void readsTheReferenceOfTheMiiDiagnosis() throws IOException {
+        String json = encode(miiSpecimen("1"));
+        SpecimenInput input = streamParse(json);
+        assertEquals("Condition/1", input.getConditionReference());
+
+        SpecimenMapping model = new SpecimenMapping();
+        model.fromMii(parser().parseResource(Specimen.class, json));
+        SpecimenMapping stream = new SpecimenMapping();
+        stream.fromMii(input);
+        Specimen bbmri = stream.toBbmri();
+        assertEquals(encode(model.toBbmri()), encode(bbmri));
+        assertTrue(bbmri.getExtension().stream()
+                .noneMatch(extension -> extension.getValue() instanceof Reference reference
+                        && "Condition/1".equals(reference.getReference())));
+    }
+
+    @Test
+    void leavesUnexpectedShapesToTheFhirModel() {
+        List<Function<Specimen, Specimen>> shapes = List.of(
+                specimen -> {
+                    specimen.getCollection().setCollected(new Period().setStartElement(new DateTimeType("2020-01-01")));
+                    return specimen;
+                },
+                specimen -> {
+                    specimen.getCollection().setFastingStatus(new Duration().setValue(8));
+                    return specimen;
+                },
+                specimen -> {
+                    specimen.getExtensionByUrl("https://fhir.bbmri.de/StructureDefinition/SampleDiagnosis")
+                            .setValue(new CodeableConcept(new Coding(null, "C50", null)));
+                    return specimen;
+                },
+                specimen -> {
+                    specimen.getExtensionByUrl("https://fhir.bbmri.de/StructureDefinition/Custodian")
+                            .setValue(new CodeableConcept(new Coding(SNOMED, "1", null)));
+                    return specimen;
+                },
+                specimen -> {
+                    specimen.addProcessing()
+                            .setProcedure(new CodeableConcept(new Coding(SNOMED, "1186936003", null)))
+                            .setTime(new DateTimeType("2020-01-01"))
+                            .addExtension(TEMPERATURE_CONDITIONS, range(-20, -18));
+                    return specimen;
+                },
+                specimen -> {
+                    specimen.addProcessing()
+                            .setProcedure(new CodeableConcept(new Coding(SNOMED, "1186936003", null)))
+                            .setTime(new Period().setStartElement(new DateTimeType("2020-01-01")))
+                            .addExtension(TEMPERATURE_CONDITIONS, new StringType("frozen"));
+                    return specimen;
+                });
+        for (Function<Specimen, Specimen> shape : shapes) {
+            String json = encode(shape.apply(bbmriSpecimen("1", "http://hl7.org/fhir/sid/icd-10")));
+            assertThrows(SpecimenStreamParser.UnsupportedShapeException.class, () -> streamParse(json), json);
+            // The reader falls back to the fhir model, which has to parse them
+            assertNotNull(parser().parseResource(Specimen.class, json));
+        }
+    }
+
+    @Test
+    void skipsOtherResources() throws IOException {
+        assertNull(streamParse("{\"resourceType\":\"Patient\",\"id\":\"1\"}"));
+    }
+
+    private static Specimen bbmriSpecimen(String id, String diagnosisSystem) {
+        Specimen specimen = new Specimen();
+        specimen.setId("Specimen/" + id);
+        specimen.getMeta().setVersionId("2");
+        specimen.getSubject().setReference("Patient/" + id);
+        specimen.setType(new CodeableConcept(
+                new Coding("https://fhir.bbmri.de/CodeSystem/SampleMaterialType", "whole-blood", null)));
+        specimen.getCollection().setCollected(new DateTimeType("2021-03-04T10:11:12+01:00"));
+        specimen.getCollection().setBodySite(
+                new CodeableConcept(new Coding("urn:oid:1.3.6.1.4.1.19376.1.3.11.36", "C50.9", null)));
+        specimen.getCollection().setFastingStatus(new CodeableConcept(
+                new Coding("http://terminology.hl7.org/CodeSystem/v2-0916", "F", null)));
+        specimen.addExtension("https://fhir.bbmri.de/StructureDefinition/StorageTemperature",
+                new CodeableConcept(new Coding(
+                        "https://fhir.bbmri.de/CodeSystem/StorageTemperature", "temperature2to10", null)));
+        specimen.addExtension("https://fhir.bbmri.de/StructureDefinition/SampleDiagnosis",
+                new CodeableConcept(new Coding(diagnosisSystem, "C50.9", null)));
+        specimen.addExtension("https://fhir.bbmri.de/StructureDefinition/Custodian",
+                new Reference("Organization/collection-1"));
+        specimen.addExtension("https://example.org/other", new StringType("other"));
+        return specimen;
+    }
+
+    private static Specimen miiSpecimen(String id) {
+        Specimen specimen = new Specimen();
+        specimen.setId("Specimen/" + id);
+        specimen.getSubject().setReference("Patient/" + id);
+        specimen.setType(new CodeableConcept(new Coding(SNOMED, "119297000", null)));
+        specimen.getCollection().setCollected(new DateTimeType("2021-03-04"));
+        specimen.getCollection().setBodySite(
+                new CodeableConcept(new Coding("http://terminology.hl7.org/CodeSystem/icd-o-3", "C50.9", null)));
+        specimen.addExtension(MII_DIAGNOSIS, new Reference("Condition/1"));
+        specimen.addProcessing()
+                .setProcedure(new CodeableConcept(new Coding(SNOMED, "1186936003", null)))
+                .setTime(new Period().setStartElement(new DateTimeType("2021-03-05")))
+                .addExtension(TEMPERATURE_CONDITIONS, range(-85, -60));
+        specimen.addProcessing()
+                .setProcedure(new CodeableConcept(new Coding(SNOMED, "1186936003", null)))
+                .setTime(new Period().setStartElement(new DateTimeType("2022-01-01")))
+                .addExtension(TEMPERATURE_CONDITIONS, range(-200, -150));
+        specimen.addProcessing()
+                .setProcedure(new CodeableConcept(new Coding(SNOMED, "9265001", null)))
+                .setTime(new Period().setStartElement(new DateTimeType("2023-01-01")));
+        return specimen;
+    }
+
+    private static Specimen minimalSpecimen(String id) {
+        Specimen specimen = new Specimen();
+        specimen.setId("Specimen/" + id);
+        specimen.getSubject().setReference("Patient/" + id);
+        return specimen;
+    }
+
+    private static Range range(long low, long high) {
+        return new Range().setLow(new Quantity(low)).setHigh(new Quantity(high));
+    }
+
+    private static List<Object> bbmriFields(SpecimenMapping mapping) {
+        return Arrays.asList(mapping.bbmriId, mapping.bbmriSubject, mapping.bbmrisampleType,
+                mapping.collectedDate.getValueAsString(), mapping.bbmriBodySite, mapping.fastingStatus,
+                mapping.fastingStatusSystem, mapping.storageTemperature, mapping.diagnosisIcd10Who,
+                mapping.getDiagnosisIcd10Gm(), mapping.collectionRef);
+    }
+
+    private static List<Object> miiFields(SpecimenMapping mapping) {
+        return Arrays.asList(mapping.hasParent, mapping.miiId, mapping.miiSubject, mapping.miiSampleType,
+                mapping.collectedDate.getValueAsString(), mapping.miiBodySiteIcd, mapping.miiBodySiteSnomedCt,
+                mapping.fastingStatus, mapping.fastingStatusSystem, mapping.miiStoargeTemperatureHigh,
+                mapping.miiStoargeTemperaturelow);
+    }
+
+    private static SpecimenInput streamParse(String json) throws IOException {
+        try (JsonParser parser = JSON.createParser(json)) {
+            parser.nextToken();
+            return STREAM_PARSER.parse(parser);
+        }
+    }
+
+    private static IParser parser() {
+        return CTX.newJsonParser();
+    }
+
+    private static String encode(Specimen specimen) {
+        return Objects.requireNonNull(parser().encodeResourceToString(specimen));
+    }
+}
@@ -0,0 +1,78 @@
+package de.samply.samplexchange.utils.fhir;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Writes checkpoint journals and opens them again like a resumed run.
+ */
+class CheckpointJournalTest {
+
+    private static final Instant START = Instant.parse("2024-01-01T00:00:00Z");
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void resumesThePatientsWhichAreNotCompleted() throws IOException {
+        Path file = directory.resolve("journal");
+        CheckpointJournal journal = CheckpointJournal.open(file, "test", () -> START);
+        journal.start(List.of("Patient/1", "Patient/2", "Patient/3", "Patient/4"));
+        journal.complete("Patient/3");
+        journal.complete("Patient/1");
+        journal.complete("Patient/1");
+        journal.complete("Patient/unknown");
+        journal.close();
+
+        CheckpointJournal resumed = CheckpointJournal.open(file, "test", Instant::now);
+        assertTrue(resumed.isResumable());
+        assertEquals(START, resumed.getStartedAt());
+        assertEquals(List.of("Patient/2", "Patient/4"), List.copyOf(resumed.remainingPatientIds()));
+
+        resumed.complete("Patient/4");
+        resumed.close();
+        assertEquals(List.of("Patient/2"),
+                List.copyOf(CheckpointJournal.open(file, "test", Instant::now).remainingPatientIds()));
+    }
+
+    @Test
+    void ignoresALineWhichWasNotWrittenCompletely() throws IOException {
+        Path file = directory.resolve("journal");
+        CheckpointJournal journal = CheckpointJournal.open(file, "test", () -> START);
+        journal.start(List.of("Patient/1", "Patient/2"));
+        journal.complete("Patient/1");
+        Files.writeString(file, "C", StandardOpenOption.APPEND);
+
+        assertEquals(List.of("Patient/2"),
+                List.copyOf(CheckpointJournal.open(file, "test", Instant::now).remainingPatientIds()));
+    }
+
+    @Test
+    void discardsTheJournalOfADifferentConfiguration() throws IOException {
+        Path file = directory.resolve("journal");
+        CheckpointJournal journal = CheckpointJournal.open(file, "test", () -> START);
+        journal.start(List.of("Patient/1"));
+        journal.close();
+
+        assertFalse(CheckpointJournal.open(file, "other", Instant::now).isResumable());
+    }
+
+    @Test
+    void discardsAnIncompleteDiscovery() throws IOException {
+        Path file = directory.resolve("journal");
+        Files.writeString(file, "F test\nS " + START + "\nP Patient/1\n");
+
+        assertFalse(CheckpointJournal.open(file, "test", Instant::now).isResumable());
+    }
+}
@@ -0,0 +1,104 @@
+package de.samply.samplexchange.utils.fhir;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Groups records which are added concurrently, in memory and spilled to disk.
+ */
+class ExternalGrouperTest {
+
+    private static final int THREADS = 8;
+
+    private static final int RECORDS = 2000;
+
+    private static final int KEYS = 300;
+
+    @TempDir
+    Path spillDirectory;
+
+    @Test
+    void groupsInMemory() throws Exception {
+        assertGroups(Long.MAX_VALUE, false);
+    }
+
+    @Test
+    void groupsConcurrentlySpilledRecords() throws Exception {
+        assertGroups(4096, true);
+    }
+
+    private void assertGroups(long memoryBudget, boolean spilled) throws Exception {
+        ExternalGrouper grouper = new ExternalGrouper(spillDirectory, memoryBudget);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> adds = new ArrayList<>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                int first = thread;
+                adds.add(executor.submit(() -> {
+                    for (int i = first; i < RECORDS; i += THREADS) {
+                        grouper.add(key(i), String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+                    }
+                }));
+            }
+            for (Future<?> add : adds) {
+                add.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(KEYS, grouper.finish());
+        Set<String> expectedKeys = new TreeSet<>();
+        for (int i = 0; i < KEYS; i++) {
+            expectedKeys.add(key(i));
+        }
+        assertEquals(List.copyOf(expectedKeys), grouper.keys());
+        assertEquals(spilled, hasSpillFiles());
+        assertThrows(IllegalStateException.class, () -> grouper.add(key(0), new byte[0]));
+
+        int records = 0;
+        List<String> keys = new ArrayList<>();
+        for (Iterator<ExternalGrouper.Group> groups = grouper.groups(); groups.hasNext(); ) {
+            ExternalGrouper.Group group = groups.next();
+            keys.add(group.key());
+            for (byte[] value : group.values()) {
+                int i = Integer.parseInt(new String(value, StandardCharsets.UTF_8));
+                assertEquals(key(i), group.key());
+                records++;
+            }
+        }
+        assertEquals(grouper.keys(), keys);
+        assertEquals(RECORDS, records);
+
+        grouper.close();
+        assertFalse(hasSpillFiles());
+    }
+
+    private boolean hasSpillFiles() throws IOException {
+        try (Stream<Path> files = Files.list(spillDirectory)) {
+            return files.findAny().isPresent();
+        }
+    }
+
+    private static String key(int i) {
+        return "Patient/p" + i % KEYS;
+    }
+}
@@ -0,0 +1,61 @@
+package de.samply.samplexchange.utils.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.r4.model.Specimen;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Uses the parsers of a shared fhir context from several threads.
+ */
+class FhirParsersTest {
+
+    private static final FhirContext CTX = FhirContext.forR4Cached();
+
+    @Test
+    void reusesTheParserOfAThread() throws Exception {
+        FhirParsers parsers = new FhirParsers(CTX);
+        IParser parser = parsers.json();
+        assertSame(parser, parsers.json());
+        assertNotSame(parser, parsers.prettyJson());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertNotSame(parser, executor.submit(parsers::json).get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void parsesConcurrently() throws Exception {
+        FhirParsers.warmUp(CTX);
+        FhirParsers parsers = new FhirParsers(CTX);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> subjects = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                Specimen specimen = new Specimen();
+                specimen.getSubject().setReference("Patient/" + i);
+                String json = parsers.json().encodeResourceToString(specimen);
+                subjects.add(executor.submit(() ->
+                        parsers.parse(Specimen.class, json).getSubject().getReference()));
+            }
+            for (int i = 0; i < subjects.size(); i++) {
+                assertEquals("Patient/" + i, subjects.get(i).get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
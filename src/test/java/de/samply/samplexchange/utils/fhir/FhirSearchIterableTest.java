@@ -0,0 +1,144 @@
+package de.samply.samplexchange.utils.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Specimen;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs searches with and without prefetching against a stub server which serves numbered pages.
+ */
+class FhirSearchIterableTest {
+
+    private static final FhirContext CTX = FhirContext.forR4Cached();
+
+    private static final int PAGES = 20;
+
+    private HttpServer server;
+
+    private String base;
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    /**
+     * Page which the server fails with, 0 if it serves all pages.
+     */
+    private volatile int failingPage;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        base = "http://localhost:" + server.getAddress().getPort() + "/fhir";
+        server.createContext("/fhir", this::page);
+        server.start();
+        CTX.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void prefetchingReturnsAllPagesInOrder() {
+        assertEquals(specimenIds(0), specimenIds(2));
+        assertEquals(PAGES * 2, specimenIds(2).size());
+    }
+
+    @Test
+    void failureOfAPrefetchedPageIsThrown() {
+        failingPage = 5;
+        List<String> ids = new ArrayList<>();
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () ->
+                assertThrows(RuntimeException.class, () -> search(2).forEach(specimen -> ids.add(specimen.getIdPart()))));
+        assertEquals(8, ids.size());
+    }
+
+    @Test
+    void closingStopsThePrefetching() throws InterruptedException {
+        CloseableIterator<Specimen> specimens = search(2).iterator();
+        specimens.next();
+        // The producer fills the queue and waits for the consumer
+        Thread.sleep(500);
+        int loaded = requests.get();
+        assertTrue(loaded < PAGES, "loaded " + loaded);
+
+        specimens.close();
+        Thread.sleep(1500);
+        assertEquals(loaded, requests.get());
+    }
+
+    @Test
+    void closingTheStreamStopsThePrefetching() throws InterruptedException {
+        try (var specimens = search(2).stream()) {
+            assertEquals(3, specimens.limit(3).count());
+        }
+        Thread.sleep(1500);
+        int loaded = requests.get();
+        Thread.sleep(1500);
+        assertEquals(loaded, requests.get());
+        assertTrue(loaded < PAGES, "loaded " + loaded);
+    }
+
+    private List<String> specimenIds(int prefetchDepth) {
+        List<String> ids = new ArrayList<>();
+        search(prefetchDepth).forEach(specimen -> ids.add(specimen.getIdPart()));
+        return ids;
+    }
+
+    private FhirSearchIterable<Specimen> search(int prefetchDepth) {
+        IGenericClient client = CTX.newRestfulGenericClient(base);
+        return new FhirSearchIterable<>(CTX, client,
+                client.search().forResource(Specimen.class).returnBundle(Bundle.class),
+                Specimen.class, prefetchDepth);
+    }
+
+    private void page(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String query = exchange.getRequestURI().getQuery();
+        int page = query != null && query.startsWith("page=") ? Integer.parseInt(query.substring(5)) : 1;
+        if (page == failingPage) {
+            respond(exchange, 500, "{\"resourceType\":\"OperationOutcome\"}");
+            return;
+        }
+        StringBuilder bundle = new StringBuilder("{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"link\":[");
+        if (page < PAGES) {
+            bundle.append("{\"relation\":\"next\",\"url\":\"").append(base).append("?page=").append(page + 1).append("\"}");
+        }
+        bundle.append("],\"entry\":[");
+        for (int i = 0; i < 2; i++) {
+            bundle.append(i == 0 ? "" : ",").append("{\"resource\":{\"resourceType\":\"Specimen\",\"id\":\"s")
+                    .append(page).append('-').append(i).append("\"}}");
+        }
+        respond(exchange, 200, bundle.append("]}").toString());
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
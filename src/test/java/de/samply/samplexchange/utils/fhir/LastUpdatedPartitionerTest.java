@@ -0,0 +1,164 @@
+package de.samply.samplexchange.utils.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import de.samply.samplexchange.utils.fhir.clients.ConnectionSettings;
+import de.samply.samplexchange.utils.fhir.clients.FhirClient;
+import org.hl7.fhir.r4.model.Specimen;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Partitions the specimens of a stub server and scans the partitions, with the fhir model and
+ * as json.
+ */
+class LastUpdatedPartitionerTest {
+
+    private static final FhirContext CTX = FhirContext.forR4Cached();
+
+    private static final long START = 1_700_000_000_000L;
+
+    private SpecimenStubServer server;
+
+    private IGenericClient client;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = new SpecimenStubServer();
+        CTX.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+        client = CTX.newRestfulGenericClient(server.getBase());
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.close();
+    }
+
+    @Test
+    void emptySourceHasNoPartitions() {
+        assertEquals(List.of(), partition(4));
+        assertEquals(Set.of(), discover(4));
+    }
+
+    @Test
+    void splitsIntoPartitionsOfAboutTheSameSize() {
+        Random random = new Random(7);
+        for (int i = 0; i < 1000; i++) {
+            server.add("s" + i, "p" + i % 300, START + random.nextInt(86_400_000));
+        }
+
+        List<DateRangeParam> windows = partition(4);
+
+        assertEquals(4, windows.size());
+        assertCoversEverySpecimenOnce(windows);
+        for (DateRangeParam window : windows) {
+            long size = countIn(window);
+            assertTrue(size >= 240 && size <= 260, "partition of " + size);
+        }
+        assertEquals(patients(300), discover(4));
+    }
+
+    @Test
+    void specimensWithOneLastUpdatedFormOnePartition() {
+        for (int i = 0; i < 50; i++) {
+            server.add("s" + i, "p" + i, START);
+        }
+
+        List<DateRangeParam> windows = partition(4);
+
+        assertEquals(1, windows.size());
+        assertCoversEverySpecimenOnce(windows);
+        assertEquals(patients(50), discover(4));
+    }
+
+    @Test
+    void morePartitionsThanSpecimens() {
+        server.add("s0", "p0", START);
+        server.add("s1", "p1", START + 1);
+        server.add("s2", "p2", START + 5000);
+
+        List<DateRangeParam> windows = partition(10);
+
+        assertTrue(windows.size() <= 3, windows.size() + " partitions");
+        assertCoversEverySpecimenOnce(windows);
+        for (DateRangeParam window : windows) {
+            assertTrue(countIn(window) > 0, "empty partition " + window);
+        }
+        assertEquals(patients(3), discover(10));
+    }
+
+    @Test
+    void scansTheJsonOfThePartitions() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            server.add("s" + i, "p" + i % 70, START + i * 1000L);
+        }
+        FhirClient fhirClient = new FhirClient(CTX, server.getBase(), false, new ConnectionSettings(
+                4, 4, 60, 60, 10, 10, 10, false, false, 0, 1, 1, "", 0));
+        CTX.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+        FhirTransfer transfer = new FhirTransfer(CTX);
+        transfer.setDiscoveryPartitions(4);
+
+        Map<String, String> specimens = new ConcurrentHashMap<>();
+        int count = transfer.fetchAllSpecimens(fhirClient.getClient(), new RawSearchReader(fhirClient),
+                specimen -> specimens.put(specimen.id(), new String(specimen.json(), StandardCharsets.UTF_8)));
+
+        assertEquals(200, count);
+        assertEquals(200, specimens.size());
+        assertTrue(specimens.get("s71").contains("\"subject\":{\"reference\":\"Patient/p1\"}"));
+        assertTrue(server.getRequests().stream().filter(query -> query.contains("_lastUpdated=ge")
+                && query.contains("_lastUpdated=lt") && !query.contains("_summary")).count() >= 4);
+    }
+
+    private List<DateRangeParam> partition(int partitions) {
+        return new LastUpdatedPartitioner(client, Specimen.class).partition(partitions);
+    }
+
+    /**
+     * Discovers the patients with the partitioned scan.
+     */
+    private Set<String> discover(int partitions) {
+        FhirTransfer transfer = new FhirTransfer(CTX);
+        transfer.setDiscoveryPartitions(partitions);
+        transfer.setPrefetchDepth(1);
+        return Set.copyOf(transfer.getSpecimenPatients(client));
+    }
+
+    private void assertCoversEverySpecimenOnce(List<DateRangeParam> windows) {
+        long total = 0;
+        for (DateRangeParam window : windows) {
+            total += countIn(window);
+        }
+        assertEquals(countIn(null), total);
+    }
+
+    /**
+     * Counts the specimens of a window, like the partitioner with a _summary=count search.
+     */
+    private long countIn(DateRangeParam window) {
+        var search = client.search().forResource(Specimen.class);
+        if (window != null) {
+            search = search.lastUpdated(window);
+        }
+        return search.returnBundle(org.hl7.fhir.r4.model.Bundle.class).count(0).execute().getTotal();
+    }
+
+    private static Set<String> patients(int count) {
+        return IntStream.range(0, count).mapToObj(i -> "Patient/p" + i).collect(Collectors.toSet());
+    }
+}
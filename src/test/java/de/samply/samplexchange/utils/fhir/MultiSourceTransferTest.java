@@ -0,0 +1,185 @@
+package de.samply.samplexchange.utils.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import de.samply.samplexchange.configuration.Configuration;
+import de.samply.samplexchange.models.PatientCompartment;
+import de.samply.samplexchange.models.SourceModel;
+import de.samply.samplexchange.readers.ResumableCompartmentReader;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Transfers two sources of a stub server concurrently, one of them fails after its discovery.
+ */
+class MultiSourceTransferTest {
+
+    private static final FhirContext CTX = FhirContext.forR4Cached();
+
+    @TempDir
+    Path directory;
+
+    private HttpServer server;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        for (String source : List.of("a", "b")) {
+            server.createContext("/" + source + "/metadata", exchange -> respond(exchange, 200,
+                    "{\"resourceType\":\"CapabilityStatement\",\"fhirVersion\":\"4.0.1\"}"));
+            server.createContext("/" + source + "/Specimen", exchange -> respond(exchange, 200, bundle(
+                    "{\"resourceType\":\"Specimen\",\"id\":\"" + source + "-s1\","
+                            + "\"subject\":{\"reference\":\"Patient/" + source + "-1\"}}")));
+            server.createContext("/" + source + "/Observation", exchange -> respond(exchange, 200, bundle()));
+            server.createContext("/" + source + "/Condition", exchange -> respond(exchange, 200, bundle()));
+        }
+        server.createContext("/a/Patient", exchange -> respond(exchange, 200,
+                "{\"resourceType\":\"Patient\",\"id\":\"a-1\"}"));
+        server.createContext("/b/Patient", exchange -> respond(exchange, 500, "{}"));
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void finishesTheOtherSourcesOfAFailedOne() throws Exception {
+        String base = "http://localhost:" + server.getAddress().getPort();
+        Path sourcesFile = directory.resolve("sources.json");
+        Files.writeString(sourcesFile, "[{\"name\":\"a\",\"url\":\"" + base + "/a\"},"
+                + "{\"name\":\"b\",\"url\":\"" + base + "/b\"}]");
+        Path export = Files.createDirectory(directory.resolve("export"));
+
+        ShutdownCoordinator coordinator = new ShutdownCoordinator();
+        FhirComponent component = new FhirComponentFactory(
+                configuration(sourcesFile, export), new FhirParsers(CTX), coordinator).create();
+        component.setSearchPlan(SearchPlan.of(List.of("Patient", "Specimen")));
+
+        List<ResumableCompartmentReader> readers = new CopyOnWriteArrayList<>();
+        IllegalStateException failure = assertThrows(IllegalStateException.class,
+                () -> component.transferSources(source -> {
+                    ResumableCompartmentReader reader = (ResumableCompartmentReader) source.getCompartmentReader();
+                    readers.add(reader);
+                    reader.discover();
+                    for (PatientCompartment compartment : reader) {
+                        source.exportPatient(compartment.getPatientId(),
+                                source.transferController.buildResources(compartment.getResources()));
+                    }
+                }));
+
+        assertEquals("1 of 2 sources failed", failure.getMessage());
+        assertEquals(2, readers.size());
+        assertTrue(readers.stream().noneMatch(coordinator::isRegistered));
+
+        // The patient of a is exported and its run is completed, b is resumed by the next run
+        try (Stream<Path> files = Files.list(export)) {
+            assertEquals(1, files.filter(file -> file.toString().endsWith(".json")).count());
+        }
+        WatermarkStore watermarks = new WatermarkStore(export.resolve("samplexchange-watermark.properties"));
+        Optional<Instant> watermarkA = watermarks.load(base + "/a");
+        assertTrue(watermarkA.isPresent());
+        assertFalse(watermarks.load(base + "/b").isPresent());
+        assertFalse(Files.exists(export.resolve("samplexchange-checkpoint.journal.a")));
+        assertTrue(Files.exists(export.resolve("samplexchange-checkpoint.journal.b")));
+    }
+
+    @Test
+    void namesTheSourcesOfTheList() throws IOException {
+        Path file = directory.resolve("sources.json");
+        Files.writeString(file, "[{\"url\":\"http://a\"},{\"name\":\"b\",\"url\":\"http://b\",\"username\":\"user\"}]");
+
+        List<SourceModel> sources = MultiSourceTransfer.readSources(file);
+
+        assertEquals(List.of("source-1", "b"), sources.stream().map(source -> source.name).toList());
+        assertEquals("", sources.get(0).username);
+        assertEquals("user", sources.get(1).username);
+        assertEquals("", sources.get(1).password);
+    }
+
+    @Test
+    void rejectsInvalidLists() throws IOException {
+        Path file = directory.resolve("sources.json");
+        for (String sources : List.of(
+                "[]",
+                "[{\"name\":\"a\"}]",
+                "[{\"name\":\"a\",\"url\":\"http://a\"},{\"name\":\"a\",\"url\":\"http://b\"}]",
+                "[{\"name\":\"../a\",\"url\":\"http://a\"}]")) {
+            Files.writeString(file, sources);
+            assertThrows(IllegalArgumentException.class, () -> MultiSourceTransfer.readSources(file), sources);
+        }
+    }
+
+    private static Configuration configuration(Path sourcesFile, Path export) {
+        Configuration configuration = new Configuration();
+        configuration.setSourceServer("");
+        configuration.setSourceServerUsername("");
+        configuration.setSourceServerPassword("");
+        configuration.setSourceMode("search");
+        configuration.setSourceDirectory("");
+        configuration.setSourcesFile(sourcesFile.toString());
+        configuration.setSourcePrefetch(1);
+        configuration.setSourceDiscoveryProjection("elements");
+        configuration.setSourceDiscoveryPartitions(1);
+        configuration.setSourceGroupingDirectory("");
+        configuration.setSourceHttpMaxTotal(4);
+        configuration.setSourceHttpMaxPerRoute(4);
+        configuration.setSourceHttpKeepAlive(10);
+        configuration.setSourceHttpIdleTimeout(10);
+        configuration.setSourceHttpConnectTimeout(10);
+        configuration.setSourceHttpSocketTimeout(10);
+        configuration.setSourceHttpLeaseTimeout(10);
+        configuration.setSourceHttpInitialConcurrency(1);
+        configuration.setSourceHttpMaxConcurrency(1);
+        configuration.setSourceHttpCacheDirectory("");
+        configuration.setProfile("BBMRI2MII");
+        configuration.setFilterFile("");
+        configuration.setTargetServer("");
+        configuration.setFileExportPath(export + "/");
+        configuration.setIncremental(true);
+        configuration.setWatermarkFile("");
+        configuration.setCheckpoint(true);
+        configuration.setCheckpointFile("");
+        return configuration;
+    }
+
+    private static String bundle(String... resources) {
+        StringBuilder bundle = new StringBuilder("{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"entry\":[");
+        for (int i = 0; i < resources.length; i++) {
+            bundle.append(i == 0 ? "" : ",").append("{\"resource\":").append(resources[i]).append('}');
+        }
+        return bundle.append("]}").toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
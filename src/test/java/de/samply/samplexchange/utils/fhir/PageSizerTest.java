@@ -0,0 +1,138 @@
+package de.samply.samplexchange.utils.fhir;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Adapts page sizes to pages whose number of entries is the requested _count.
+ */
+class PageSizerTest {
+
+    private static final long BUDGET = 1024 * 1024;
+
+    @Test
+    void growsAtMostTwofoldPerFullPageUpToTheMaximum() {
+        PageSizer.PageSize pageSize = new PageSizer(100, 1000, 60_000, BUDGET).get("Specimen");
+        List<Integer> counts = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            counts.add(pageSize.load(count -> count, entries -> entries));
+        }
+        assertEquals(List.of(100, 200, 400, 800, 1000), counts);
+        assertEquals(1000, pageSize.getCount());
+    }
+
+    @Test
+    void shrinksAtMostTwofoldAfterASlowPage() {
+        PageSizer.PageSize pageSize = new PageSizer(100, 1000, 1, BUDGET).get("Specimen");
+        pageSize.load(count -> {
+            sleep(20);
+            return count;
+        }, entries -> entries);
+        assertEquals(50, pageSize.getCount());
+    }
+
+    @Test
+    void keepsTheCountAfterThePartialLastPage() {
+        PageSizer.PageSize pageSize = new PageSizer(100, 1000, 60_000, BUDGET).get("Specimen");
+        pageSize.load(count -> count / 3, entries -> entries);
+        assertEquals(100, pageSize.getCount());
+    }
+
+    @Test
+    void halvesTheCountAndStaysBelowAFailedPage() {
+        PageSizer.PageSize pageSize = new PageSizer(100, 1000, 60_000, BUDGET).get("Specimen");
+        List<Integer> requested = new ArrayList<>();
+        int entries = pageSize.load(failing(requested, 1, new InternalErrorException("Timeout")), count -> count);
+        assertEquals(List.of(100, 50), requested);
+        assertEquals(50, entries);
+        // Grows again, but not beyond 90% of the failed page
+        pageSize.load(count -> count, count -> count);
+        assertEquals(90, pageSize.getCount());
+    }
+
+    @Test
+    void retriesConnectionFailures() {
+        PageSizer.PageSize pageSize = new PageSizer(100, 1000, 60_000, BUDGET).get("Specimen");
+        List<Integer> requested = new ArrayList<>();
+        pageSize.load(failing(requested, 2, new FhirClientConnectionException("Connection reset")), count -> count);
+        assertEquals(List.of(100, 50, 25), requested);
+    }
+
+    @Test
+    void givesUpAfterThreeRetries() {
+        PageSizer.PageSize pageSize = new PageSizer(100, 1000, 60_000, BUDGET).get("Specimen");
+        List<Integer> requested = new ArrayList<>();
+        assertThrows(UnclassifiedServerFailureException.class, () -> pageSize.load(failing(requested,
+                Integer.MAX_VALUE, new UnclassifiedServerFailureException(503, "Unavailable")), count -> count));
+        assertEquals(List.of(100, 50, 25, 12), requested);
+    }
+
+    @Test
+    void givesUpAtTheMinimumCount() {
+        PageSizer.PageSize pageSize = new PageSizer(10, 1000, 60_000, BUDGET).get("Specimen");
+        List<Integer> requested = new ArrayList<>();
+        assertThrows(InternalErrorException.class, () -> pageSize.load(failing(requested,
+                Integer.MAX_VALUE, new InternalErrorException("Timeout")), count -> count));
+        assertEquals(List.of(10), requested);
+    }
+
+    @Test
+    void doesNotRetryClientErrors() {
+        PageSizer.PageSize pageSize = new PageSizer(100, 1000, 60_000, BUDGET).get("Specimen");
+        List<Integer> requested = new ArrayList<>();
+        assertThrows(InvalidRequestException.class, () -> pageSize.load(failing(requested,
+                Integer.MAX_VALUE, new InvalidRequestException("Unknown parameter")), count -> count));
+        assertEquals(List.of(100), requested);
+        assertEquals(100, pageSize.getCount());
+    }
+
+    @Test
+    void keepsTheSizesOfTheSearchesApart() {
+        PageSizer sizer = new PageSizer(100, 1000, 60_000, BUDGET);
+        sizer.get("Specimen").load(count -> count, count -> count);
+        assertEquals(200, sizer.get("Specimen").getCount());
+        assertEquals(100, sizer.get("Condition").getCount());
+    }
+
+    @Test
+    void rewritesTheCountOfPagingLinks() {
+        assertEquals("http://fhir/Specimen?_count=50&_offset=500",
+                PageSizer.withCount("http://fhir/Specimen?_count=500&_offset=500", 50));
+        assertEquals("http://fhir?_getpages=abc&_getpagesoffset=100&_count=50&_bundletype=searchset",
+                PageSizer.withCount("http://fhir?_getpages=abc&_getpagesoffset=100&_count=100&_bundletype=searchset", 50));
+        assertNull(PageSizer.withCount("http://fhir?_getpages=abc&x_count=100", 50));
+        assertNull(PageSizer.withCount("http://fhir/Specimen?_cursor=abc", 50));
+    }
+
+    /**
+     * Fails the given number of loads, then returns the requested count.
+     */
+    private static IntFunction<Integer> failing(List<Integer> requested, int failures, RuntimeException failure) {
+        return count -> {
+            requested.add(count);
+            if (requested.size() <= failures) {
+                throw failure;
+            }
+            return count;
+        };
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package de.samply.samplexchange.utils.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import de.samply.samplexchange.models.RawResource;
+import de.samply.samplexchange.utils.fhir.clients.ConnectionSettings;
+import de.samply.samplexchange.utils.fhir.clients.FhirClient;
+import de.samply.samplexchange.writers.fhir.RawBundleWriter;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Copies the organizations of a stub server without fhir model and compares the transaction
+ * bundles with those of the fhir model.
+ */
+class RawSearchReaderTest {
+
+    private static final FhirContext CTX = FhirContext.forR4Cached();
+
+    private static final String ORGANIZATION = "{\"resourceType\":\"Organization\",\"id\":\"%1$s\","
+            + "\"meta\":{\"versionId\":\"3\",\"lastUpdated\":\"2024-01-01T00:00:00.000Z\"},"
+            + "\"extension\":[{\"url\":\"https://example.org/Extension/capacity\",\"valueDecimal\":1.50}],"
+            + "\"identifier\":[{\"system\":\"https://example.org/biobanks\",\"value\":\"%1$s\"}],"
+            + "\"name\":\"Biobank %1$s Übung \\\"Nord\\\"\"}";
+
+    private static final String OUTCOME = "{\"fullUrl\":\"urn:uuid:1\",\"resource\":{\"resourceType\":"
+            + "\"OperationOutcome\",\"id\":\"o1\",\"issue\":[{\"severity\":\"information\",\"code\":\"informational\"}]},"
+            + "\"search\":{\"mode\":\"outcome\"}}";
+
+    private HttpServer server;
+
+    private String base;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        base = "http://localhost:" + server.getAddress().getPort() + "/fhir";
+        server.createContext("/fhir/Organization", this::search);
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void passthroughBundleMatchesTheModelledBundle() throws Exception {
+        FhirClient client = new FhirClient(CTX, base, false, new ConnectionSettings(
+                4, 4, 60, 60, 10, 10, 10, false, false, 0, 1, 1, "", 0));
+        CTX.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+
+        List<Bundle> modelled = new ArrayList<>();
+        FhirTransfer transfer = new FhirTransfer(CTX);
+        transfer.fetchOrganizations(client.getClient()).pages()
+                .forEach(page -> modelled.add(transfer.buildResources(page)));
+
+        List<Bundle> copied = new ArrayList<>();
+        List<RawResource> resources = new ArrayList<>();
+        RawSearchReader reader = new RawSearchReader(client);
+        reader.search("Organization", null, Map.of(), null, page -> {
+            resources.addAll(page);
+            copied.add(CTX.newJsonParser().parseResource(Bundle.class,
+                    new String(RawBundleWriter.transaction("b" + copied.size(), page), StandardCharsets.UTF_8)));
+        });
+
+        assertEquals(2, copied.size());
+        assertEquals(modelled.size(), copied.size());
+        IParser parser = CTX.newJsonParser();
+        for (int i = 0; i < modelled.size(); i++) {
+            assertEquals(Bundle.BundleType.TRANSACTION, copied.get(i).getType());
+            assertEquals(modelled.get(i).getEntry().size(), copied.get(i).getEntry().size());
+            for (int j = 0; j < modelled.get(i).getEntry().size(); j++) {
+                Bundle.BundleEntryComponent expected = modelled.get(i).getEntry().get(j);
+                Bundle.BundleEntryComponent actual = copied.get(i).getEntry().get(j);
+                assertEquals(new IdType(expected.getFullUrl()).toVersionless().getValue(), actual.getFullUrl());
+                assertEquals(expected.getRequest().getMethod(), actual.getRequest().getMethod());
+                assertEquals(expected.getRequest().getUrl(), actual.getRequest().getUrl());
+                assertEquals(parser.encodeResourceToString(expected.getResource()),
+                        parser.encodeResourceToString(actual.getResource()));
+            }
+        }
+        // The json is copied as it is, the decimal keeps its precision
+        assertTrue(new String(resources.get(0).json(), StandardCharsets.UTF_8).contains("\"valueDecimal\":1.50"));
+        assertEquals(base + "/Organization/o2", resources.get(1).fullUrl());
+    }
+
+    private void search(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        boolean second = query != null && query.contains("page=2");
+        StringBuilder bundle = new StringBuilder("{\"resourceType\":\"Bundle\",\"type\":\"searchset\",");
+        if (!second) {
+            bundle.append("\"link\":[{\"relation\":\"self\",\"url\":\"").append(base).append("/Organization\"},")
+                    .append("{\"relation\":\"next\",\"url\":\"").append(base).append("/Organization?page=2\"}],");
+        }
+        bundle.append("\"entry\":[");
+        List<String> ids = second ? List.of("o3") : List.of("o1", "o2");
+        for (int i = 0; i < ids.size(); i++) {
+            bundle.append(i == 0 ? "" : ",").append("{\"fullUrl\":\"").append(base).append("/Organization/")
+                    .append(ids.get(i)).append("\",\"resource\":").append(String.format(ORGANIZATION, ids.get(i)))
+                    .append(",\"search\":{\"mode\":\"match\"}}");
+        }
+        if (second) {
+            bundle.append(',').append(OUTCOME);
+        }
+        byte[] body = bundle.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
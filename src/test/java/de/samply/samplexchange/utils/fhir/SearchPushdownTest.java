@@ -0,0 +1,211 @@
+package de.samply.samplexchange.utils.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import de.samply.samplexchange.enums.DiscoveryProjection;
+import de.samply.samplexchange.models.FilterModel;
+import de.samply.samplexchange.resources.FhirProfileChecker;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Specimen;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the searches a stub server receives for the search plans of the mappings and the
+ * filter of a filter file.
+ */
+class SearchPushdownTest {
+
+    private static final FhirContext CTX = FhirContext.forR4Cached();
+
+    private static final String STRICT = "handling=strict";
+
+    private HttpServer server;
+
+    private IGenericClient client;
+
+    private final List<Request> requests = new CopyOnWriteArrayList<>();
+
+    /**
+     * Search the stub server received, the parameters of a POST are read from its body.
+     */
+    record Request(String method, String path, Map<String, List<String>> parameters, String prefer) {
+    }
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/fhir", this::search);
+        server.start();
+        CTX.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+        client = CTX.newRestfulGenericClient("http://localhost:" + server.getAddress().getPort() + "/fhir");
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void sendsEverySearchOfATypeStrictly() {
+        FhirTransfer transfer = new FhirTransfer(CTX);
+        transfer.setSearchPlan(new SearchPlan().fetch(Condition.class, List.of(
+                FhirProfileChecker.MII_CAUSE_OF_DEATH_SEARCH, FhirProfileChecker.MII_CONDITION_SEARCH)));
+
+        List<Condition> conditions = new ArrayList<>();
+        transfer.fetchPatientsResources(client, Condition.class, List.of("Patient/1"), conditions::add);
+
+        assertEquals(2, requests.size());
+        assertEquals(new Request("GET", "/fhir/Condition", Map.of(
+                "subject", List.of("Patient/1"),
+                "category", List.of("http://snomed.info/sct|16100001,http://loinc.org|79378-6")), STRICT),
+                requests.get(0));
+        assertEquals(new Request("GET", "/fhir/Condition", Map.of(
+                "subject", List.of("Patient/1"),
+                "_profile", FhirProfileChecker.MII_CONDITION_SEARCH.get("_profile")), STRICT),
+                requests.get(1));
+        // Both searches find the condition, it is passed once
+        assertEquals(1, conditions.size());
+    }
+
+    @Test
+    void sendsAnUnfilteredSearchWithoutPreference() {
+        FhirTransfer transfer = new FhirTransfer(CTX);
+        transfer.setSearchPlan(SearchPlan.all()
+                .filter(Observation.class, List.of(FhirProfileChecker.BBMRI_CAUSE_OF_DEATH_SEARCH)).unfiltered());
+
+        transfer.fetchPatientsResources(client, Observation.class, List.of("Patient/1"), observation -> {
+        });
+
+        assertEquals(List.of(new Request("GET", "/fhir/Observation",
+                Map.of("subject", List.of("Patient/1")), null)), requests);
+    }
+
+    @Test
+    void postsSearchesWithLongPatientLists() {
+        FhirTransfer transfer = new FhirTransfer(CTX);
+        transfer.setSearchPlan(new SearchPlan().fetch(Condition.class,
+                List.of(FhirProfileChecker.MII_CAUSE_OF_DEATH_SEARCH)));
+        // 20 characters per id, with the separator
+        List<String> shortList = IntStream.range(0, 99).mapToObj(i -> String.format("Patient/%011d", i)).toList();
+        List<String> longList = IntStream.range(0, 101).mapToObj(i -> String.format("Patient/%011d", i)).toList();
+
+        transfer.fetchPatientsResources(client, Condition.class, shortList, condition -> {
+        });
+        transfer.fetchPatientsResources(client, Condition.class, longList, condition -> {
+        });
+
+        assertEquals(2, requests.size());
+        assertEquals("GET", requests.get(0).method());
+        assertEquals("/fhir/Condition", requests.get(0).path());
+        assertEquals(new Request("POST", "/fhir/Condition/_search", Map.of(
+                "subject", List.of(String.join(",", longList)),
+                "category", FhirProfileChecker.MII_CAUSE_OF_DEATH_SEARCH.get("category")), STRICT),
+                requests.get(1));
+    }
+
+    @Test
+    void pushesTheFilterIntoTheDiscoveryAndTheSpecimenSearches() throws IOException {
+        FilterModel filter = new ObjectMapper().readValue("{"
+                + "\"patient\":{\"fhirProfile\":[\"https://example.org/Patient\"]},"
+                + "\"specimen\":{\"ids\":[\"Specimen/s1\",\"s2\"],\"orgaFilter\":[\"Organization/o1\"]}}",
+                FilterModel.class);
+        FhirTransfer transfer = new FhirTransfer(CTX);
+        transfer.setDiscoveryProjection(DiscoveryProjection.ELEMENTS);
+        transfer.setDiscoveryFilter(filter.discoveryParameters());
+        transfer.setSearchPlan(new SearchPlan()
+                .fetch(Patient.class)
+                .fetch(Specimen.class, List.of(FhirProfileChecker.SPECIMEN_WITHOUT_PARENT_SEARCH))
+                .restrict(Specimen.class, filter.specimenParameters()));
+
+        assertEquals(Set.of("Patient/1"), Set.copyOf(transfer.getSpecimenPatients(client)));
+        transfer.fetchPatientsResources(client, Specimen.class, List.of("Patient/1"), specimen -> {
+        });
+
+        assertEquals(2, requests.size());
+        assertEquals(new Request("GET", "/fhir/Specimen", Map.of(
+                "_count", List.of("500"),
+                "_elements", List.of("subject"),
+                "subject:Patient._profile", List.of("https://example.org/Patient"),
+                "_id", List.of("s1,s2"),
+                FilterModel.CUSTODIAN_PARAMETER, List.of("Organization/o1")), STRICT),
+                requests.get(0));
+        assertEquals(new Request("GET", "/fhir/Specimen", Map.of(
+                "subject", List.of("Patient/1"),
+                "parent:missing", List.of("true"),
+                "_id", List.of("s1,s2"),
+                FilterModel.CUSTODIAN_PARAMETER, List.of("Organization/o1")), STRICT),
+                requests.get(1));
+    }
+
+    @Test
+    void discoversWithoutPreferenceIfUnfiltered() {
+        FhirTransfer transfer = new FhirTransfer(CTX);
+
+        transfer.getSpecimenPatients(client);
+
+        assertEquals(1, requests.size());
+        assertNull(requests.get(0).prefer());
+        assertTrue(requests.get(0).parameters().keySet().stream().noneMatch(name -> name.startsWith("subject")));
+    }
+
+    private void search(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String parameters = "POST".equals(exchange.getRequestMethod())
+                ? new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8)
+                : exchange.getRequestURI().getRawQuery();
+        requests.add(new Request(exchange.getRequestMethod(), path, parse(parameters),
+                exchange.getRequestHeaders().getFirst("Prefer")));
+
+        String resource = path.contains("/Specimen")
+                ? "{\"resourceType\":\"Specimen\",\"id\":\"s1\",\"subject\":{\"reference\":\"Patient/1\"}}"
+                : path.contains("/Condition")
+                ? "{\"resourceType\":\"Condition\",\"id\":\"c1\",\"subject\":{\"reference\":\"Patient/1\"}}"
+                : null;
+        String bundle = "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"entry\":["
+                + (resource == null ? "" : "{\"resource\":" + resource + "}") + "]}";
+        byte[] bytes = bundle.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, List<String>> parse(String parameters) {
+        Map<String, List<String>> parsed = new LinkedHashMap<>();
+        if (parameters == null || parameters.isEmpty()) {
+            return parsed;
+        }
+        for (String parameter : parameters.split("&")) {
+            String[] pair = parameter.split("=", 2);
+            parsed.computeIfAbsent(URLDecoder.decode(pair[0], StandardCharsets.UTF_8), name -> new ArrayList<>())
+                    .add(URLDecoder.decode(pair.length > 1 ? pair[1] : "", StandardCharsets.UTF_8));
+        }
+        return parsed;
+    }
+}
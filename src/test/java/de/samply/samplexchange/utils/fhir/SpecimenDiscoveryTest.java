@@ -0,0 +1,105 @@
+package de.samply.samplexchange.utils.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import de.samply.samplexchange.enums.DiscoveryProjection;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Discovers the patients of the specimens of a stub server with the projections of the
+ * discovery, also from a server which ignores or rejects them.
+ */
+class SpecimenDiscoveryTest {
+
+    private static final FhirContext CTX = FhirContext.forR4Cached();
+
+    private static final long START = 1_600_000_000_000L;
+
+    private SpecimenStubServer server;
+
+    private IGenericClient client;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = new SpecimenStubServer();
+        for (int i = 0; i < 50; i++) {
+            server.add("s" + i, "p" + i % 20, START + i * 1000L);
+        }
+        CTX.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+        client = CTX.newRestfulGenericClient(server.getBase());
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.close();
+    }
+
+    @Test
+    void requestsOnlyTheSubjectByDefault() {
+        Set<String> patients = discover(DiscoveryProjection.ELEMENTS, 1);
+
+        assertEquals(expectedPatients(), patients);
+        assertEquals(1, server.getRequests().size());
+        assertTrue(server.getRequests().get(0).contains("_elements=subject"));
+    }
+
+    @Test
+    void discoversTheSamePatientsWithEveryProjection() {
+        // The stub ignores the projections like a server without support for them
+        assertEquals(expectedPatients(), discover(DiscoveryProjection.SUMMARY, 1));
+        assertEquals(expectedPatients(), discover(DiscoveryProjection.NONE, 1));
+        assertTrue(server.getRequests().get(0).contains("_summary=true"));
+        assertEquals("_count=500", server.getRequests().get(1));
+    }
+
+    @Test
+    void loadsTheFullSpecimensIfTheProjectionIsRejected() {
+        server.reject("_elements");
+
+        assertEquals(expectedPatients(), discover(DiscoveryProjection.ELEMENTS, 1));
+        assertEquals(2, server.getRequests().size());
+        assertEquals("_count=500", server.getRequests().get(1));
+    }
+
+    @Test
+    void loadsTheFullSpecimensIfAPartitionRejectsTheProjection() {
+        server.reject("_elements");
+
+        assertEquals(expectedPatients(), discover(DiscoveryProjection.ELEMENTS, 3));
+        assertTrue(server.getRequests().stream().anyMatch(query -> query.contains("_elements")));
+        assertTrue(server.getRequests().stream().filter(query -> query.contains("_lastUpdated=ge"))
+                .anyMatch(query -> !query.contains("_elements")));
+    }
+
+    @Test
+    void throwsOtherFailures() {
+        // Connections are refused, which is not a rejected projection
+        server.close();
+
+        assertThrows(FhirClientConnectionException.class, () -> discover(DiscoveryProjection.ELEMENTS, 1));
+    }
+
+    private Set<String> discover(DiscoveryProjection projection, int partitions) {
+        FhirTransfer transfer = new FhirTransfer(CTX);
+        transfer.setDiscoveryProjection(projection);
+        transfer.setDiscoveryPartitions(partitions);
+        return Set.copyOf(transfer.getSpecimenPatients(client));
+    }
+
+    private static Set<String> expectedPatients() {
+        return IntStream.range(0, 20).mapToObj(i -> "Patient/p" + i).collect(Collectors.toSet());
+    }
+}
@@ -0,0 +1,105 @@
+package de.samply.samplexchange.utils.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import de.samply.samplexchange.models.SpecimenInput;
+import de.samply.samplexchange.utils.fhir.clients.ConnectionSettings;
+import de.samply.samplexchange.utils.fhir.clients.FhirClient;
+import org.hl7.fhir.r4.model.Specimen;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Streams a specimen search from a stub server whose first response breaks off after the first
+ * specimen.
+ */
+class SpecimenStreamReaderTest {
+
+    private static final FhirContext CTX = FhirContext.forR4Cached();
+
+    private static final String PAGE = "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"entry\":["
+            + "{\"fullUrl\":\"%1$s/Specimen/s1\",\"resource\":{\"resourceType\":\"Specimen\",\"id\":\"s1\","
+            + "\"subject\":{\"reference\":\"Patient/p1\"}}},"
+            + "{\"fullUrl\":\"%1$s/Specimen/s2\",\"resource\":{\"resourceType\":\"Specimen\",\"id\":\"s2\","
+            + "\"subject\":{\"reference\":\"Patient/p1\"},\"collection\":{\"collectedPeriod\":"
+            + "{\"start\":\"2020-01-01\"}}}}]}";
+
+    private HttpServer server;
+
+    private String base;
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private final List<String> queries = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        base = "http://localhost:" + server.getAddress().getPort() + "/fhir";
+        server.createContext("/fhir/Specimen", this::search);
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void retriedPageDoesNotRepeatItsSpecimens() throws Exception {
+        FhirClient client = new FhirClient(CTX, base, false, new ConnectionSettings(
+                4, 4, 60, 60, 10, 1, 10, false, false, 0, 1, 1, "", 0));
+        SpecimenStreamReader reader = new SpecimenStreamReader(new FhirParsers(CTX), client);
+        PageSizer.PageSize pageSize = new PageSizer(100, 100, 1000, 1024 * 1024).get("Specimen");
+
+        List<String> inputs = new ArrayList<>();
+        List<String> specimens = new ArrayList<>();
+        reader.fetchPatientsSpecimens(List.of("Patient/p1"), Map.of(), pageSize,
+                (SpecimenInput input) -> inputs.add(input.getId()),
+                (Specimen specimen) -> specimens.add(specimen.getIdElement().getIdPart()));
+
+        assertEquals(2, requests.get());
+        assertTrue(queries.get(0).contains("_count=100"));
+        assertTrue(queries.get(1).contains("_count=50"));
+        assertEquals(List.of(base + "/Specimen/s1"), inputs);
+        assertEquals(List.of("s2"), specimens);
+    }
+
+    private void search(HttpExchange exchange) throws IOException {
+        queries.add(URLDecoder.decode(exchange.getRequestURI().getRawQuery(), StandardCharsets.UTF_8));
+        String page = String.format(PAGE, base);
+        byte[] body = page.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        if (requests.incrementAndGet() > 1) {
+            out.write(body);
+            out.close();
+            return;
+        }
+        // Stops after the first entry, the client times out waiting for the announced length
+        out.write(body, 0, page.indexOf("{\"fullUrl\":\"" + base + "/Specimen/s2"));
+        out.flush();
+        try {
+            out.close();
+        } catch (IOException e) {
+            // The response is incomplete
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package de.samply.samplexchange.utils.fhir;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.hl7.fhir.r4.model.InstantType;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+
+/**
+ * Fhir server stub which answers the specimen searches of the discovery: the _lastUpdated sort
+ * probes, counts and paged searches of _lastUpdated windows. Projections are ignored, unless
+ * the server is told to reject them.
+ */
+class SpecimenStubServer implements AutoCloseable {
+
+    private final HttpServer server;
+
+    private final List<StubSpecimen> specimens = new CopyOnWriteArrayList<>();
+
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+
+    /**
+     * Search parameters the server answers with 400 Bad Request.
+     */
+    private final Set<String> rejected = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Specimen of a patient, last updated at the given epoch milliseconds.
+     */
+    record StubSpecimen(String id, String patient, long lastUpdated) {
+    }
+
+    SpecimenStubServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/fhir/Specimen", this::search);
+        server.createContext("/fhir/metadata", exchange -> respond(exchange, 404, "{}"));
+        server.start();
+    }
+
+    String getBase() {
+        return "http://localhost:" + server.getAddress().getPort() + "/fhir";
+    }
+
+    void add(String id, String patient, long lastUpdated) {
+        specimens.add(new StubSpecimen(id, patient, lastUpdated));
+    }
+
+    void reject(String parameter) {
+        rejected.add(parameter);
+    }
+
+    List<String> getRequests() {
+        return requests;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void search(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        requests.add(query == null ? "" : URLDecoder.decode(query, StandardCharsets.UTF_8));
+        Predicate<StubSpecimen> window = specimen -> true;
+        String sort = null;
+        int count = Integer.MAX_VALUE;
+        int offset = 0;
+        boolean summaryCount = false;
+        for (String parameter : query == null ? new String[0] : query.split("&")) {
+            String[] pair = parameter.split("=", 2);
+            if (rejected.contains(pair[0])) {
+                respond(exchange, 400, "{\"resourceType\":\"OperationOutcome\",\"issue\":[{\"severity\":\"error\","
+                        + "\"code\":\"not-supported\",\"diagnostics\":\"Unsupported parameter " + pair[0] + "\"}]}");
+                return;
+            }
+            String value = URLDecoder.decode(pair.length > 1 ? pair[1] : "", StandardCharsets.UTF_8);
+            switch (pair[0]) {
+                case "_lastUpdated" -> window = window.and(bound(value));
+                case "_sort" -> sort = value;
+                case "_count" -> count = Integer.parseInt(value);
+                case "_offset" -> offset = Integer.parseInt(value);
+                case "_summary" -> summaryCount = value.equals("count");
+                default -> {
+                    // Projections are ignored
+                }
+            }
+        }
+
+        List<StubSpecimen> matches = new ArrayList<>(specimens.stream().filter(window).toList());
+        if ("_lastUpdated".equals(sort)) {
+            matches.sort(Comparator.comparingLong(StubSpecimen::lastUpdated));
+        } else if ("-_lastUpdated".equals(sort)) {
+            matches.sort(Comparator.comparingLong(StubSpecimen::lastUpdated).reversed());
+        } else {
+            matches.sort(Comparator.comparing(StubSpecimen::id));
+        }
+
+        StringBuilder bundle = new StringBuilder("{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"total\":")
+                .append(matches.size());
+        if (!summaryCount) {
+            List<StubSpecimen> page = matches.subList(Math.min(offset, matches.size()),
+                    (int) Math.min((long) offset + count, matches.size()));
+            if (offset + page.size() < matches.size()) {
+                String next = getBase() + "/Specimen?" + query.replaceAll("&?_offset=\\d+", "")
+                        + "&_offset=" + (offset + page.size());
+                bundle.append(",\"link\":[{\"relation\":\"next\",\"url\":\"").append(next).append("\"}]");
+            }
+            bundle.append(",\"entry\":[");
+            for (int i = 0; i < page.size(); i++) {
+                StubSpecimen specimen = page.get(i);
+                bundle.append(i == 0 ? "" : ",")
+                        .append("{\"resource\":{\"resourceType\":\"Specimen\",\"id\":\"").append(specimen.id())
+                        .append("\",\"meta\":{\"lastUpdated\":\"").append(instant(specimen.lastUpdated()))
+                        .append("\"},\"subject\":{\"reference\":\"Patient/").append(specimen.patient())
+                        .append("\"}}}");
+            }
+            bundle.append(']');
+        }
+        respond(exchange, 200, bundle.append('}').toString());
+    }
+
+    private static Predicate<StubSpecimen> bound(String value) {
+        String prefix = value.substring(0, 2);
+        long time = new InstantType(value.substring(2)).getValue().getTime();
+        return switch (prefix) {
+            case "ge" -> specimen -> specimen.lastUpdated() >= time;
+            case "gt" -> specimen -> specimen.lastUpdated() > time;
+            case "lt" -> specimen -> specimen.lastUpdated() < time;
+            case "le" -> specimen -> specimen.lastUpdated() <= time;
+            default -> throw new IllegalArgumentException("Unsupported _lastUpdated " + value);
+        };
+    }
+
+    static String instant(long millis) {
+        return new InstantType(new java.util.Date(millis)).getValueAsString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package de.samply.samplexchange.utils.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.UriType;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Pools the strings of two parsed copies of a resource, up to the size of the pool.
+ */
+class StringPoolTest {
+
+    private static final FhirContext CTX = FhirContext.forR4Cached();
+
+    @Test
+    void poolsOnlyTheLowCardinalityPaths() {
+        String json = CTX.newJsonParser().encodeResourceToString(document(UUID.randomUUID().toString()));
+        FhirParsers parsers = new FhirParsers(CTX);
+        DocumentReference first = parsers.parse(DocumentReference.class, json);
+        DocumentReference second = parsers.parse(DocumentReference.class, json);
+
+        assertSame(first.getMeta().getProfile().get(0).getValue(),
+                second.getMeta().getProfile().get(0).getValue());
+        assertSame(first.getType().getCodingFirstRep().getSystem(),
+                second.getType().getCodingFirstRep().getSystem());
+        assertSame(first.getType().getCodingFirstRep().getCode(),
+                second.getType().getCodingFirstRep().getCode());
+        assertSame(first.getMasterIdentifier().getSystem(), second.getMasterIdentifier().getSystem());
+        assertSame(first.getExtension().get(0).getUrl(), second.getExtension().get(0).getUrl());
+
+        assertNotSame(first.getMeta().getSource(), second.getMeta().getSource());
+        assertNotSame(first.getContentFirstRep().getAttachment().getUrl(),
+                second.getContentFirstRep().getAttachment().getUrl());
+        assertNotSame(first.getExtension().get(0).getValue().primitiveValue(),
+                second.getExtension().get(0).getValue().primitiveValue());
+    }
+
+    @Test
+    void stopsPoolingOnceFull() {
+        StringPool pool = new StringPool(2);
+        String first = pool.intern(new String("a"));
+        String second = pool.intern(new String("b"));
+        String third = pool.intern(new String("c"));
+
+        assertSame(first, pool.intern(new String("a")));
+        assertSame(second, pool.intern(new String("b")));
+        assertNotSame(third, pool.intern(new String("c")));
+        assertEquals(2, pool.size());
+        assertEquals("2 strings pooled of at most 2, 2 of 6 lookups shared (33.3%)", pool.describeStats());
+    }
+
+    @Test
+    void neverExceedsTheBoundConcurrently() throws Exception {
+        StringPool pool = new StringPool(1000);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 8; thread++) {
+                futures.add(executor.submit(() -> IntStream.range(0, 5000)
+                        .forEach(i -> pool.intern("code-" + i))));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(1000, pool.size());
+        assertTrue(pool.describeStats().startsWith("1000 strings pooled of at most 1000"));
+    }
+
+    @Test
+    void skipsLongStringsAndADisabledPool() {
+        StringPool pool = new StringPool(10);
+        String longValue = "x".repeat(257);
+        assertNotSame(pool.intern(longValue), pool.intern(new String(longValue)));
+        assertNull(pool.intern((String) null));
+
+        StringPool disabled = new StringPool(0);
+        assertNotSame(disabled.intern(new String("a")), disabled.intern(new String("a")));
+        assertEquals(0, pool.size());
+        assertEquals(0, disabled.size());
+    }
+
+    @Test
+    void keepsThePoolsOfTwoParsersApart() {
+        String json = CTX.newJsonParser().encodeResourceToString(document(UUID.randomUUID().toString()));
+        DocumentReference first = new FhirParsers(CTX).parse(DocumentReference.class, json);
+        DocumentReference second = new FhirParsers(CTX).parse(DocumentReference.class, json);
+
+        assertNotSame(first.getType().getCodingFirstRep().getSystem(),
+                second.getType().getCodingFirstRep().getSystem());
+    }
+
+    private static DocumentReference document(String unique) {
+        DocumentReference document = new DocumentReference();
+        document.getMeta().addProfile("https://example.org/StructureDefinition/Document-" + unique);
+        document.getMeta().setSource("https://example.org/source/" + unique);
+        document.getType().addCoding().setSystem("https://example.org/CodeSystem/" + unique).setCode("c-" + unique);
+        document.getMasterIdentifier().setSystem("https://example.org/NamingSystem/" + unique).setValue(unique);
+        document.addExtension(new Extension("https://example.org/Extension/" + unique,
+                new UriType("https://example.org/value/" + unique)));
+        document.addContent().setAttachment(new Attachment().setUrl("https://example.org/binary/" + unique));
+        return document;
+    }
+}
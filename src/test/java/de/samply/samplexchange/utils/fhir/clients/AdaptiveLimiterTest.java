@@ -0,0 +1,87 @@
+package de.samply.samplexchange.utils.fhir.clients;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Releases requests with chosen latencies.
+ */
+class AdaptiveLimiterTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    void growsByOnePerRoundTripWhileTheLimitIsUsed() throws InterruptedException {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 3);
+        limiter.acquire();
+        limiter.release(MILLIS);
+        assertEquals(2.0, limiter.getLimit(), 0.001);
+        limiter.acquire();
+        limiter.release(MILLIS);
+        assertEquals(2.5, limiter.getLimit(), 0.001);
+        for (int i = 0; i < 20; i++) {
+            limiter.acquire();
+            limiter.acquire();
+            limiter.release(MILLIS);
+            limiter.release(MILLIS);
+        }
+        assertEquals(3.0, limiter.getLimit(), 0.001);
+    }
+
+    @Test
+    void doesNotGrowWhileTheLimitIsNotUsed() throws InterruptedException {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(4, 8);
+        limiter.acquire();
+        limiter.release(MILLIS);
+        assertEquals(4.0, limiter.getLimit(), 0.001);
+    }
+
+    @Test
+    void shrinksOnceAfterALatencySpike() throws InterruptedException {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(4, 8);
+        Thread.sleep(50);
+        limiter.acquire();
+        limiter.release(MILLIS);
+        limiter.acquire();
+        limiter.acquire();
+        limiter.release(10 * MILLIS);
+        limiter.release(10 * MILLIS);
+        assertEquals(3.6, limiter.getLimit(), 0.001);
+    }
+
+    @Test
+    void overloadHalvesTheLimitAndPauses() throws InterruptedException {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(4, 8);
+        limiter.acquire();
+        limiter.releaseOverloaded(300);
+        assertEquals(2.0, limiter.getLimit(), 0.001);
+
+        long start = System.nanoTime();
+        limiter.acquire();
+        assertTrue(System.nanoTime() - start >= 250 * MILLIS);
+        assertTrue(limiter.describeStats().contains("1 overload responses"));
+    }
+
+    @Test
+    void waitsForAFreePermit() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 1);
+        limiter.acquire();
+        CompletableFuture<Void> second = CompletableFuture.runAsync(() -> {
+            try {
+                limiter.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Thread.sleep(100);
+        assertFalse(second.isDone());
+        limiter.release(MILLIS);
+        second.get(5, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,144 @@
+package de.samply.samplexchange.utils.fhir.clients;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Revalidates cached responses against a stub server which answers 304 while the ETag matches.
+ */
+class CachingExecChainTest {
+
+    private static final FhirContext CTX = FhirContext.forR4Cached();
+
+    private static final String ETAG = "W/\"1\"";
+
+    private static final String BODY = "{\"resourceType\":\"Patient\",\"id\":\"1\",\"name\":[{\"family\":\"Müller\"}]}";
+
+    @TempDir
+    Path directory;
+
+    private HttpServer server;
+
+    private String base;
+
+    private final List<String> conditions = new CopyOnWriteArrayList<>();
+
+    private final List<Integer> statuses = new CopyOnWriteArrayList<>();
+
+    /**
+     * Runs before a 304 is sent.
+     */
+    private volatile Runnable beforeNotModified = () -> {
+    };
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        base = "http://localhost:" + server.getAddress().getPort() + "/fhir";
+        server.createContext("/fhir/Patient/1", this::read);
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void answersANotModifiedResponseFromTheCache() throws Exception {
+        FhirClient client = client();
+        assertEquals(BODY, get(client));
+        assertEquals(BODY, get(client));
+
+        assertEquals(Arrays.asList("", ETAG), conditions);
+        assertEquals(List.of(200, 304), statuses);
+        assertTrue(client.getResponseCache().describeStats().startsWith("1 hits, 1 misses"));
+    }
+
+    @Test
+    void asksForTheFullResponseIfTheEntryBreaksDuringRevalidation() throws Exception {
+        FhirClient client = client();
+        assertEquals(BODY, get(client));
+        beforeNotModified = () -> overwriteEntries("broken");
+
+        assertEquals(BODY, get(client));
+        assertEquals(Arrays.asList("", ETAG, ""), conditions);
+        assertEquals(List.of(200, 304, 200), statuses);
+    }
+
+    @Test
+    void doesNotRevalidateACorruptEntry() throws Exception {
+        FhirClient client = client();
+        assertEquals(BODY, get(client));
+        overwriteEntries("SXC2");
+
+        assertEquals(BODY, get(client));
+        assertEquals(BODY, get(client));
+        assertEquals(Arrays.asList("", "", ETAG), conditions);
+    }
+
+    private FhirClient client() throws Exception {
+        return new FhirClient(CTX, base, false, new ConnectionSettings(
+                4, 4, 60, 60, 10, 10, 10, false, false, 0, 1, 1, directory.toString(), 1));
+    }
+
+    private String get(FhirClient client) throws IOException {
+        try (CloseableHttpResponse response = client.getHttpClient().execute(new HttpGet(base + "/Patient/1"))) {
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            return EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private void overwriteEntries(String content) {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : new ArrayList<>(files.toList())) {
+                Files.writeString(file, content);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void read(HttpExchange exchange) throws IOException {
+        String condition = exchange.getRequestHeaders().getFirst("If-None-Match");
+        conditions.add(condition == null ? "" : condition);
+        exchange.getResponseHeaders().add("ETag", ETAG);
+        if (ETAG.equals(condition)) {
+            beforeNotModified.run();
+            statuses.add(304);
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        statuses.add(200);
+        byte[] body = BODY.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
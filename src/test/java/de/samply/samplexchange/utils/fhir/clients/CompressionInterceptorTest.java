@@ -0,0 +1,176 @@
+package de.samply.samplexchange.utils.fhir.clients;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Sends requests through the interceptor of a client to a stub server which compresses its
+ * responses if gzip is accepted, or ignores the Accept-Encoding.
+ */
+class CompressionInterceptorTest {
+
+    private static final FhirContext CTX = FhirContext.forR4Cached();
+
+    private static final int THRESHOLD = 1024;
+
+    private static final String BODY = "{\"resourceType\":\"Patient\",\"id\":\"1\",\"name\":[{\"family\":\"Müller\"}]}";
+
+    private HttpServer server;
+
+    private String base;
+
+    private volatile boolean compressResponses = true;
+
+    private final List<Request> requests = new CopyOnWriteArrayList<>();
+
+    /**
+     * Request the stub server received, with its body decompressed.
+     */
+    record Request(String acceptEncoding, String contentEncoding, byte[] wireBody, String body) {
+    }
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        base = "http://localhost:" + server.getAddress().getPort() + "/fhir";
+        server.createContext("/fhir/metadata", exchange -> respond(exchange,
+                "{\"resourceType\":\"CapabilityStatement\",\"fhirVersion\":\"4.0.1\"}"));
+        server.createContext("/fhir/Patient", exchange -> respond(exchange, BODY));
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void compressesLargeRequestsAndDecompressesResponses() throws Exception {
+        FhirClient client = client(true, true);
+        String large = "{\"resourceType\":\"Patient\",\"name\":[{\"family\":\"" + "ä".repeat(THRESHOLD) + "\"}]}";
+
+        long before = CompressionInterceptor.currentThreadResponseBytes();
+        assertEquals(BODY, post(client, large));
+        assertEquals(BODY.getBytes(StandardCharsets.UTF_8).length,
+                CompressionInterceptor.currentThreadResponseBytes() - before);
+
+        Request request = requests.get(0);
+        assertEquals("gzip", request.acceptEncoding());
+        assertEquals("gzip", request.contentEncoding());
+        assertEquals(large, request.body());
+        assertTrue(request.wireBody().length < large.getBytes(StandardCharsets.UTF_8).length);
+
+        // The fhir client parses the decompressed responses
+        Patient patient = client.getClient().read().resource(Patient.class).withId("1").execute();
+        assertEquals("Müller", patient.getNameFirstRep().getFamily());
+    }
+
+    @Test
+    void sendsSmallRequestsUncompressed() throws Exception {
+        FhirClient client = client(true, true);
+
+        assertEquals(BODY, post(client, BODY));
+
+        Request request = requests.get(0);
+        assertNull(request.contentEncoding());
+        assertArrayEquals(BODY.getBytes(StandardCharsets.UTF_8), request.wireBody());
+    }
+
+    @Test
+    void readsUncompressedResponsesOfServersIgnoringTheEncoding() throws Exception {
+        compressResponses = false;
+        FhirClient client = client(true, false);
+        String large = "{\"resourceType\":\"Patient\",\"name\":[{\"family\":\"" + "a".repeat(THRESHOLD) + "\"}]}";
+
+        long before = CompressionInterceptor.currentThreadResponseBytes();
+        assertEquals(BODY, post(client, large));
+        assertEquals(BODY.getBytes(StandardCharsets.UTF_8).length,
+                CompressionInterceptor.currentThreadResponseBytes() - before);
+
+        Request request = requests.get(0);
+        assertEquals("gzip", request.acceptEncoding());
+        assertNull(request.contentEncoding());
+        assertEquals(large, request.body());
+
+        Patient patient = client.getClient().read().resource(Patient.class).withId("1").execute();
+        assertEquals("Müller", patient.getNameFirstRep().getFamily());
+    }
+
+    private FhirClient client(boolean acceptGzip, boolean gzipRequests) throws Exception {
+        return new FhirClient(CTX, base, false, new ConnectionSettings(
+                4, 4, 60, 60, 10, 10, 10, acceptGzip, gzipRequests, THRESHOLD, 1, 1, "", 0));
+    }
+
+    private String post(FhirClient client, String body) throws IOException {
+        HttpPost post = new HttpPost(base + "/Patient");
+        post.setEntity(new StringEntity(body, ContentType.create("application/fhir+json", StandardCharsets.UTF_8)));
+        try (CloseableHttpResponse response = client.getHttpClient().execute(post)) {
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            assertNull(response.getFirstHeader("Content-Encoding"));
+            return EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] wireBody = exchange.getRequestBody().readAllBytes();
+        String contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (!exchange.getRequestURI().getPath().endsWith("/metadata")) {
+            byte[] decoded = "gzip".equals(contentEncoding) ? gunzip(wireBody) : wireBody;
+            requests.add(new Request(acceptEncoding, contentEncoding, wireBody,
+                    new String(decoded, StandardCharsets.UTF_8)));
+        }
+
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+        if (compressResponses && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            bytes = gzip(bytes);
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(bytes);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] bytes) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readAllBytes();
+        }
+    }
+}
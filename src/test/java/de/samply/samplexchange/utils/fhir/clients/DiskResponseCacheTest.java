@@ -0,0 +1,149 @@
+package de.samply.samplexchange.utils.fhir.clients;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Stores responses in a cache directory and breaks the files afterwards.
+ */
+class DiskResponseCacheTest {
+
+    private static final byte[] BODY = "{\"resourceType\":\"Patient\",\"id\":\"1\"}".getBytes(StandardCharsets.UTF_8);
+
+    private static final String KEY = DiskResponseCache.key("http://fhir/Patient/1");
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsTheHeaderAndStreamsTheBody() throws IOException {
+        DiskResponseCache cache = new DiskResponseCache(directory, 1024 * 1024);
+        store(cache, "\"v1\"", new ByteArrayInputStream(BODY));
+
+        DiskResponseCache.Entry entry = cache.get(KEY);
+        assertEquals("\"v1\"", entry.etag());
+        assertEquals("application/fhir+json", entry.contentType());
+        assertEquals(BODY.length, entry.length());
+        try (InputStream body = cache.openBody(KEY, entry)) {
+            assertArrayEquals(BODY, body.readAllBytes());
+        }
+
+        // The index is loaded again by the next run
+        assertEquals(entry, new DiskResponseCache(directory, 1024 * 1024).get(KEY));
+    }
+
+    @Test
+    void removesAFileWhichWasCutOff() throws IOException {
+        DiskResponseCache cache = new DiskResponseCache(directory, 1024 * 1024);
+        store(cache, "\"v1\"", new ByteArrayInputStream(BODY));
+        Path file = entryFile();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(file) - 5);
+        }
+
+        assertNull(cache.get(KEY));
+        assertFalse(Files.exists(file));
+    }
+
+    @Test
+    void removesACorruptFile() throws IOException {
+        Files.writeString(directory.resolve(KEY + ".entry"), "not a cache entry");
+        Files.write(directory.resolve(DiskResponseCache.key("http://fhir/Patient/2") + ".entry"), new byte[]{0x53});
+        DiskResponseCache cache = new DiskResponseCache(directory, 1024 * 1024);
+
+        assertNull(cache.get(KEY));
+        assertNull(cache.get(DiskResponseCache.key("http://fhir/Patient/2")));
+        assertEquals(0, entries());
+    }
+
+    @Test
+    void discardsAResponseWhichBreaksOff() throws IOException {
+        DiskResponseCache cache = new DiskResponseCache(directory, 1024 * 1024);
+        InputStream breaking = new FilterInputStream(new ByteArrayInputStream(BODY)) {
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, Math.min(length, 10));
+                if (read < 0) {
+                    throw new IOException("Connection reset");
+                }
+                return read;
+            }
+        };
+
+        assertThrows(IOException.class, () -> store(cache, "\"v1\"", breaking));
+        assertNull(cache.get(KEY));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    void doesNotOpenTheBodyOfAReplacedEntry() throws IOException {
+        DiskResponseCache cache = new DiskResponseCache(directory, 1024 * 1024);
+        store(cache, "\"v1\"", new ByteArrayInputStream(BODY));
+        DiskResponseCache.Entry first = cache.get(KEY);
+        store(cache, "\"v2\"", new ByteArrayInputStream(BODY));
+
+        assertNull(cache.openBody(KEY, first));
+        DiskResponseCache.Entry second = cache.get(KEY);
+        try (InputStream body = cache.openBody(KEY, second)) {
+            assertNotNull(body);
+        }
+    }
+
+    @Test
+    void removesTheLeastRecentlyUsedEntries() throws IOException {
+        DiskResponseCache cache = new DiskResponseCache(directory, 2 * (BODY.length + 50));
+        for (int i = 1; i <= 3; i++) {
+            String key = DiskResponseCache.key("http://fhir/Patient/" + i);
+            try (InputStream in = cache.storing(key, metadata("\"v1\""), new ByteArrayInputStream(BODY))) {
+                in.readAllBytes();
+            }
+            if (i == 2) {
+                cache.get(DiskResponseCache.key("http://fhir/Patient/1"));
+            }
+        }
+
+        assertNotNull(cache.get(DiskResponseCache.key("http://fhir/Patient/1")));
+        assertNull(cache.get(DiskResponseCache.key("http://fhir/Patient/2")));
+        assertNotNull(cache.get(DiskResponseCache.key("http://fhir/Patient/3")));
+    }
+
+    private static void store(DiskResponseCache cache, String etag, InputStream content) throws IOException {
+        try (InputStream in = cache.storing(KEY, metadata(etag), content)) {
+            in.readAllBytes();
+        }
+    }
+
+    private static DiskResponseCache.Entry metadata(String etag) {
+        return new DiskResponseCache.Entry(etag, "", "application/fhir+json", "", -1);
+    }
+
+    private Path entryFile() {
+        return directory.resolve(KEY + ".entry");
+    }
+
+    private long entries() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(".entry")).count();
+        }
+    }
+}
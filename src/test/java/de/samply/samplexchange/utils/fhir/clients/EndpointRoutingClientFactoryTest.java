@@ -0,0 +1,27 @@
+package de.samply.samplexchange.utils.fhir.clients;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Registers the http clients of a source and a target with the same server base.
+ */
+class EndpointRoutingClientFactoryTest {
+
+    @Test
+    void keepsTheFirstClientOfASharedBase() throws IOException {
+        EndpointRoutingClientFactory factory = new EndpointRoutingClientFactory(FhirContext.forR4Cached());
+        try (CloseableHttpClient source = HttpClients.createDefault();
+             CloseableHttpClient target = HttpClients.createDefault()) {
+            assertSame(source, factory.register("http://localhost/fhir", source));
+            assertSame(source, factory.register("http://localhost/fhir/", target));
+            assertSame(target, factory.register("http://localhost/other", target));
+        }
+    }
+}
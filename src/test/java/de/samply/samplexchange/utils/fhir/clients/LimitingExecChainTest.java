@@ -0,0 +1,171 @@
+package de.samply.samplexchange.utils.fhir.clients;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Sends requests through the limiter of a client to a stub server which answers with the body
+ * after 50 ms, after 400 ms or with 429. Below a few milliseconds the jitter of the loopback
+ * connection would count as latency spikes.
+ */
+class LimitingExecChainTest {
+
+    private static final FhirContext CTX = FhirContext.forR4Cached();
+
+    private static final byte[] BODY = "{\"resourceType\":\"Bundle\",\"type\":\"searchset\"}"
+            .getBytes(StandardCharsets.UTF_8);
+
+    private HttpServer server;
+
+    private ExecutorService executor;
+
+    private String base;
+
+    private final List<String> events = new CopyOnWriteArrayList<>();
+
+    private final List<Long> arrivals = new CopyOnWriteArrayList<>();
+
+    private final AtomicInteger busyRequests = new AtomicInteger();
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        base = "http://localhost:" + server.getAddress().getPort() + "/fhir";
+        server.createContext("/fhir/fast", exchange -> respond(exchange, 50));
+        server.createContext("/fhir/slow", exchange -> respond(exchange, 400));
+        server.createContext("/fhir/busy", this::busy);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    void holdsThePermitUntilTheBodyIsRead() throws Exception {
+        FhirClient client = client(1, 1);
+        CompletableFuture<Void> first = CompletableFuture.runAsync(() -> get(client, "/slow"));
+        CompletableFuture<Void> second = CompletableFuture.runAsync(() -> get(client, "/slow"));
+        first.get(10, TimeUnit.SECONDS);
+        second.get(10, TimeUnit.SECONDS);
+
+        assertEquals(List.of("start", "end", "start", "end"), events);
+    }
+
+    @Test
+    void releasesThePermitWhenAnUnreadResponseIsClosed() throws Exception {
+        FhirClient client = client(1, 1);
+        client.getHttpClient().execute(new HttpGet(base + "/slow")).close();
+
+        CompletableFuture<Void> next = CompletableFuture.runAsync(() -> get(client, "/fast"));
+        next.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void growsWhileTheLimitIsInUse() throws Exception {
+        FhirClient client = client(1, 4);
+        for (int i = 0; i < 10; i++) {
+            get(client, "/fast");
+        }
+        assertTrue(client.getLimiter().getLimit() >= 2.0);
+    }
+
+    @Test
+    void shrinksWhenABodyIsSlow() throws Exception {
+        FhirClient client = client(4, 4);
+        for (int i = 0; i < 5; i++) {
+            get(client, "/fast");
+        }
+        Thread.sleep(500);
+        // The headers of the slow response arrive fast, only its body is late
+        get(client, "/slow");
+
+        assertEquals(3.6, client.getLimiter().getLimit(), 0.001);
+    }
+
+    @Test
+    void retriesAfterTheRetryAfterTime() throws Exception {
+        FhirClient client = client(4, 4);
+        try (CloseableHttpResponse response = client.getHttpClient().execute(new HttpGet(base + "/busy"))) {
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            EntityUtils.consume(response.getEntity());
+        }
+
+        assertEquals(2, busyRequests.get());
+        assertTrue(arrivals.get(1) - arrivals.get(0) >= TimeUnit.MILLISECONDS.toNanos(900));
+        assertTrue(client.getLimiter().getLimit() < 4.0);
+        assertTrue(client.getLimiter().describeStats().contains("1 overload responses"));
+    }
+
+    private FhirClient client(int initialConcurrency, int maxConcurrency) throws Exception {
+        return new FhirClient(CTX, base, false, new ConnectionSettings(
+                4, 4, 60, 60, 10, 10, 10, false, false, 0, initialConcurrency, maxConcurrency, "", 0));
+    }
+
+    private void get(FhirClient client, String path) {
+        try (CloseableHttpResponse response = client.getHttpClient().execute(new HttpGet(base + path))) {
+            EntityUtils.consume(response.getEntity());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Sends the headers at once and the body after the given delay.
+     */
+    private void respond(HttpExchange exchange, long delayMillis) throws IOException {
+        events.add("start");
+        exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+        exchange.sendResponseHeaders(200, BODY.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(BODY, 0, 1);
+            out.flush();
+            if (delayMillis > 0) {
+                Thread.sleep(delayMillis);
+            }
+            events.add("end");
+            out.write(BODY, 1, BODY.length - 1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // The client closed the response without reading it
+        }
+    }
+
+    private void busy(HttpExchange exchange) throws IOException {
+        arrivals.add(System.nanoTime());
+        if (busyRequests.incrementAndGet() == 1) {
+            exchange.getResponseHeaders().add("Retry-After", "1");
+            exchange.sendResponseHeaders(429, -1);
+            exchange.close();
+            return;
+        }
+        respond(exchange, 0);
+    }
+}
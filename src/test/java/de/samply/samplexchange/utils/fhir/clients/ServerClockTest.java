@@ -0,0 +1,65 @@
+package de.samply.samplexchange.utils.fhir.clients;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Measures the time of a server whose clock is behind the local one.
+ */
+class ServerClockTest {
+
+    private static final Duration BEHIND = Duration.ofHours(1);
+
+    @Test
+    void takesTheServerTimeOfTheFirstResponseAfterTheStart() throws Exception {
+        ServerClock clock = new ServerClock();
+        clock.process(response(Instant.now()), new BasicHttpContext());
+        clock.start();
+        Instant localStart = Instant.now();
+        Thread.sleep(50);
+        Instant serverNow = Instant.now().minus(BEHIND);
+        clock.process(response(serverNow), new BasicHttpContext());
+        clock.process(response(Instant.now()), new BasicHttpContext());
+
+        Instant serverStart = clock.getStartTime().orElseThrow();
+        // Never later than the server time at the start, earlier by at most the truncated second
+        assertTrue(serverStart.isBefore(localStart.minus(BEHIND)));
+        assertTrue(serverStart.isAfter(localStart.minus(BEHIND).minusSeconds(2)));
+    }
+
+    @Test
+    void isEmptyWithoutDateHeader() {
+        ServerClock clock = new ServerClock();
+        clock.start();
+        clock.process(new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK"), new BasicHttpContext());
+        assertFalse(clock.getStartTime().isPresent());
+    }
+
+    @Test
+    void restartForgetsThePreviousTime() {
+        ServerClock clock = new ServerClock();
+        clock.start();
+        clock.process(response(Instant.now().minus(BEHIND)), new BasicHttpContext());
+        clock.start();
+        assertFalse(clock.getStartTime().isPresent());
+    }
+
+    private static HttpResponse response(Instant date) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        response.setHeader(HttpHeaders.DATE, DateUtils.formatDate(Date.from(date)));
+        return response;
+    }
+}
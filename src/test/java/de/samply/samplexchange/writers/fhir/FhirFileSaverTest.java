@@ -0,0 +1,81 @@
+package de.samply.samplexchange.writers.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import de.samply.samplexchange.models.RawResource;
+import de.samply.samplexchange.utils.fhir.CheckpointJournal;
+import de.samply.samplexchange.utils.fhir.FhirParsers;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Records the patients of a file export in a checkpoint journal, only once their file is written.
+ */
+class FhirFileSaverTest {
+
+    private static final FhirParsers PARSERS = new FhirParsers(FhirContext.forR4Cached());
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void completesThePatientOfAWrittenBundle() throws IOException {
+        CheckpointJournal journal = journal();
+        FhirFileSaver saver = new FhirFileSaver(PARSERS, directory + "/");
+
+        assertTrue(saver.export(bundle(), () -> journal.complete("Patient/1")));
+        assertTrue(saver.exportRaw(List.of(patient()), () -> journal.complete("Patient/2")));
+        journal.close();
+
+        assertEquals(List.of(), List.copyOf(reopen().remainingPatientIds()));
+    }
+
+    @Test
+    void leavesThePatientOfAFailedWritePending() throws IOException {
+        CheckpointJournal journal = journal();
+        // A file where the export directory should be, so no bundle can be written below it
+        Path blocked = Files.writeString(directory.resolve("blocked"), "");
+        FhirFileSaver saver = new FhirFileSaver(PARSERS, blocked + "/");
+
+        assertFalse(saver.export(bundle(), () -> journal.complete("Patient/1")));
+        assertFalse(saver.exportRaw(List.of(patient()), () -> journal.complete("Patient/2")));
+        journal.close();
+
+        assertEquals(List.of("Patient/1", "Patient/2"), List.copyOf(reopen().remainingPatientIds()));
+    }
+
+    private CheckpointJournal journal() throws IOException {
+        CheckpointJournal journal = CheckpointJournal.open(directory.resolve("journal"), "test", Instant::now);
+        journal.start(List.of("Patient/1", "Patient/2"));
+        return journal;
+    }
+
+    private CheckpointJournal reopen() throws IOException {
+        CheckpointJournal journal = CheckpointJournal.open(directory.resolve("journal"), "test", Instant::now);
+        assertTrue(journal.isResumable());
+        return journal;
+    }
+
+    private static Bundle bundle() {
+        Bundle bundle = new Bundle();
+        bundle.setId("bundle-1");
+        bundle.setType(Bundle.BundleType.TRANSACTION);
+        return bundle;
+    }
+
+    private static RawResource patient() {
+        return new RawResource("Patient", "2", "http://source/fhir/Patient/2",
+                "{\"resourceType\":\"Patient\",\"id\":\"2\"}".getBytes(StandardCharsets.UTF_8));
+    }
+}